@@ -9,12 +9,13 @@ import android.hardware.usb.UsbDevice;
 import android.media.AudioManager;
 import android.media.MediaScannerConnection;
 import android.media.SoundPool;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
@@ -29,19 +30,20 @@ import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.UVCCamera;
 import com.serenegiant.widget.CameraViewInterface;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
-
-import static com.serenegiant.opencvwithuvc.MainActivity.bitmapOutput;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 abstract class AbstractUVCCameraHandler extends Handler {
     private static final boolean DEBUG = true;	// TODO set false on release
@@ -55,6 +57,26 @@ abstract class AbstractUVCCameraHandler extends Handler {
         public void onStartRecording();
         public void onStopRecording();
         public void onError(final Exception e);
+        /**
+         * called on still image writer thread after the still image was written
+         * @param path
+         */
+        public void onCaptureStill(final String path);
+        /**
+         * called on camera thread when preview resolution was changed by #resize,
+         * this is called while the stream is stopped and frames of new size follow this
+         * @param width
+         * @param height
+         */
+        public void onResize(final int width, final int height);
+    }
+
+    public interface MetricsCallback {
+        /**
+         * called on camera thread at the interval that was set by #setMetricsCallback
+         * @param metrics
+         */
+        public void onMetrics(final CameraMetrics metrics);
     }
 
     private static final int MSG_OPEN = 0;
@@ -66,12 +88,86 @@ abstract class AbstractUVCCameraHandler extends Handler {
     private static final int MSG_CAPTURE_STOP = 6;
     private static final int MSG_MEDIA_UPDATE = 7;
     private static final int MSG_RELEASE = 9;
+    private static final int MSG_FRAME_CALLBACK = 10;
+    private static final int MSG_METRICS = 11;
+    private static final int MSG_RESIZE = 12;
+    private static final int MSG_CONTROL = 13;
+
+    /**
+     * processing unit controls that are cached and written through the queue
+     */
+    private static final int[] CONTROLS = {
+        UVCCamera.PU_BRIGHTNESS, UVCCamera.PU_CONTRAST, UVCCamera.PU_GAMMA,
+        UVCCamera.PU_GAIN, UVCCamera.PU_SHARPNESS,
+    };
+    /**
+     * values of #resetValue, same order as CONTROLS
+     */
+    private static final int[] CONTROL_DEFAULTS = { 30, 60, 30, 40, 70 };
+    /**
+     * value of the cache/pending slot that does not have value
+     */
+    private static final int NO_VALUE = Integer.MIN_VALUE;
+
+    /**
+     * number of pending messages is counted for each what less than PENDING_SLOTS - 1,
+     * last slot is for Runnables
+     */
+    private static final int PENDING_SLOTS = 16;
+    /**
+     * interval between delivered frames longer than this ratio of average interval
+     * is treated as frame drop
+     */
+    private static final float FRAME_GAP_RATIO = 1.5f;
 
     private final WeakReference<AbstractUVCCameraHandler.CameraThread> mWeakThread;
     private volatile boolean mReleased;
+    /**
+     * metrics of data flow
+     */
+    private final AtomicLong mDeliveredFrames = new AtomicLong();
+    private final AtomicLong mRenderedFrames = new AtomicLong();
+    private final AtomicLong mEncodedFrames = new AtomicLong();
+    private final AtomicLong mEncoderDroppedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicIntegerArray mPendingMessages = new AtomicIntegerArray(PENDING_SLOTS);
+    /**
+     * pending messages of each what that does not have its own slot, guarded by itself
+     */
+    private final SparseIntArray mOtherPendingMessages = new SparseIntArray();
+    /**
+     * messages that were sent with delay and not dispatched yet, guarded by itself.
+     * these are counted as queue depth only after their time came
+     */
+    private final List<Message> mDelayedMessages = new ArrayList<Message>();
+    /**
+     * rendered frame count when each surface was added,
+     * per surface frames are estimated from this as RendererHolder does not count them
+     */
+    private final Map<Integer, Long> mSurfaceBaselines = new LinkedHashMap<Integer, Long>();
+    /**
+     * cached value and value waiting to be written of each control
+     */
+    private final AtomicIntegerArray mControlValues = new AtomicIntegerArray(CONTROLS.length);
+    private final AtomicIntegerArray mPendingControls = new AtomicIntegerArray(CONTROLS.length);
+    private final AtomicLong mControlTransfers = new AtomicLong();
+    private final AtomicLong mSavedControlTransfers = new AtomicLong();
+    private volatile MetricsCallback mMetricsCallback;
+    /**
+     * source of still capture
+     */
+    private volatile FrameSnapshotBuffer mSnapshotBuffer;
+    private volatile long mMetricsIntervalMs;
+    private CameraMetrics mLastMetrics;
+    /**
+     * for estimation of frame drops, accessed only on frame callback thread
+     */
+    private long mLastFrameNs;
+    private long mAvgFrameIntervalNs;
 
     protected AbstractUVCCameraHandler(final CameraThread thread) {
         mWeakThread = new WeakReference<CameraThread>(thread);
+        clearControls();
     }
 
     public int getWidth() {
@@ -134,9 +230,31 @@ abstract class AbstractUVCCameraHandler extends Handler {
         if (DEBUG) Log.v(TAG, "close:finished");
     }
 
+    /**
+     * change preview resolution without closing the camera,
+     * preview is stopped, restarted with new size on camera thread and
+     * registered surfaces and callbacks are kept. only latest request is applied
+     * when this is called again before camera thread handles it.
+     * resize is refused(CameraCallback#onError) while recording.
+     * @param width
+     * @param height
+     */
     public void resize(final int width, final int height) {
         checkReleased();
-        throw new UnsupportedOperationException("does not support now");
+        if ((width <= 0) || (height <= 0)) {
+            throw new IllegalArgumentException("invalid size:" + width + "x" + height);
+        }
+        removePendingMessages(MSG_RESIZE);
+        sendMessage(obtainMessage(MSG_RESIZE, width, height));
+    }
+
+    /**
+     * called on camera thread while preview is stopped for resizing,
+     * subclass should resize the buffers that preview is rendered into
+     * @param width
+     * @param height
+     */
+    protected void onResize(final int width, final int height) {
     }
 
     protected void startPreview(final Object surface) {
@@ -149,7 +267,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
     public void stopPreview() {
         if (DEBUG) Log.v(TAG, "stopPreview:");
-        removeMessages(MSG_PREVIEW_START);
+        removePendingMessages(MSG_PREVIEW_START);
         stopRecording();
         if (isPreviewing()) {
             final CameraThread thread = mWeakThread.get();
@@ -170,6 +288,26 @@ abstract class AbstractUVCCameraHandler extends Handler {
         if (DEBUG) Log.v(TAG, "stopPreview:finished");
     }
 
+    /**
+     * set buffer of processed frames, still capture writes its latest snapshot
+     * @param buffer
+     */
+    public void setSnapshotBuffer(final FrameSnapshotBuffer buffer) {
+        mSnapshotBuffer = buffer;
+    }
+
+    /**
+     * set format of following still images
+     * @param format PNG, JPEG or WEBP
+     * @param quality 0-100, ignored for PNG
+     */
+    public void setStillImageFormat(final Bitmap.CompressFormat format, final int quality) {
+        final CameraThread thread = mWeakThread.get();
+        if (thread != null) {
+            thread.mStillWriter.setFormat(format, quality);
+        }
+    }
+
     protected void captureStill() {
         checkReleased();
         sendEmptyMessage(MSG_CAPTURE_STILL);
@@ -214,6 +352,274 @@ abstract class AbstractUVCCameraHandler extends Handler {
         }
     }
 
+    /**
+     * add callback to receive NV21 frames from camera,
+     * frames are delivered on the native frame callback thread
+     * and the ByteBuffer is valid only while the callback is running
+     * @param callback
+     */
+    public void addFrameCallback(final IFrameCallback callback) {
+        checkReleased();
+        if (callback != null) {
+            final CameraThread thread = mWeakThread.get();
+            if (thread != null) {
+                thread.mFrameCallbacks.add(callback);
+                sendEmptyMessage(MSG_FRAME_CALLBACK);
+            }
+        }
+    }
+
+    public void removeFrameCallback(final IFrameCallback callback) {
+        if (callback != null) {
+            final CameraThread thread = mWeakThread.get();
+            if (thread != null) {
+                thread.mFrameCallbacks.remove(callback);
+                sendEmptyMessage(MSG_FRAME_CALLBACK);
+            }
+        }
+    }
+
+    /**
+     * get current metrics of data flow
+     * @return
+     */
+    public CameraMetrics getMetrics() {
+        int depth = 0;
+        for (int i = 0; i < PENDING_SLOTS; i++) {
+            depth += Math.max(0, mPendingMessages.get(i));
+        }
+        synchronized (mOtherPendingMessages) {
+            final int n = mOtherPendingMessages.size();
+            for (int i = 0; i < n; i++) {
+                depth += Math.max(0, mOtherPendingMessages.valueAt(i));
+            }
+        }
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mDelayedMessages) {
+            for (final Message msg: mDelayedMessages) {
+                if (msg.getWhen() <= now) {
+                    depth++;
+                }
+            }
+        }
+        final long rendered = mRenderedFrames.get();
+        synchronized (mSurfaceBaselines) {
+            final int n = mSurfaceBaselines.size();
+            final int[] ids = new int[n];
+            final long[] frames = new long[n];
+            int i = 0;
+            for (final Map.Entry<Integer, Long> entry: mSurfaceBaselines.entrySet()) {
+                ids[i] = entry.getKey();
+                frames[i] = rendered - entry.getValue();
+                i++;
+            }
+            final CameraMetrics metrics = new CameraMetrics(System.nanoTime(),
+                mDeliveredFrames.get(), rendered,
+                mEncodedFrames.get(), mEncoderDroppedFrames.get(),
+                mDroppedFrames.get(), depth,
+                mControlTransfers.get(), mSavedControlTransfers.get(), ids, frames, mLastMetrics);
+            mLastMetrics = metrics;
+            return metrics;
+        }
+    }
+
+    /**
+     * set callback to receive metrics periodically,
+     * frames are delivered from camera(as RAW) to count them while the callback is set
+     * @param callback null: stop
+     * @param intervalMs
+     */
+    public void setMetricsCallback(final MetricsCallback callback, final long intervalMs) {
+        checkReleased();
+        mMetricsIntervalMs = intervalMs;
+        mMetricsCallback = callback;
+        removePendingMessages(MSG_METRICS);
+        if (callback != null) {
+            sendEmptyMessageDelayed(MSG_METRICS, intervalMs);
+        }
+        sendEmptyMessage(MSG_FRAME_CALLBACK);
+    }
+
+    /**
+     * subclass should call this when it registered surface to render preview
+     * @param surfaceId
+     */
+    protected void onSurfaceAdded(final int surfaceId) {
+        synchronized (mSurfaceBaselines) {
+            mSurfaceBaselines.put(surfaceId, mRenderedFrames.get());
+        }
+    }
+
+    protected void onSurfaceRemoved(final int surfaceId) {
+        synchronized (mSurfaceBaselines) {
+            mSurfaceBaselines.remove(surfaceId);
+        }
+    }
+
+    /**
+     * subclass should call this every time when preview frame is rendered
+     */
+    protected void onFrameRendered() {
+        mRenderedFrames.incrementAndGet();
+    }
+
+    /**
+     * called on frame callback thread
+     */
+    private void onFrameDelivered() {
+        mDeliveredFrames.incrementAndGet();
+        final long now = System.nanoTime();
+        if (mLastFrameNs != 0) {
+            final long interval = now - mLastFrameNs;
+            if ((mAvgFrameIntervalNs > 0) && (interval > mAvgFrameIntervalNs * FRAME_GAP_RATIO)) {
+                mDroppedFrames.addAndGet(Math.round(interval / (double)mAvgFrameIntervalNs) - 1);
+            } else {
+                // moving average of normal intervals
+                mAvgFrameIntervalNs = mAvgFrameIntervalNs > 0
+                    ? mAvgFrameIntervalNs + (interval - mAvgFrameIntervalNs) / 8 : interval;
+            }
+        }
+        mLastFrameNs = now;
+    }
+
+    /**
+     * write latest pending value of the control and read it back into the cache,
+     * called on camera thread
+     * @param thread
+     * @param ix index of CONTROLS
+     */
+    private void handleControl(final CameraThread thread, final int ix) {
+        final int value = mPendingControls.getAndSet(ix, NO_VALUE);
+        final UVCCamera camera = thread.mUVCCamera;
+        if ((value == NO_VALUE) || (camera == null)) return;
+        try {
+            writeControl(camera, ix, value);
+            final int actual = readControl(camera, ix);
+            if (mPendingControls.get(ix) == NO_VALUE) {
+                // newer write is not queued, camera may have clamped the value
+                mControlValues.set(ix, actual);
+            }
+        } catch (final Exception e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    /**
+     * load values of all supported controls into the cache, called on camera thread
+     * @param camera
+     */
+    private void loadControls(final UVCCamera camera) {
+        for (int i = 0; i < CONTROLS.length; i++) {
+            if (camera.checkSupportFlag(CONTROLS[i]) && (mPendingControls.get(i) == NO_VALUE)) {
+                mControlValues.set(i, readControl(camera, i));
+            }
+        }
+    }
+
+    private void clearControls() {
+        for (int i = 0; i < CONTROLS.length; i++) {
+            mControlValues.set(i, NO_VALUE);
+            mPendingControls.set(i, NO_VALUE);
+        }
+    }
+
+    private void handleMetrics() {
+        final MetricsCallback callback = mMetricsCallback;
+        if (callback != null) {
+            try {
+                callback.onMetrics(getMetrics());
+            } catch (final Exception e) {
+                Log.w(TAG, e);
+            }
+            sendEmptyMessageDelayed(MSG_METRICS, mMetricsIntervalMs);
+        }
+    }
+
+    @Override
+    public boolean sendMessageAtTime(final Message msg, final long uptimeMillis) {
+        // count before enqueueing, the message may be dispatched before returning
+        final boolean delayed = uptimeMillis > SystemClock.uptimeMillis();
+        if (delayed) {
+            synchronized (mDelayedMessages) {
+                mDelayedMessages.add(msg);
+            }
+        } else {
+            countPending(msg, 1);
+        }
+        final boolean result = super.sendMessageAtTime(msg, uptimeMillis);
+        if (!result) {
+            if (delayed) {
+                synchronized (mDelayedMessages) {
+                    mDelayedMessages.remove(msg);
+                }
+            } else {
+                countPending(msg, -1);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void dispatchMessage(final Message msg) {
+        final boolean delayed;
+        synchronized (mDelayedMessages) {
+            delayed = mDelayedMessages.remove(msg);
+        }
+        if (!delayed) {
+            countPending(msg, -1);
+        }
+        super.dispatchMessage(msg);
+    }
+
+    /**
+     * Handler#removeMessages is final, so remove messages through this to keep queue depth
+     * (Runnables should not be removed by #removeCallbacks for the same reason)
+     * @param what
+     */
+    protected void removePendingMessages(final int what) {
+        // removed messages are recycled(what is cleared), so forget them before removing
+        synchronized (mDelayedMessages) {
+            for (int i = mDelayedMessages.size() - 1; i >= 0; i--) {
+                final Message msg = mDelayedMessages.get(i);
+                if ((msg.what == what) && (msg.getCallback() == null)) {
+                    mDelayedMessages.remove(i);
+                }
+            }
+        }
+        removeMessages(what);
+        if ((what >= 0) && (what < PENDING_SLOTS - 1)) {
+            mPendingMessages.set(what, 0);
+        } else {
+            synchronized (mOtherPendingMessages) {
+                mOtherPendingMessages.delete(what);
+            }
+        }
+    }
+
+    /**
+     * count the message that is not delayed
+     * @param msg
+     * @param delta 1: enqueued, -1: dispatched or failed to enqueue
+     */
+    private void countPending(final Message msg, final int delta) {
+        final int what = msg.what;
+        if (msg.getCallback() != null) {
+            mPendingMessages.addAndGet(PENDING_SLOTS - 1, delta);
+        } else if ((what >= 0) && (what < PENDING_SLOTS - 1)) {
+            mPendingMessages.addAndGet(what, delta);
+        } else {
+            // each what has own count so that removing one of them does not affect others
+            synchronized (mOtherPendingMessages) {
+                final int count = mOtherPendingMessages.get(what) + delta;
+                if (count != 0) {
+                    mOtherPendingMessages.put(what, count);
+                } else {
+                    mOtherPendingMessages.delete(what);
+                }
+            }
+        }
+    }
+
     protected void updateMedia(final String path) {
         sendMessage(obtainMessage(MSG_MEDIA_UPDATE, path));
     }
@@ -224,52 +630,63 @@ abstract class AbstractUVCCameraHandler extends Handler {
         return thread != null && thread.mUVCCamera != null && thread.mUVCCamera.checkSupportFlag(flag);
     }
 
+    /**
+     * get value of the control from the cache, the cache is loaded when the camera is opened
+     * and refreshed by reading back after each write on camera thread,
+     * so this does not issue USB control transfer except the first read before loading.
+     * the cache is updated optimistically by #setValue, so this returns the requested value
+     * until the write is done and the actual(possibly clamped) value is read back
+     * @param flag one of PU_BRIGHTNESS, PU_CONTRAST, PU_GAMMA, PU_GAIN and PU_SHARPNESS
+     * @return
+     */
     public int getValue(final int flag) {
         checkReleased();
+        final int ix = controlIndex(flag);
+        final int cached = mControlValues.get(ix);
+        if (cached != NO_VALUE) {
+            return cached;
+        }
         final CameraThread thread = mWeakThread.get();
         final UVCCamera camera = thread != null ? thread.mUVCCamera : null;
         if (camera != null) {
-            if (flag == UVCCamera.PU_BRIGHTNESS) {
-                return camera.getBrightness();
-            } else if (flag == UVCCamera.PU_CONTRAST) {
-                return camera.getContrast();
-            } else if (flag == UVCCamera.PU_GAMMA) {
-                return camera.getGamma();
-            } else if (flag == UVCCamera.PU_GAIN) {
-                return camera.getGain();
-            } else if (flag == UVCCamera.PU_SHARPNESS) {
-                return camera.getSharpness();
-            }
+            final int value = readControl(camera, ix);
+            mControlValues.compareAndSet(ix, NO_VALUE, value);
+            return value;
         }
         throw new IllegalStateException();
     }
 
+    /**
+     * queue write of the control to camera thread, writes of same control are coalesced
+     * and only the last value is written. write of the value that the control already has
+     * is skipped. the value is set into the cache immediately(optimistic update),
+     * camera thread replaces it with the value read back after writing unless newer write is queued.
+     * @param flag one of PU_BRIGHTNESS, PU_CONTRAST, PU_GAMMA, PU_GAIN and PU_SHARPNESS
+     * @param value
+     * @return the value that was requested, actual value is read back into the cache after writing
+     */
     public int setValue(final int flag, final int value) {
         checkReleased();
+        final int ix = controlIndex(flag);
         final CameraThread thread = mWeakThread.get();
-        final UVCCamera camera = thread != null ? thread.mUVCCamera : null;
-        if (camera != null) {
-            if (flag == UVCCamera.PU_BRIGHTNESS) {
-                camera.setBrightness(value);
-                return camera.getBrightness();
-            } else if (flag == UVCCamera.PU_CONTRAST) {
-                camera.setContrast(value);
-                return camera.getContrast();
-            } else if (flag == UVCCamera.PU_GAMMA){
-                camera.setGamma(value);
-                return camera.getGamma();
-            }  else if (flag == UVCCamera.PU_GAIN){
-                camera.setGain(value);
-                return camera.getGain();
-            }  else if (flag == UVCCamera.PU_SHARPNESS){
-                camera.setSharpness(value);
-                return camera.getSharpness();
-            }
+        if ((thread == null) || (thread.mUVCCamera == null)) {
+            throw new IllegalStateException();
         }
-        throw new IllegalStateException();
+        final int prev = mPendingControls.getAndSet(ix, value);
+        if (prev != NO_VALUE) {
+            // former write is not sent yet, it is overwritten(write and read back are saved)
+            mSavedControlTransfers.addAndGet(2);
+        } else if ((mControlValues.get(ix) == value)
+            && mPendingControls.compareAndSet(ix, value, NO_VALUE)) {
+            // already has the value
+            mSavedControlTransfers.addAndGet(2);
+        } else {
+            sendMessage(obtainMessage(MSG_CONTROL, ix, 0));
+        }
+        mControlValues.set(ix, value);
+        return value;
     }
 
-
 //    public int resetValue(final int flag) {
 //        checkReleased();
 //        final CameraThread thread = mWeakThread.get();
@@ -294,30 +711,70 @@ abstract class AbstractUVCCameraHandler extends Handler {
 //        }
 //        throw new IllegalStateException();
 //    }
-public int resetValue(final int flag) {
-    checkReleased();
-    final CameraThread thread = mWeakThread.get();
-    final UVCCamera camera = thread != null ? thread.mUVCCamera : null;
-    if (camera != null) {
+    /**
+     * set the control to the default value of this app
+     * @param flag one of PU_BRIGHTNESS, PU_CONTRAST, PU_GAMMA, PU_GAIN and PU_SHARPNESS
+     * @return
+     */
+    public int resetValue(final int flag) {
+        return setValue(flag, CONTROL_DEFAULTS[controlIndex(flag)]);
+    }
+
+    /**
+     * number of USB control transfers that were issued by #getValue/#setValue
+     * @return
+     */
+    public long getControlTransfers() {
+        return mControlTransfers.get();
+    }
+
+    /**
+     * number of USB control transfers(write and read back) that were avoided because
+     * queued write was overwritten by newer one or the control already had the value
+     * @return
+     */
+    public long getSavedControlTransfers() {
+        return mSavedControlTransfers.get();
+    }
+
+    private static int controlIndex(final int flag) {
+        for (int i = 0; i < CONTROLS.length; i++) {
+            if (CONTROLS[i] == flag) return i;
+        }
+        throw new IllegalStateException("unsupported control:" + flag);
+    }
+
+    private int readControl(final UVCCamera camera, final int ix) {
+        mControlTransfers.incrementAndGet();
+        final int flag = CONTROLS[ix];
         if (flag == UVCCamera.PU_BRIGHTNESS) {
-            camera.setBrightness(30);
             return camera.getBrightness();
         } else if (flag == UVCCamera.PU_CONTRAST) {
-            camera.setContrast(60);
             return camera.getContrast();
         } else if (flag == UVCCamera.PU_GAMMA) {
-            camera.setGamma(30);
             return camera.getGamma();
         } else if (flag == UVCCamera.PU_GAIN) {
-            camera.setGain(40);
             return camera.getGain();
-        } else if (flag == UVCCamera.PU_SHARPNESS) {
-            camera.setSharpness(70);
+        } else {
             return camera.getSharpness();
         }
     }
-    throw new IllegalStateException();
-}
+
+    private void writeControl(final UVCCamera camera, final int ix, final int value) {
+        mControlTransfers.incrementAndGet();
+        final int flag = CONTROLS[ix];
+        if (flag == UVCCamera.PU_BRIGHTNESS) {
+            camera.setBrightness(value);
+        } else if (flag == UVCCamera.PU_CONTRAST) {
+            camera.setContrast(value);
+        } else if (flag == UVCCamera.PU_GAMMA) {
+            camera.setGamma(value);
+        } else if (flag == UVCCamera.PU_GAIN) {
+            camera.setGain(value);
+        } else {
+            camera.setSharpness(value);
+        }
+    }
 
     @Override
     public void handleMessage(final Message msg) {
@@ -351,6 +808,18 @@ public int resetValue(final int flag) {
             case MSG_RELEASE:
                 thread.handleRelease();
                 break;
+            case MSG_FRAME_CALLBACK:
+                thread.handleUpdateFrameCallback();
+                break;
+            case MSG_METRICS:
+                handleMetrics();
+                break;
+            case MSG_RESIZE:
+                thread.handleResize(msg.arg1, msg.arg2);
+                break;
+            case MSG_CONTROL:
+                handleControl(thread, msg.arg1);
+                break;
             default:
                 throw new RuntimeException("unsupported message:what=" + msg.what);
         }
@@ -364,16 +833,25 @@ public int resetValue(final int flag) {
         private final WeakReference<CameraViewInterface> mWeakCameraView;
         private final int mEncoderType;
         private final Set<CameraCallback> mCallbacks = new CopyOnWriteArraySet<CameraCallback>();
+        /**
+         * callbacks that receive NV21 frames, e.g. for lens detection
+         */
+        private final Set<IFrameCallback> mFrameCallbacks = new CopyOnWriteArraySet<IFrameCallback>();
         private int mWidth, mHeight, mPreviewMode;
         private float mBandwidthFactor;
         private boolean mIsPreviewing;
         private boolean mIsRecording;
+        /**
+         * surface that preview is rendered into, kept to restart preview after resizing
+         */
+        private Object mPreviewSurface;
         /**
          * shutter sound
          */
         private SoundPool mSoundPool;
         private int mSoundId;
         private AbstractUVCCameraHandler mHandler;
+        private final StillImageWriter mStillWriter = new StillImageWriter();
         /**
          * for accessing UVC camera
          */
@@ -473,6 +951,7 @@ public int resetValue(final int flag) {
                 synchronized (mSync) {
                     mUVCCamera = camera;
                 }
+                mHandler.loadControls(camera);
                 callOnOpen();
             } catch (final Exception e) {
                 callOnError(e);
@@ -489,6 +968,7 @@ public int resetValue(final int flag) {
                 mUVCCamera = null;
             }
             if (camera != null) {
+                mHandler.clearControls();
                 camera.stopPreview();
                 camera.destroy();
                 callOnClose();
@@ -499,29 +979,92 @@ public int resetValue(final int flag) {
             if (DEBUG) Log.v(TAG_THREAD, "handleStartPreview:");
             if ((mUVCCamera == null) || mIsPreviewing) return;
             try {
-                mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, mPreviewMode, mBandwidthFactor);
-            } catch (final IllegalArgumentException e) {
+                setPreviewSize(mWidth, mHeight);
+            } catch (final IllegalArgumentException e1) {
+                callOnError(e1);
+                return;
+            }
+            mPreviewSurface = surface;
+            startPreview(surface);
+            synchronized (mSync) {
+                mIsPreviewing = true;
+            }
+            handleUpdateFrameCallback();
+            callOnStartPreview();
+        }
+
+        /**
+         * stop the stream, renegotiate preview size and restart the stream into same surface
+         * @param width
+         * @param height
+         */
+        public void handleResize(final int width, final int height) {
+            if (DEBUG) Log.v(TAG_THREAD, "handleResize:" + width + "x" + height);
+            if ((width == mWidth) && (height == mHeight)) return;
+            if (mMuxer != null) {
+                // encoders were created with current size
+                callOnError(new IllegalStateException("can't resize while recording"));
+                return;
+            }
+            final boolean previewing = mIsPreviewing && (mUVCCamera != null);
+            if (previewing) {
+                mUVCCamera.stopPreview();
                 try {
-                    // fallback to YUV mode
-                    mUVCCamera.setPreviewSize(mWidth, mHeight, 1, 31, UVCCamera.DEFAULT_PREVIEW_MODE, mBandwidthFactor);
-                } catch (final IllegalArgumentException e1) {
-                    callOnError(e1);
+                    setPreviewSize(width, height);
+                } catch (final IllegalArgumentException e) {
+                    // restart with previous size
+                    try {
+                        setPreviewSize(mWidth, mHeight);
+                        startPreview(mPreviewSurface);
+                        handleUpdateFrameCallback();
+                    } catch (final Exception e1) {
+                        Log.w(TAG, e1);
+                    }
+                    callOnError(e);
                     return;
                 }
             }
+            synchronized (mSync) {
+                mWidth = width;
+                mHeight = height;
+            }
+            mHandler.onResize(width, height);
+            // interval of frames is not continuous over the restart
+            mHandler.mLastFrameNs = 0;
+            mHandler.mAvgFrameIntervalNs = 0;
+            callOnResize(width, height);
+            if (previewing) {
+                startPreview(mPreviewSurface);
+                // frame callback is set again for the stream of new size
+                handleUpdateFrameCallback();
+            }
+        }
+
+        /**
+         * negotiate preview size, try YUV mode when the size is not supported with mPreviewMode
+         * @param width
+         * @param height
+         * @throws IllegalArgumentException the size is not supported
+         */
+        private void setPreviewSize(final int width, final int height) {
+            try {
+                mUVCCamera.setPreviewSize(width, height, 1, 31, mPreviewMode, mBandwidthFactor);
+            } catch (final IllegalArgumentException e) {
+                // fallback to YUV mode
+                mUVCCamera.setPreviewSize(width, height, 1, 31, UVCCamera.DEFAULT_PREVIEW_MODE, mBandwidthFactor);
+            }
+        }
+
+        private void startPreview(final Object surface) {
             if (surface instanceof SurfaceHolder) {
                 mUVCCamera.setPreviewDisplay((SurfaceHolder)surface);
-            } if (surface instanceof Surface) {
+            } else if (surface instanceof Surface) {
                 mUVCCamera.setPreviewDisplay((Surface)surface);
             } else {
                 mUVCCamera.setPreviewTexture((SurfaceTexture)surface);
             }
             mUVCCamera.startPreview();
             mUVCCamera.updateCameraParams();
-            synchronized (mSync) {
-                mIsPreviewing = true;
-            }
-            callOnStartPreview();
         }
 
         public void handleStopPreview() {
@@ -543,31 +1086,35 @@ public int resetValue(final int flag) {
             if (DEBUG) Log.v(TAG_THREAD, "handleCaptureStill:");
             final Activity parent = mWeakParent.get();
             if (parent == null) return;
-            mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
-            try {
-                //final Bitmap bitmap = mWeakCameraView.get().captureStillImage();
-                final Bitmap bitmap = bitmapOutput;
-                // get buffered output stream for saving a captured still image as a file on external storage.
-                // the file name is came from current time.
-                // You should use extension name as same as CompressFormat when calling Bitmap#compress.
-                final File outputFile = TextUtils.isEmpty(path)
-                        ? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, ".png")
-                        : new File(path);
-                final BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
-                try {
-                    try {
-                        bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
-                        os.flush();
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_MEDIA_UPDATE, outputFile.getPath()));
-                    } catch (final IOException e) {
-                    }
-                } finally {
-                    os.close();
+            final FrameSnapshotBuffer buffer = mHandler.mSnapshotBuffer;
+            final FrameSnapshotBuffer.Snapshot snapshot = buffer != null ? buffer.acquire() : null;
+            if (snapshot == null) {
+                callOnError(new IllegalStateException("no processed frame to capture"));
+                return;
+            }
+            // rendering, compression and writing run on writer thread
+            if (mStillWriter.write(buffer, snapshot, path, mStillWriterCallback)) {
+                mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
+            } else {
+                callOnError(new IllegalStateException("still image writer is busy"));
+            }
+        }
+
+        private final StillImageWriter.Callback mStillWriterCallback = new StillImageWriter.Callback() {
+            @Override
+            public void onWritten(final String path) {
+                final AbstractUVCCameraHandler handler = mHandler;
+                if (handler != null) {
+                    handler.sendMessage(handler.obtainMessage(MSG_MEDIA_UPDATE, path));
                 }
-            } catch (final Exception e) {
+                callOnCaptureStill(path);
+            }
+
+            @Override
+            public void onError(final Exception e) {
                 callOnError(e);
             }
-        }
+        };
 
         public void handleStartRecording() {
             if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
@@ -593,13 +1140,11 @@ public int resetValue(final int flag) {
                 }
                 muxer.prepare();
                 muxer.startRecording();
-                if (videoEncoder != null) {
-                    mUVCCamera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
-                }
                 synchronized (mSync) {
                     mMuxer = muxer;
                     mVideoEncoder = videoEncoder;
                 }
+                handleUpdateFrameCallback();
                 callOnStartRecording();
             } catch (final IOException e) {
                 callOnError(e);
@@ -625,7 +1170,7 @@ public int resetValue(final int flag) {
             }
             if (muxer != null) {
                 muxer.stopRecording();
-                mUVCCamera.setFrameCallback(null, 0);
+                handleUpdateFrameCallback();
                 // you should not wait here
                 callOnStopRecording();
             }
@@ -635,16 +1180,59 @@ public int resetValue(final int flag) {
             @Override
             public void onFrame(final ByteBuffer frame) {
                 final MediaVideoBufferEncoder videoEncoder;
+                final AbstractUVCCameraHandler handler;
                 synchronized (mSync) {
                     videoEncoder = mVideoEncoder;
+                    handler = mHandler;
+                }
+                if (handler != null) {
+                    handler.onFrameDelivered();
                 }
                 if (videoEncoder != null) {
-                    videoEncoder.frameAvailableSoon();
+                    final boolean accepted = videoEncoder.frameAvailableSoon();
                     videoEncoder.encode(frame);
+                    if (handler != null) {
+                        (accepted ? handler.mEncodedFrames : handler.mEncoderDroppedFrames).incrementAndGet();
+                    }
+                }
+                if (mFrameCallbacks.isEmpty()) return;
+                for (final IFrameCallback callback: mFrameCallbacks) {
+                    try {
+                        frame.clear();
+                        callback.onFrame(frame);
+                    } catch (final Exception e) {
+                        mFrameCallbacks.remove(callback);
+                        Log.w(TAG, e);
+                    }
                 }
             }
         };
 
+        /**
+         * set/clear NV21 frame callback of UVCCamera
+         * depending on whether MediaVideoBufferEncoder or frame callbacks need frames,
+         * RAW frame callback is set only to count frames while metrics callback is set
+         */
+        public void handleUpdateFrameCallback() {
+            final UVCCamera camera;
+            final boolean needFrame;
+            final boolean needMetrics;
+            synchronized (mSync) {
+                camera = mUVCCamera;
+                needFrame = (mVideoEncoder != null) || !mFrameCallbacks.isEmpty();
+                needMetrics = (mHandler != null) && (mHandler.mMetricsCallback != null);
+            }
+            if (camera != null) {
+                if (needFrame) {
+                    camera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
+                } else if (needMetrics) {
+                    camera.setFrameCallback(mIFrameCallback, UVCCamera.PIXEL_FORMAT_RAW);
+                } else {
+                    camera.setFrameCallback(null, 0);
+                }
+            }
+        }
+
         public void handleUpdateMedia(final String path) {
             if (DEBUG) Log.v(TAG_THREAD, "handleUpdateMedia:path=" + path);
             final Activity parent = mWeakParent.get();
@@ -672,6 +1260,7 @@ public int resetValue(final int flag) {
             mCallbacks.clear();
             if (!mIsRecording) {
                 mHandler.mReleased = true;
+                mStillWriter.release();
                 Looper.myLooper().quit();
             }
             if (DEBUG) Log.v(TAG_THREAD, "handleRelease:finished");
@@ -855,6 +1444,28 @@ public int resetValue(final int flag) {
             }
         }
 
+        private void callOnCaptureStill(final String path) {
+            for (final CameraCallback callback: mCallbacks) {
+                try {
+                    callback.onCaptureStill(path);
+                } catch (final Exception e) {
+                    mCallbacks.remove(callback);
+                    Log.w(TAG, e);
+                }
+            }
+        }
+
+        private void callOnResize(final int width, final int height) {
+            for (final CameraCallback callback: mCallbacks) {
+                try {
+                    callback.onResize(width, height);
+                } catch (final Exception e) {
+                    mCallbacks.remove(callback);
+                    Log.w(TAG, e);
+                }
+            }
+        }
+
         private void callOnError(final Exception e) {
             for (final CameraCallback callback: mCallbacks) {
                 try {
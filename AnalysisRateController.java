@@ -0,0 +1,124 @@
+package com.serenegiant.opencvwithuvc;
+
+/**
+ * scheduler of frames to analyze that lowers analysis rate while the scene has no candidates
+ * frames are analyzed at max rate while recent frames have candidates that passed
+ * size/aspect/area filters of LensDetector, when no candidate was found for idle delay
+ * (hysteresis, so that short gaps do not toggle the rate) frames are analyzed at min rate.
+ * analysis returns to max rate on the first frame that has candidates.
+ * #shouldAnalyze is called on the thread of the frame source,
+ * #onAnalyzed is called on detection thread.
+ * this does not depend on Android.
+ */
+public final class AnalysisRateController {
+    private final long mActiveIntervalNs;
+    private final long mIdleIntervalNs;
+    private final long mIdleDelayNs;
+    /**
+     * updated on detection thread
+     */
+    private volatile boolean mIdle;
+    private volatile boolean mPinned;
+    private boolean mStarted;
+    private long mLastCandidateNs;
+    private volatile long mAnalyzed;
+    /**
+     * updated on the thread of the frame source
+     */
+    private boolean mWasIdle;
+    private boolean mScheduled;
+    private long mNextNs;
+    private volatile long mSkipped;
+
+    /**
+     * @param minRate analysis rate[fps] while the scene has no candidates
+     * @param maxRate analysis rate[fps] while the scene has candidates,
+     *                0: analyze all frames that come from the source
+     * @param idleDelayMs analysis rate drops to min rate after no candidate was found for this
+     */
+    public AnalysisRateController(final float minRate, final float maxRate, final long idleDelayMs) {
+        if ((minRate <= 0) || ((maxRate > 0) && (maxRate < minRate))) {
+            throw new IllegalArgumentException("invalid rate:min=" + minRate + ",max=" + maxRate);
+        }
+        if (idleDelayMs < 0) {
+            throw new IllegalArgumentException("invalid idle delay:" + idleDelayMs);
+        }
+        mActiveIntervalNs = maxRate > 0 ? (long)(1000000000L / maxRate) : 0;
+        mIdleIntervalNs = (long)(1000000000L / minRate);
+        mIdleDelayNs = idleDelayMs * 1000000L;
+    }
+
+    /**
+     * whether the frame should be analyzed, skipped frames are counted
+     * @param timestampNs timestamp of the frame
+     * @return
+     */
+    public boolean shouldAnalyze(final long timestampNs) {
+        final boolean idle = mIdle && !mPinned;
+        if (mWasIdle && !idle) {
+            // candidate was found, analyze next frame without waiting for idle interval
+            mScheduled = false;
+        }
+        mWasIdle = idle;
+        final long interval = idle ? mIdleIntervalNs : mActiveIntervalNs;
+        if (mScheduled && (timestampNs < mNextNs)) {
+            mSkipped++;
+            return false;
+        }
+        // keep average rate with jitter of timestamps, but do not catch up after long gap
+        if (!mScheduled || (timestampNs - mNextNs > interval)) {
+            mNextNs = timestampNs;
+        }
+        mNextNs += interval;
+        mScheduled = true;
+        return true;
+    }
+
+    /**
+     * update analysis rate with the result of analyzed frame
+     * @param timestampNs timestamp of the frame
+     * @param candidates number of candidates that passed size/aspect/area filters
+     */
+    public void onAnalyzed(final long timestampNs, final int candidates) {
+        mAnalyzed++;
+        if (!mStarted || (candidates > 0)) {
+            // first frame is treated as if it had candidates so that scan starts at max rate
+            mStarted = true;
+            mLastCandidateNs = timestampNs;
+        }
+        mIdle = (candidates == 0) && (timestampNs - mLastCandidateNs >= mIdleDelayNs);
+    }
+
+    /**
+     * keep max rate regardless of candidates, e.g. while camera controls are swept
+     * @param pinned
+     */
+    public void setPinned(final boolean pinned) {
+        mPinned = pinned;
+    }
+
+    /**
+     * whether frames are analyzed at min rate now
+     * @return
+     */
+    public boolean isIdle() {
+        return mIdle && !mPinned;
+    }
+
+    /**
+     * number of frames that were analyzed(#onAnalyzed was called), frames that passed
+     * #shouldAnalyze but were dropped before detection(e.g. detection was busy) are not counted
+     * @return
+     */
+    public long getAnalyzedCount() {
+        return mAnalyzed;
+    }
+
+    /**
+     * number of frames that were skipped to lower analysis rate
+     * @return
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+}
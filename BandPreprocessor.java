@@ -0,0 +1,259 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * GaussianBlur -> adaptiveThreshold -> morphology open of LensDetector
+ * this splits the frame into horizontal bands and processes them in parallel
+ * on DetectorForkJoinPool. each band is processed with halo rows that are wide enough
+ * for the blur kernel, threshold block and twice of the morphology kernel.
+ * the output is not bit identical to the serial pipeline, GaussianBlur/adaptiveThreshold
+ * of a band are not bit exact with the call on whole frame and a few scattered pixels
+ * (about 0.01% of the frame) differ, BandPreprocessorTest of benchmark module bounds them.
+ * tasks of the bands are allocated when the band layout
+ * changes and reused by ForkJoinTask#reinitialize, so no task is allocated per frame.
+ * this class is not thread safe.
+ */
+final class BandPreprocessor {
+    /**
+     * minimum number of rows of one band excluding halo
+     */
+    private static final int MIN_BAND_ROWS = 64;
+
+    private final Size mBlurSize;
+    private final double mBlurSigma;
+    private final int mBlockSize;
+    private final double mThresholdC;
+    private final Mat mKernel;
+    private final int mHalo;
+    /**
+     * working Mat of each band, reused between frames
+     */
+    private Mat[] mBandMats = new Mat[0];
+    /**
+     * tasks of each band, reused between frames by ForkJoinTask#reinitialize
+     */
+    private BandTask[] mTasks = new BandTask[0];
+    private int mLayoutRows;
+    /**
+     * fixed number of bands for tests, 0: decided by parallelism and rows
+     */
+    private int mBands;
+    /**
+     * number of submat headers that were created per frame, for tests
+     */
+    private long mCreatedMats;
+    private volatile boolean mParallel = true;
+    private volatile StageStats mStats;
+
+    /**
+     * @param blurSize kernel size of GaussianBlur
+     * @param blurSigma
+     * @param blockSize block size of adaptiveThreshold, should be odd
+     * @param thresholdC
+     * @param kernel structuring element for morphology open
+     */
+    BandPreprocessor(final Size blurSize, final double blurSigma,
+        final int blockSize, final double thresholdC, final Mat kernel) {
+
+        mBlurSize = blurSize;
+        mBlurSigma = blurSigma;
+        mBlockSize = blockSize;
+        mThresholdC = thresholdC;
+        mKernel = kernel;
+        // rows that are affected by the border of band:
+        // blur radius + threshold block radius + erode radius + dilate radius
+        mHalo = ((int)blurSize.height / 2) + (blockSize / 2) + (kernel.rows() / 2) * 2;
+    }
+
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * @param stats latency of each stage is recorded into this, can be null
+     */
+    public void setStats(final StageStats stats) {
+        mStats = stats;
+    }
+
+    public int getHalo() {
+        return mHalo;
+    }
+
+    /**
+     * number of submat headers that were created per frame since this was created,
+     * three per band when the frame is processed by bands
+     * @return
+     */
+    long getCreatedMats() {
+        return mCreatedMats;
+    }
+
+    public void release() {
+        for (final Mat mat: mBandMats) {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+        mBandMats = new Mat[0];
+        mTasks = new BandTask[0];
+    }
+
+    /**
+     * use fixed number of bands regardless of parallelism, for tests
+     * @param bands 0: decided by parallelism and rows
+     */
+    void setBands(final int bands) {
+        mBands = bands;
+    }
+
+    /**
+     * @param gray single channel 8 bit image
+     * @param binary output, will be (re)allocated to the same size as gray
+     */
+    public void process(final Mat gray, final Mat binary) {
+        final long start = System.nanoTime();
+        final int rows = gray.rows();
+        final int numBands = !mParallel ? 1 : (mBands > 0 ? mBands
+            : Math.min(DetectorForkJoinPool.getParallelism(), rows / MIN_BAND_ROWS));
+        if (numBands <= 1) {
+            preprocess(gray, binary);
+        } else {
+            processBands(gray, binary, numBands);
+        }
+        final StageStats stats = mStats;
+        if (stats != null) {
+            stats.record(StageStats.STAGE_PREPROCESS, System.nanoTime() - start);
+        }
+    }
+
+    private void processBands(final Mat gray, final Mat binary, final int numBands) {
+        final int rows = gray.rows();
+        binary.create(rows, gray.cols(), gray.type());
+        if ((mTasks.length != numBands) || (mLayoutRows != rows)) {
+            layout(rows, numBands);
+        }
+        for (final BandTask task: mTasks) {
+            task.set(gray, binary);
+        }
+        mCreatedMats += 3 * numBands;
+        try {
+            mRootTask.reinitialize();
+            DetectorForkJoinPool.get().invoke(mRootTask);
+        } finally {
+            for (final BandTask task: mTasks) {
+                task.set(null, null);
+            }
+        }
+    }
+
+    /**
+     * create tasks and working Mats of the bands, these are reused while number of bands
+     * and rows of the frame are not changed
+     * @param rows
+     * @param numBands
+     */
+    private void layout(final int rows, final int numBands) {
+        if (mBandMats.length != numBands) {
+            release();
+            mBandMats = new Mat[numBands];
+            for (int i = 0; i < numBands; i++) {
+                mBandMats[i] = new Mat();
+            }
+        }
+        mTasks = new BandTask[numBands];
+        for (int i = 0; i < numBands; i++) {
+            final int top = rows * i / numBands;
+            final int bottom = rows * (i + 1) / numBands;
+            mTasks[i] = new BandTask(mBandMats[i], top, bottom);
+        }
+        mLayoutRows = rows;
+    }
+
+    /**
+     * fork/join root that processes all bands of the frame
+     */
+    private final RecursiveAction mRootTask = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            final BandTask[] tasks = mTasks;
+            for (final BandTask task: tasks) {
+                task.reinitialize();
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+    };
+
+    /**
+     * serial pipeline, same as former MainActivity#onFrame
+     * @param src
+     * @param dst
+     */
+    private void preprocess(final Mat src, final Mat dst) {
+        final StageStats stats = mStats;
+        final long t0 = System.nanoTime();
+        Imgproc.GaussianBlur(src, dst, mBlurSize, mBlurSigma);
+        final long t1 = System.nanoTime();
+        Imgproc.adaptiveThreshold(dst, dst, 255,
+            Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, mBlockSize, mThresholdC);
+        final long t2 = System.nanoTime();
+        Imgproc.morphologyEx(dst, dst, Imgproc.MORPH_OPEN, mKernel);
+        if (stats != null) {
+            stats.record(StageStats.STAGE_BLUR, t1 - t0);
+            stats.record(StageStats.STAGE_THRESHOLD, t2 - t1);
+            stats.record(StageStats.STAGE_OPEN, System.nanoTime() - t2);
+        }
+    }
+
+    private final class BandTask extends RecursiveAction {
+        // never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final Mat mWork;
+        private final int mTop, mBottom;
+        /**
+         * input and output of current frame, set before the task is invoked
+         */
+        private Mat mGray, mBinary;
+
+        private BandTask(final Mat work, final int top, final int bottom) {
+            mWork = work;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        private void set(final Mat gray, final Mat binary) {
+            mGray = gray;
+            mBinary = binary;
+        }
+
+        @Override
+        protected void compute() {
+            final int cols = mGray.cols();
+            final int haloTop = Math.max(0, mTop - mHalo);
+            final int haloBottom = Math.min(mGray.rows(), mBottom + mHalo);
+            // border rows of the band that touch the image border are processed
+            // with the same border extrapolation as the whole image
+            final Mat src = mGray.submat(haloTop, haloBottom, 0, cols);
+            try {
+                preprocess(src, mWork);
+            } finally {
+                src.release();
+            }
+            final Mat inner = mWork.submat(mTop - haloTop, mBottom - haloTop, 0, cols);
+            final Mat dst = mBinary.submat(mTop, mBottom, 0, cols);
+            try {
+                inner.copyTo(dst);
+            } finally {
+                inner.release();
+                dst.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.util.Locale;
+
+/**
+ * snapshot of data flow metrics of AbstractUVCCameraHandler
+ * counts are cumulative since the handler was created,
+ * rates are calculated from previous snapshot.
+ * delivered frames that do not reach rendered/detection side mean processing stalls,
+ * gaps between delivered frames(estimated dropped frames) mean USB bandwidth stalls.
+ * dropped frames and per surface frames are estimates, neither the camera nor RendererHolder
+ * reports them directly.
+ */
+public final class CameraMetrics {
+    private final long mTimestampNs;
+    private final long mDeliveredFrames;
+    private final long mRenderedFrames;
+    private final long mEncodedFrames;
+    private final long mEncoderDroppedFrames;
+    private final long mDroppedFrames;
+    private final int mQueueDepth;
+    private final long mControlTransfers;
+    private final long mSavedControlTransfers;
+    private final int[] mSurfaceIds;
+    private final long[] mSurfaceFrames;
+    private final float mDeliveredFps;
+    private final float mRenderedFps;
+
+    CameraMetrics(final long timestampNs,
+        final long deliveredFrames, final long renderedFrames,
+        final long encodedFrames, final long encoderDroppedFrames,
+        final long droppedFrames, final int queueDepth,
+        final long controlTransfers, final long savedControlTransfers,
+        final int[] surfaceIds, final long[] surfaceFrames,
+        final CameraMetrics previous) {
+
+        mTimestampNs = timestampNs;
+        mDeliveredFrames = deliveredFrames;
+        mRenderedFrames = renderedFrames;
+        mEncodedFrames = encodedFrames;
+        mEncoderDroppedFrames = encoderDroppedFrames;
+        mDroppedFrames = droppedFrames;
+        mQueueDepth = queueDepth;
+        mControlTransfers = controlTransfers;
+        mSavedControlTransfers = savedControlTransfers;
+        mSurfaceIds = surfaceIds;
+        mSurfaceFrames = surfaceFrames;
+        final long interval = previous != null ? timestampNs - previous.mTimestampNs : 0;
+        if (interval > 0) {
+            mDeliveredFps = (deliveredFrames - previous.mDeliveredFrames) * 1e9f / interval;
+            mRenderedFps = (renderedFrames - previous.mRenderedFrames) * 1e9f / interval;
+        } else {
+            mDeliveredFps = mRenderedFps = 0;
+        }
+    }
+
+    /**
+     * @return System#nanoTime when this snapshot was taken
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * frames that came from camera through frame callback,
+     * this is counted only while frame callback is set(encoder, frame callbacks or metrics callback)
+     * @return
+     */
+    public long getDeliveredFrames() {
+        return mDeliveredFrames;
+    }
+
+    /**
+     * frames that were rendered by RendererHolder(0 if the handler does not use it)
+     * @return
+     */
+    public long getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * frames that were passed to MediaVideoBufferEncoder
+     * @return
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * frames that MediaVideoBufferEncoder did not accept
+     * @return
+     */
+    public long getEncoderDroppedFrames() {
+        return mEncoderDroppedFrames;
+    }
+
+    /**
+     * frames estimated to be lost by camera/USB from gaps between delivered frames,
+     * a gap longer than 1.5 times of the average frame interval is counted as
+     * (gap / average interval - 1) dropped frames, so this is not exact when frame rate changes
+     * @return
+     */
+    public long getEstimatedDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * number of messages that are waiting in the queue of camera thread and are due,
+     * messages that were sent with delay(e.g. periodic metrics) are not counted until their time
+     * @return
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * USB control transfers that were issued to read/write camera controls
+     * @return
+     */
+    public long getControlTransfers() {
+        return mControlTransfers;
+    }
+
+    /**
+     * USB control transfers(write and read back) that were not issued because queued writes
+     * were coalesced or the control already had the value, cached reads are not counted
+     * @return
+     */
+    public long getSavedControlTransfers() {
+        return mSavedControlTransfers;
+    }
+
+    public int getSurfaceCount() {
+        return mSurfaceIds.length;
+    }
+
+    /**
+     * @param ix 0 - getSurfaceCount() - 1
+     * @return id of surface that was registered by addSurface
+     */
+    public int getSurfaceId(final int ix) {
+        return mSurfaceIds[ix];
+    }
+
+    /**
+     * RendererHolder does not report frames of each surface, so this is the number of frames
+     * that RendererHolder rendered since the surface was added, frames that were not drawn
+     * into this surface(e.g. while its consumer was slow) are not excluded.
+     * @param ix 0 - getSurfaceCount() - 1
+     * @return estimated frames rendered into the surface since it was added
+     */
+    public long getEstimatedSurfaceFrames(final int ix) {
+        return mSurfaceFrames[ix];
+    }
+
+    public float getDeliveredFps() {
+        return mDeliveredFps;
+    }
+
+    public float getRenderedFps() {
+        return mRenderedFps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "CameraMetrics{delivered=%d(%.1ffps),rendered=%d(%.1ffps),encoded=%d,"
+                + "encoderDropped=%d,estimatedDropped=%d,queue=%d,controls=%d(saved %d),surfaces=%d}",
+            mDeliveredFrames, mDeliveredFps, mRenderedFrames, mRenderedFps, mEncodedFrames,
+            mEncoderDroppedFrames, mDroppedFrames, mQueueDepth,
+            mControlTransfers, mSavedControlTransfers, mSurfaceIds.length);
+    }
+}
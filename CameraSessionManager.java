@@ -0,0 +1,202 @@
+package com.serenegiant.opencvwithuvc;
+
+import android.app.Activity;
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+
+import com.serenegiant.usb.USBMonitor;
+
+import org.opencv.core.Mat;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * scan with several UVC cameras at once, e.g. cameras on a USB hub
+ * each camera has its own UVCCameraHandlerMultiSurface(and CameraThread) whose NV21 frames
+ * are fed into its own Session of shared DetectionPool, so cameras never block each other
+ * and detection of all cameras is bounded by the workers of the pool.
+ * preview of these cameras is rendered only into RendererHolder of the handler,
+ * you can add display surfaces via #getHandler if you want to show them.
+ */
+public class CameraSessionManager {
+    private static final boolean DEBUG = false;
+    private static final String TAG = CameraSessionManager.class.getSimpleName();
+
+    public interface Callback {
+        /**
+         * called before frames of the camera are delivered, you can set up the stream here
+         * @param device
+         * @param stream
+         */
+        public void onSessionCreated(final UsbDevice device, final DetectionStream stream);
+
+        /**
+         * called on worker thread of DetectionPool after each frame of the camera is processed
+         * @param device
+         * @param frame processed frame, this is recycled after returning
+         * @param image single channel NV21 image of the frame
+         * @param result detected lenses, confirmed tracks when tracking is enabled
+         */
+        public void onDetected(final UsbDevice device,
+            final Frame frame, final Mat image, final DetectionResult result);
+
+        public void onError(final UsbDevice device, final Exception e);
+    }
+
+    private final WeakReference<Activity> mWeakParent;
+    private final DetectionPool mPool;
+    private final int mWidth, mHeight, mPreviewMode;
+    private final Callback mCallback;
+    private final List<CameraSession> mSessions = new ArrayList<CameraSession>();
+
+    /**
+     * @param parent
+     * @param pool pool that processes frames of all cameras, this is not shut down by #release
+     * @param width preview size of each camera
+     * @param height
+     * @param previewMode UVCCamera.FRAME_FORMAT_YUYV or UVCCamera.FRAME_FORMAT_MJPEG
+     * @param callback
+     */
+    public CameraSessionManager(final Activity parent, final DetectionPool pool,
+        final int width, final int height, final int previewMode, final Callback callback) {
+
+        mWeakParent = new WeakReference<Activity>(parent);
+        mPool = pool;
+        mWidth = width;
+        mHeight = height;
+        mPreviewMode = previewMode;
+        mCallback = callback;
+    }
+
+    /**
+     * open the camera and start scanning it
+     * @param ctrlBlock
+     * @return false if the camera is already opened or parent activity was destroyed
+     */
+    public synchronized boolean open(final USBMonitor.UsbControlBlock ctrlBlock) {
+        final Activity parent = mWeakParent.get();
+        final UsbDevice device = ctrlBlock.getDevice();
+        if ((parent == null) || (find(device) != null)) return false;
+        if (DEBUG) Log.v(TAG, "open:" + device.getDeviceName());
+        // cameraView is only used for recording, that sessions do not support
+        final UVCCameraHandlerMultiSurface handler = UVCCameraHandlerMultiSurface.createHandler(
+            parent, null, 1, mWidth, mHeight, mPreviewMode);
+        handler.open(ctrlBlock);
+        handler.startPreview();
+        final UvcFrameSource source = new UvcFrameSource(handler, Frame.FORMAT_NV21,
+            mWidth, mHeight, mWidth, mHeight);
+        final DetectionPool.Session session = mPool.open(device.getDeviceName(),
+            new DetectionThread.Callback() {
+                @Override
+                public void onDetected(final Frame frame, final Mat image, final DetectionResult result) {
+                    mCallback.onDetected(device, frame, image, result);
+                }
+
+                @Override
+                public void onError(final Exception e) {
+                    mCallback.onError(device, e);
+                }
+            });
+        // workers of the pool already occupy the cores
+        session.getStream().setParallel(false);
+        mCallback.onSessionCreated(device, session.getStream());
+        session.start(source);
+        mSessions.add(new CameraSession(device, handler, session));
+        return true;
+    }
+
+    /**
+     * stop scanning and close the camera
+     * @param device
+     * @return false if the camera was not opened by this
+     */
+    public synchronized boolean close(final UsbDevice device) {
+        final CameraSession session = find(device);
+        if (session == null) return false;
+        if (DEBUG) Log.v(TAG, "close:" + session.mSession);
+        mSessions.remove(session);
+        session.release();
+        return true;
+    }
+
+    /**
+     * stop scanning and close all cameras
+     */
+    public synchronized void closeAll() {
+        for (final CameraSession session: mSessions) {
+            if (DEBUG) Log.v(TAG, "closeAll:" + session.mSession);
+            session.release();
+        }
+        mSessions.clear();
+    }
+
+    public void release() {
+        closeAll();
+    }
+
+    public synchronized boolean contains(final UsbDevice device) {
+        return find(device) != null;
+    }
+
+    public synchronized int getCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * handler of the camera, e.g. to add display surface or to change camera controls
+     * @param device
+     * @return null if the camera was not opened by this
+     */
+    public synchronized UVCCameraHandlerMultiSurface getHandler(final UsbDevice device) {
+        final CameraSession session = find(device);
+        return session != null ? session.mHandler : null;
+    }
+
+    /**
+     * detection sessions of opened cameras, for per camera stats
+     * @return
+     */
+    public synchronized List<DetectionPool.Session> getSessions() {
+        final List<DetectionPool.Session> result
+            = new ArrayList<DetectionPool.Session>(mSessions.size());
+        for (final CameraSession session: mSessions) {
+            result.add(session.mSession);
+        }
+        return result;
+    }
+
+    private CameraSession find(final UsbDevice device) {
+        for (final CameraSession session: mSessions) {
+            if (session.mHandler.isEqual(device) || session.mDevice.equals(device)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private static final class CameraSession {
+        private final UsbDevice mDevice;
+        private final UVCCameraHandlerMultiSurface mHandler;
+        private final DetectionPool.Session mSession;
+
+        private CameraSession(final UsbDevice device,
+            final UVCCameraHandlerMultiSurface handler, final DetectionPool.Session session) {
+
+            mDevice = device;
+            mHandler = handler;
+            mSession = session;
+        }
+
+        /**
+         * frames are stopped before the camera is closed,
+         * detector is released on a worker thread of the pool
+         */
+        private void release() {
+            mSession.stop();
+            mHandler.close();
+            mHandler.release();
+        }
+    }
+}
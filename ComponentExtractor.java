@@ -0,0 +1,290 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * candidate extractor based on connected components with stats
+ * instead of tracing all contours with their points, this labels 8-connected blobs
+ * of the binary image in one pass and reads bounding rect, pixel area and centroid
+ * of every blob into primitive arrays, then applies size/aspect/area filters to them.
+ * nesting(whether the contour has parent in RETR_TREE hierarchy) is needed
+ * only when some blob can be a candidate, then 4-connected background is labelled
+ * to find holes, blob in a hole is nested and the border of a hole itself is
+ * nested candidate same as hole contour of findContours.
+ * contour area of candidates is estimated from pixel area assuming round blob,
+ * so the result is not exactly same as contour based extraction.
+ * this class is not thread safe.
+ */
+final class ComponentExtractor {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final double mMinArea, mMaxArea;
+    private final int mMaxAspectRatio;
+    private final Mat mLabels = new Mat();
+    private final Mat mStats = new Mat();
+    private final Mat mCentroids = new Mat();
+    private final Mat mInverted = new Mat();
+    private final Mat mBgLabels = new Mat();
+    private final Mat mBgStats = new Mat();
+    private final Mat mBgCentroids = new Mat();
+    private int[] mStatsBuf = new int[DEFAULT_CAPACITY * 5];
+    private int[] mBgStatsBuf = new int[DEFAULT_CAPACITY * 5];
+    private double[] mCentroidsBuf = new double[DEFAULT_CAPACITY * 2];
+    private int[] mRowBuf = new int[DEFAULT_CAPACITY];
+    private final int[] mPixel = new int[1];
+    /**
+     * labels of blobs that passed filters, resolved into candidates after background labelling
+     */
+    private int[] mBlobs = new int[DEFAULT_CAPACITY];
+    /**
+     * candidates
+     */
+    private int mCount;
+    private int[] mX, mY, mWidth, mHeight;
+    private double[] mArea;
+    private double[] mCenterX, mCenterY;
+    private boolean[] mTopLevel;
+
+    /**
+     * @param minArea min contour area of candidate
+     * @param maxArea max contour area of candidate
+     * @param maxAspectRatio max ratio of long side / short side of bounding rect(integer division)
+     */
+    ComponentExtractor(final double minArea, final double maxArea, final int maxAspectRatio) {
+        mMinArea = minArea;
+        mMaxArea = maxArea;
+        mMaxAspectRatio = maxAspectRatio;
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    public void release() {
+        mLabels.release();
+        mStats.release();
+        mCentroids.release();
+        mInverted.release();
+        mBgLabels.release();
+        mBgStats.release();
+        mBgCentroids.release();
+    }
+
+    /**
+     * extract candidates from the binary image
+     * @param binary whole binary image or region of it
+     * @param offsetX offset of binary in the frame, added to coordinates of candidates
+     * @param offsetY
+     * @return number of candidates
+     */
+    public int extract(final Mat binary, final int offsetX, final int offsetY) {
+        mCount = 0;
+        final int cols = binary.cols(), rows = binary.rows();
+        final int n = Imgproc.connectedComponentsWithStats(binary, mLabels, mStats, mCentroids,
+            8, CvType.CV_32S);
+        if (n <= 1) return 0;
+        if (mStatsBuf.length < n * 5) {
+            mStatsBuf = new int[n * 10];
+            mCentroidsBuf = new double[n * 4];
+            mBlobs = new int[n * 2];
+        }
+        mStats.get(0, 0, mStatsBuf);
+        final int[] stats = mStatsBuf;
+        // label 0 is background
+        int blobs = 0;
+        boolean mayHaveHole = false;
+        for (int i = 1; i < n; i++) {
+            final int w = stats[i * 5 + Imgproc.CC_STAT_WIDTH];
+            final int h = stats[i * 5 + Imgproc.CC_STAT_HEIGHT];
+            // polygon through pixel centers is not larger than this
+            final boolean large = (w - 1) * (h - 1) >= mMinArea;
+            if (large && isAcceptable(w, h, blobArea(stats[i * 5 + Imgproc.CC_STAT_AREA]))) {
+                mBlobs[blobs++] = i;
+            }
+            // hole that can be a candidate needs enclosing blob that is larger than it
+            mayHaveHole |= large && (w > 3) && (h > 3);
+        }
+        if ((blobs == 0) && !mayHaveHole) return 0;
+        mCentroids.get(0, 0, mCentroidsBuf);
+        // label 4-connected background to find holes
+        Core.bitwise_not(binary, mInverted);
+        final int m = Imgproc.connectedComponentsWithStats(mInverted, mBgLabels, mBgStats, mBgCentroids,
+            4, CvType.CV_32S);
+        if (mBgStatsBuf.length < m * 5) {
+            mBgStatsBuf = new int[m * 10];
+        }
+        mBgStats.get(0, 0, mBgStatsBuf);
+        final int[] bg = mBgStatsBuf;
+        for (int j = 0; j < blobs; j++) {
+            final int i = mBlobs[j];
+            final int x = stats[i * 5 + Imgproc.CC_STAT_LEFT];
+            final int y = stats[i * 5 + Imgproc.CC_STAT_TOP];
+            final int w = stats[i * 5 + Imgproc.CC_STAT_WIDTH];
+            final int h = stats[i * 5 + Imgproc.CC_STAT_HEIGHT];
+            add(x + offsetX, y + offsetY, w, h,
+                blobArea(stats[i * 5 + Imgproc.CC_STAT_AREA]),
+                mCentroidsBuf[i * 2] + offsetX, mCentroidsBuf[i * 2 + 1] + offsetY,
+                !isInHole(i, x, y, w, cols, rows));
+        }
+        // border of hole is traced on the pixels of enclosing blob, so its rect is 1 pixel larger
+        for (int i = 1; i < m; i++) {
+            if (!isHole(i, cols, rows)) continue;
+            final int w = bg[i * 5 + Imgproc.CC_STAT_WIDTH] + 2;
+            final int h = bg[i * 5 + Imgproc.CC_STAT_HEIGHT] + 2;
+            final double area = holeArea(bg[i * 5 + Imgproc.CC_STAT_AREA]);
+            if (isAcceptable(w, h, area)) {
+                final int x = bg[i * 5 + Imgproc.CC_STAT_LEFT] - 1;
+                final int y = bg[i * 5 + Imgproc.CC_STAT_TOP] - 1;
+                add(x + offsetX, y + offsetY, w, h, area,
+                    x + w / 2.0 + offsetX, y + h / 2.0 + offsetY, false);
+            }
+        }
+        return mCount;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getX(final int ix) {
+        return mX[ix];
+    }
+
+    public int getY(final int ix) {
+        return mY[ix];
+    }
+
+    public int getWidth(final int ix) {
+        return mWidth[ix];
+    }
+
+    public int getHeight(final int ix) {
+        return mHeight[ix];
+    }
+
+    /**
+     * @param ix
+     * @return estimated contour area
+     */
+    public double getArea(final int ix) {
+        return mArea[ix];
+    }
+
+    public double getCenterX(final int ix) {
+        return mCenterX[ix];
+    }
+
+    public double getCenterY(final int ix) {
+        return mCenterY[ix];
+    }
+
+    /**
+     * @param ix
+     * @return true if the candidate does not have parent in contour hierarchy
+     */
+    public boolean isTopLevel(final int ix) {
+        return mTopLevel[ix];
+    }
+
+    private boolean isAcceptable(final int width, final int height, final double area) {
+        return (Math.max(width, height) / Math.min(width, height) <= mMaxAspectRatio)
+            && (area >= mMinArea) && (area <= mMaxArea);
+    }
+
+    /**
+     * whether the blob is inside of a hole of other blob,
+     * background pixel left of the leftmost pixel of top row of the blob
+     * belongs to the background that surrounds the blob
+     */
+    private boolean isInHole(final int label,
+        final int x, final int y, final int width, final int cols, final int rows) {
+
+        if (x == 0) return false;
+        if (mRowBuf.length < width) {
+            mRowBuf = new int[width * 2];
+        }
+        mLabels.get(y, x, mRowBuf);
+        int left = x;
+        for (int i = 0; i < width; i++) {
+            if (mRowBuf[i] == label) {
+                left = x + i;
+                break;
+            }
+        }
+        mBgLabels.get(y, left - 1, mPixel);
+        return isHole(mPixel[0], cols, rows);
+    }
+
+    /**
+     * background component that does not touch the image border is hole
+     */
+    private boolean isHole(final int label, final int cols, final int rows) {
+        final int[] bg = mBgStatsBuf;
+        final int x = bg[label * 5 + Imgproc.CC_STAT_LEFT];
+        final int y = bg[label * 5 + Imgproc.CC_STAT_TOP];
+        return (x > 0) && (y > 0)
+            && (x + bg[label * 5 + Imgproc.CC_STAT_WIDTH] < cols)
+            && (y + bg[label * 5 + Imgproc.CC_STAT_HEIGHT] < rows);
+    }
+
+    /**
+     * contour of blob runs through the centers of its border pixels,
+     * so the area is about half pixel smaller in radius than pixel area
+     */
+    private static double blobArea(final int pixels) {
+        final double r = Math.sqrt(pixels / Math.PI) - 0.5;
+        return r > 0 ? Math.PI * r * r : 0;
+    }
+
+    /**
+     * contour of hole runs through the centers of pixels of enclosing blob,
+     * so the area is about half pixel larger in radius than pixel area
+     */
+    private static double holeArea(final int pixels) {
+        final double r = Math.sqrt(pixels / Math.PI) + 0.5;
+        return Math.PI * r * r;
+    }
+
+    private void add(final int x, final int y, final int width, final int height,
+        final double area, final double centerX, final double centerY, final boolean topLevel) {
+
+        if (mCount >= mX.length) {
+            grow();
+        }
+        final int ix = mCount++;
+        mX[ix] = x;
+        mY[ix] = y;
+        mWidth[ix] = width;
+        mHeight[ix] = height;
+        mArea[ix] = area;
+        mCenterX[ix] = centerX;
+        mCenterY[ix] = centerY;
+        mTopLevel[ix] = topLevel;
+    }
+
+    private void allocate(final int capacity) {
+        mX = new int[capacity];
+        mY = new int[capacity];
+        mWidth = new int[capacity];
+        mHeight = new int[capacity];
+        mArea = new double[capacity];
+        mCenterX = new double[capacity];
+        mCenterY = new double[capacity];
+        mTopLevel = new boolean[capacity];
+    }
+
+    private void grow() {
+        final int[] x = mX, y = mY, w = mWidth, h = mHeight;
+        final double[] a = mArea, cx = mCenterX, cy = mCenterY;
+        final boolean[] t = mTopLevel;
+        allocate(x.length * 2);
+        System.arraycopy(x, 0, mX, 0, mCount);
+        System.arraycopy(y, 0, mY, 0, mCount);
+        System.arraycopy(w, 0, mWidth, 0, mCount);
+        System.arraycopy(h, 0, mHeight, 0, mCount);
+        System.arraycopy(a, 0, mArea, 0, mCount);
+        System.arraycopy(cx, 0, mCenterX, 0, mCount);
+        System.arraycopy(cy, 0, mCenterY, 0, mCount);
+        System.arraycopy(t, 0, mTopLevel, 0, mCount);
+    }
+}
@@ -0,0 +1,202 @@
+package com.serenegiant.opencvwithuvc;
+
+/**
+ * scan mode that searches camera control values where lenses stand out
+ * controls are swept one by one(coordinate descent), each control is set to each level
+ * while other controls keep best values so far, and the setting that gave best score
+ * is kept. levels are percentages of the range that the camera supports,
+ * same as the values of UVCCamera#setBrightness etc.
+ * score of each setting is averaged over measure frames after settle frames:
+ * verified lenses dominate, then their brightness contrast against the frame,
+ * then candidates with saturation so that noisy settings with many blobs are not preferred.
+ * writes are asynchronous(AbstractUVCCameraHandler queues them to camera thread),
+ * next setting is written as soon as current one was measured and settle frames absorb
+ * the latency, so the sweep does not wait for round trips.
+ * #onFrame is called on detection thread, #start and #cancel can be called from any thread.
+ * this does not depend on Android.
+ */
+final class ControlSweep {
+    private static final float LENS_WEIGHT = 4;
+    private static final float CANDIDATE_SATURATION = 8;
+
+    /**
+     * access to camera controls, values are percentages of supported range
+     */
+    public interface Controls {
+        public boolean isSupported(final int control);
+        public int getValue(final int control);
+        public void setValue(final int control, final int value);
+    }
+
+    public interface Callback {
+        /**
+         * called on detection thread when the sweep finished, best values were already set
+         * @param controls swept controls
+         * @param values best value of each control
+         * @param score score of best values
+         */
+        public void onSweepFinished(final int[] controls, final int[] values, final float score);
+    }
+
+    private final Object mSync = new Object();
+    private final Controls mControls;
+    private final int[] mLevels;
+    private final int mSettleFrames, mMeasureFrames;
+    private final Callback mCallback;
+    private int[] mFlags;
+    private int[] mInitial, mBest;
+    private boolean mRunning;
+    /**
+     * index of control that is being swept, -1 while measuring initial values
+     */
+    private int mControl;
+    private int mLevel;
+    private int mFrames;
+    private float mScoreSum;
+    private float mBestScore;
+
+    /**
+     * @param controls
+     * @param levels values to try for each control
+     * @param settleFrames frames to skip after writing a setting
+     * @param measureFrames frames to measure each setting
+     * @param callback
+     */
+    ControlSweep(final Controls controls, final int[] levels,
+        final int settleFrames, final int measureFrames, final Callback callback) {
+
+        if ((levels.length == 0) || (settleFrames < 0) || (measureFrames < 1)) {
+            throw new IllegalArgumentException("invalid sweep parameters");
+        }
+        mControls = controls;
+        mLevels = levels.clone();
+        mSettleFrames = settleFrames;
+        mMeasureFrames = measureFrames;
+        mCallback = callback;
+    }
+
+    /**
+     * start sweep of the controls that the camera supports
+     * @param controls
+     * @return false if already running or no control is supported
+     */
+    public boolean start(final int[] controls) {
+        synchronized (mSync) {
+            if (mRunning) return false;
+            int n = 0;
+            final int[] supported = new int[controls.length];
+            for (final int control: controls) {
+                if (mControls.isSupported(control)) {
+                    supported[n++] = control;
+                }
+            }
+            if (n == 0) return false;
+            mFlags = new int[n];
+            mInitial = new int[n];
+            System.arraycopy(supported, 0, mFlags, 0, n);
+            for (int i = 0; i < n; i++) {
+                mInitial[i] = mControls.getValue(mFlags[i]);
+            }
+            mBest = mInitial.clone();
+            mBestScore = Float.NEGATIVE_INFINITY;
+            mControl = -1;
+            mLevel = 0;
+            mFrames = 0;
+            mScoreSum = 0;
+            mRunning = true;
+            return true;
+        }
+    }
+
+    /**
+     * stop the sweep and restore the values before #start
+     */
+    public void cancel() {
+        synchronized (mSync) {
+            if (!mRunning) return;
+            mRunning = false;
+            for (int i = 0; i < mFlags.length; i++) {
+                mControls.setValue(mFlags[i], mInitial[i]);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (mSync) {
+            return mRunning;
+        }
+    }
+
+    /**
+     * measure the frame
+     * @param result detections of the frame
+     * @param candidates number of candidates that passed size/aspect/area filters
+     * @param meanLuma average luma of the frame
+     */
+    public void onFrame(final DetectionResult result, final int candidates, final float meanLuma) {
+        final int[] controls, values;
+        final float score;
+        synchronized (mSync) {
+            if (!mRunning) return;
+            if (++mFrames <= mSettleFrames) return;
+            mScoreSum += score(result, candidates, meanLuma);
+            if (mFrames < mSettleFrames + mMeasureFrames) return;
+            final float average = mScoreSum / mMeasureFrames;
+            if (average > mBestScore) {
+                mBestScore = average;
+                if (mControl >= 0) {
+                    mBest[mControl] = mLevels[mLevel];
+                }
+            }
+            if (next()) return;
+            mRunning = false;
+            controls = mFlags.clone();
+            values = mBest.clone();
+            score = mBestScore;
+        }
+        mCallback.onSweepFinished(controls, values, score);
+    }
+
+    /**
+     * write next setting
+     * @return false if all settings were measured
+     */
+    private boolean next() {
+        for ( ; ; ) {
+            if (mControl < 0) {
+                mControl = 0;
+                mLevel = 0;
+            } else if (++mLevel >= mLevels.length) {
+                // keep best value of the control and continue with next control,
+                // both writes are settled by same frames
+                mControls.setValue(mFlags[mControl], mBest[mControl]);
+                mControl++;
+                mLevel = 0;
+            }
+            if (mControl >= mFlags.length) {
+                return false;
+            }
+            // best value was measured with current values of other controls
+            if (mLevels[mLevel] != mBest[mControl]) {
+                mControls.setValue(mFlags[mControl], mLevels[mLevel]);
+                mFrames = 0;
+                mScoreSum = 0;
+                return true;
+            }
+        }
+    }
+
+    private static float score(final DetectionResult result, final int candidates, final float meanLuma) {
+        int lenses = 0;
+        float contrast = 0;
+        final int n = result.size();
+        for (int i = 0; i < n; i++) {
+            if ((result.getKind(i) == DetectionResult.KIND_LENS) && (result.getBrightness(i) >= 0)) {
+                lenses++;
+                contrast += Math.abs(result.getBrightness(i) - meanLuma);
+            }
+        }
+        return LENS_WEIGHT * lenses + (lenses > 0 ? contrast / lenses / 255f : 0)
+            + candidates / (candidates + CANDIDATE_SATURATION);
+    }
+}
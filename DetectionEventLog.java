@@ -0,0 +1,417 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * append-only binary log of detections written through memory-mapped segment files
+ * each segment has fixed size header and fixed size records:
+ * header:  magic(int) version(int) record size(int) number of records(int)
+ * record:  timestamp(long, ms since epoch) frame(long) x, y, width, height(int)
+ *          area(float) brightness(int, average_pix) kind(int, hierarchy level) track id(int)
+ * number of records in the header is updated after each record, so records after it
+ * are ignored if the process died while writing.
+ * segments are created, mapped, flushed and unmapped on background thread
+ * (next segment is prepared when current segment becomes half full),
+ * so neither the constructor, #append nor #close waits for file I/O.
+ * records are dropped(counted by #getDropCount) if next segment is not ready yet,
+ * e.g. until first segment is mapped.
+ * this does not depend on Android. #append should be called from single thread.
+ */
+public final class DetectionEventLog {
+    private static final int MAGIC = 0x4c444556;    // "LDEV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_COUNT = 12;
+    public static final int RECORD_SIZE = 48;
+    private static final String PREFIX = "events-";
+    private static final String SUFFIX = ".log";
+
+    private final File mDir;
+    private final int mRecordsPerSegment;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * number of next segment file, only accessed on mExecutor
+     */
+    private int mNextSegment;
+    private Segment mCurrent;
+    private Future<Segment> mNext;
+    private boolean mClosed;
+    private volatile long mWritten;
+    private volatile long mDropped;
+
+    /**
+     * @param dir directory of segment files, following segments of existing ones are created
+     * @param recordsPerSegment
+     * @throws IOException
+     */
+    public DetectionEventLog(final File dir, final int recordsPerSegment) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create directory:" + dir);
+        }
+        mDir = dir;
+        mRecordsPerSegment = recordsPerSegment;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int next = 0;
+                for (final File file: listSegments(mDir)) {
+                    next = Math.max(next, segmentNumber(file) + 1);
+                }
+                mNextSegment = next;
+            }
+        });
+        // first segment is mapped on background thread too
+        prepareNext();
+    }
+
+    /**
+     * append all detections of the frame
+     * @param frame frame number
+     * @param result
+     */
+    public void append(final long frame, final DetectionResult result) {
+        final int n = result.size();
+        if ((n == 0) || mClosed) return;
+        final long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            if ((mCurrent == null) || mCurrent.isFull()) {
+                if (!rollover()) {
+                    mDropped += n - i;
+                    return;
+                }
+            }
+            mCurrent.append(timestamp, frame, result, i);
+        }
+        mWritten += n;
+    }
+
+    /**
+     * flush and unmap current segment and delete prepared next segment on background thread
+     */
+    public void close() {
+        if (mClosed) return;
+        mClosed = true;
+        closeAsync(mCurrent);
+        mCurrent = null;
+        final Future<Segment> future = mNext;
+        mNext = null;
+        if (future != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // creation was queued before this, so this does not wait
+                        final Segment next = future.get();
+                        next.close();
+                        if (!next.file.delete()) {
+                            next.file.deleteOnExit();
+                        }
+                    } catch (final Exception e) {
+                        // ignore
+                    }
+                }
+            });
+        }
+        mExecutor.shutdown();
+    }
+
+    public long getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * number of records that were dropped because next segment was not ready
+     * @return
+     */
+    public long getDropCount() {
+        return mDropped;
+    }
+
+    /**
+     * switch to prepared next segment
+     * @return false if next segment is not ready
+     */
+    private boolean rollover() {
+        if ((mNext == null) || !mNext.isDone()) {
+            prepareNext();
+            return false;
+        }
+        final Segment next;
+        try {
+            next = mNext.get();
+        } catch (final Exception e) {
+            // failed to create, try again on next call
+            mNext = null;
+            return false;
+        }
+        mNext = null;
+        closeAsync(mCurrent);
+        mCurrent = next;
+        return true;
+    }
+
+    /**
+     * flush the segment on background thread, msync of whole segment may take long time
+     * @param segment
+     */
+    private void closeAsync(final Segment segment) {
+        if (segment != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    segment.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * start creating next segment on background thread if it is not started yet
+     */
+    private void prepareNext() {
+        if ((mNext == null) && !mClosed) {
+            mNext = mExecutor.submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws Exception {
+                    return createSegment(mNextSegment++);
+                }
+            });
+        }
+    }
+
+    private Segment createSegment(final int number) throws IOException {
+        final File file = new File(mDir, String.format(Locale.US, "%s%08d%s", PREFIX, number, SUFFIX));
+        return new Segment(file, mRecordsPerSegment);
+    }
+
+    /**
+     * segment that is being written
+     */
+    private final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int count;
+
+        private Segment(final File file, final int capacity) throws IOException {
+            this.file = file;
+            this.capacity = capacity;
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+            } finally {
+                // mapping is valid after closing the channel
+                raf.close();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(HEADER_COUNT, 0);
+        }
+
+        private boolean isFull() {
+            return count >= capacity;
+        }
+
+        private void append(final long timestamp, final long frame,
+            final DetectionResult result, final int ix) {
+
+            final int pos = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putLong(pos, timestamp);
+            buffer.putLong(pos + 8, frame);
+            buffer.putInt(pos + 16, result.getX(ix));
+            buffer.putInt(pos + 20, result.getY(ix));
+            buffer.putInt(pos + 24, result.getWidth(ix));
+            buffer.putInt(pos + 28, result.getHeight(ix));
+            buffer.putFloat(pos + 32, result.getArea(ix));
+            buffer.putInt(pos + 36, result.getBrightness(ix));
+            buffer.putInt(pos + 40, result.getKind(ix));
+            buffer.putInt(pos + 44, result.getTrackId(ix));
+            buffer.putInt(HEADER_COUNT, ++count);
+            if (count == capacity / 2) {
+                prepareNext();
+            }
+        }
+
+        private void close() {
+            buffer.force();
+        }
+    }
+
+    private static File[] listSegments(final File dir) {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                final String name = file.getName();
+                return file.isFile() && name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) return new File[0];
+        // zero padded numbers, so name order is segment order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int segmentNumber(final File file) {
+        final String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * filter of records for Reader#scan
+     */
+    public interface Filter {
+        public boolean accept(final Record record);
+    }
+
+    /**
+     * visitor of records for Reader#scan
+     */
+    public interface Visitor {
+        /**
+         * @param record valid only while this method is called
+         * @return false to stop scanning
+         */
+        public boolean visit(final Record record);
+    }
+
+    /**
+     * cursor of one record, reused while scanning so that scanning does not allocate per record
+     */
+    public static final class Record {
+        private MappedByteBuffer mBuffer;
+        private int mPos;
+
+        public long getTimestamp() {
+            return mBuffer.getLong(mPos);
+        }
+
+        public long getFrame() {
+            return mBuffer.getLong(mPos + 8);
+        }
+
+        public int getX() {
+            return mBuffer.getInt(mPos + 16);
+        }
+
+        public int getY() {
+            return mBuffer.getInt(mPos + 20);
+        }
+
+        public int getWidth() {
+            return mBuffer.getInt(mPos + 24);
+        }
+
+        public int getHeight() {
+            return mBuffer.getInt(mPos + 28);
+        }
+
+        public float getArea() {
+            return mBuffer.getFloat(mPos + 32);
+        }
+
+        public int getBrightness() {
+            return mBuffer.getInt(mPos + 36);
+        }
+
+        /**
+         * @return DetectionResult.KIND_LENS or KIND_NESTED
+         */
+        public int getKind() {
+            return mBuffer.getInt(mPos + 40);
+        }
+
+        public int getTrackId() {
+            return mBuffer.getInt(mPos + 44);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d\t%d\t%d\t%d\t%d\t%d\t%.1f\t%d\t%d\t%d",
+                getTimestamp(), getFrame(), getX(), getY(), getWidth(), getHeight(),
+                getArea(), getBrightness(), getKind(), getTrackId());
+        }
+    }
+
+    /**
+     * reader of segments in the directory
+     */
+    public static final class Reader {
+        private final File mDir;
+
+        public Reader(final File dir) {
+            mDir = dir;
+        }
+
+        /**
+         * visit records that pass the filter in the order they were written
+         * @param filter null: visit all records
+         * @param visitor
+         * @return number of visited records
+         * @throws IOException
+         */
+        public long scan(final Filter filter, final Visitor visitor) throws IOException {
+            final Record record = new Record();
+            long visited = 0;
+            for (final File file: listSegments(mDir)) {
+                final MappedByteBuffer buffer = map(file);
+                if (buffer == null) continue;
+                record.mBuffer = buffer;
+                final int n = Math.min(buffer.getInt(HEADER_COUNT),
+                    (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+                for (int i = 0; i < n; i++) {
+                    record.mPos = HEADER_SIZE + i * RECORD_SIZE;
+                    if ((filter == null) || filter.accept(record)) {
+                        visited++;
+                        if (!visitor.visit(record)) {
+                            return visited;
+                        }
+                    }
+                }
+            }
+            return visited;
+        }
+
+        /**
+         * map the segment read only
+         * @param file
+         * @return null if the file is not a segment of this version
+         * @throws IOException
+         */
+        private static MappedByteBuffer map(final File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final long size = raf.length();
+                if (size < HEADER_SIZE) return null;
+                final MappedByteBuffer buffer
+                    = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)
+                    || (buffer.getInt(8) != RECORD_SIZE)) {
+                    return null;
+                }
+                return buffer;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.serenegiant.opencvwithuvc;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+
+/**
+ * draws detected lenses with Canvas primitives on transparent surface over the camera preview
+ * only compact list of detections(DetectionResult#pack) is kept,
+ * so full frame is never converted into Bitmap to show the result.
+ * #update and #draw should be called from single thread.
+ */
+final class DetectionOverlay {
+    /**
+     * min radius and stroke width in pixels of processing frame,
+     * same as circles that were drawn into the frame
+     */
+    private static final float LENS_RADIUS = 10;
+    private static final float NESTED_RADIUS = 5;
+    private static final float STROKE_WIDTH = 4;
+    private static final float TEXT_SIZE = 22;
+
+    private int mFrameWidth, mFrameHeight;
+    private final Paint mLensPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mNestedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float[] mPacked;
+    private int mCount;
+    private float mScale;
+
+    DetectionOverlay() {
+        mLensPaint.setStyle(Paint.Style.STROKE);
+        mLensPaint.setColor(Color.GREEN);
+        mNestedPaint.setStyle(Paint.Style.STROKE);
+        mNestedPaint.setColor(Color.RED);
+        mTextPaint.setColor(Color.BLUE);
+    }
+
+    /**
+     * keep detections to draw
+     * @param result
+     * @param frameWidth size of the frame that detections are in, this can change
+     *                   when preview resolution is changed
+     * @param frameHeight
+     */
+    public void update(final DetectionResult result, final int frameWidth, final int frameHeight) {
+        mPacked = result.pack(mPacked);
+        mCount = result.size();
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+    }
+
+    /**
+     * clear the canvas and draw detections scaled to the canvas
+     * @param canvas
+     */
+    public void draw(final Canvas canvas) {
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        if (mCount == 0) return;
+        final float scaleX = canvas.getWidth() / (float)mFrameWidth;
+        final float scaleY = canvas.getHeight() / (float)mFrameHeight;
+        final float scale = Math.min(scaleX, scaleY);
+        if (scale != mScale) {
+            mScale = scale;
+            mLensPaint.setStrokeWidth(STROKE_WIDTH * scale);
+            mNestedPaint.setStrokeWidth(STROKE_WIDTH * scale);
+            mTextPaint.setTextSize(TEXT_SIZE * scale);
+        }
+        final float[] packed = mPacked;
+        for (int i = 0; i < mCount; i++) {
+            final int ix = i * DetectionResult.PACKED_STRIDE;
+            final float cx = packed[ix] * scaleX;
+            final float cy = packed[ix + 1] * scaleY;
+            final float r = packed[ix + 2];
+            if ((int)packed[ix + 4] == DetectionResult.KIND_LENS) {
+                canvas.drawCircle(cx, cy, Math.max(r, LENS_RADIUS) * scale, mLensPaint);
+                // brightness at top left of bounding rect same as former putText
+                canvas.drawText(Integer.toString((int)packed[ix + 3]),
+                    (packed[ix] - r) * scaleX, (packed[ix + 1] - r) * scaleY, mTextPaint);
+            } else {
+                canvas.drawCircle(cx, cy, Math.max(r, NESTED_RADIUS) * scale, mNestedPaint);
+            }
+        }
+    }
+}
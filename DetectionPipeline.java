@@ -0,0 +1,107 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * consumer of FrameSource that feeds frames into DetectionThread through FrameMailbox
+ * this does not depend on Android, so the detector can run on frames of ReplayFrameSource
+ * on a desktop JVM as well as on frames of live UVC camera.
+ * instance can not be restarted after #stop.
+ */
+public class DetectionPipeline implements FrameSource.Listener {
+    /**
+     * single slot mailbox, detection thread always processes latest frame
+     */
+    private final FrameMailbox mMailbox = new FrameMailbox();
+    private final DetectionThread mDetectionThread;
+    private FrameSource mSource;
+    private volatile boolean mEndOfStream;
+
+    public DetectionPipeline(final DetectionThread.Callback callback) {
+        mDetectionThread = new DetectionThread(mMailbox, callback);
+    }
+
+    /**
+     * detection thread, you can set up it before calling #start
+     * @return
+     */
+    public DetectionThread getDetectionThread() {
+        return mDetectionThread;
+    }
+
+    /**
+     * start detection thread and the source
+     * @param source
+     */
+    public synchronized void start(final FrameSource source) {
+        if (mSource != null) {
+            throw new IllegalStateException("already started");
+        }
+        mSource = source;
+        mDetectionThread.start();
+        source.start(this);
+    }
+
+    /**
+     * stop the source and terminate detection thread,
+     * detector is released on detection thread
+     */
+    public synchronized void stop() {
+        if (mSource != null) {
+            mSource.stop();
+        }
+        mDetectionThread.quit();
+    }
+
+    /**
+     * wait for detection thread to terminate after #stop
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        mDetectionThread.join();
+    }
+
+    /**
+     * called on the thread of the source, this only copies the frame into the mailbox
+     * and returns immediately, detection runs on DetectionThread
+     * frames that AnalysisRateController skipped are not copied
+     */
+    @Override
+    public void onFrame(final ByteBuffer frame,
+        final int width, final int height, final int format, final long timestampNs) {
+
+        if (frame == null) return;
+        final AnalysisRateController controller = mDetectionThread.getRateController();
+        if ((controller != null) && !controller.shouldAnalyze(timestampNs)) return;
+        final Frame f = mMailbox.obtain();
+        if (f != null) {
+            f.set(frame, width, height, format, timestampNs);
+            mMailbox.offer(f);
+        }
+    }
+
+    @Override
+    public void onEndOfStream() {
+        mEndOfStream = true;
+    }
+
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /**
+     * number of frames that came from the source
+     * @return
+     */
+    public long getOfferedCount() {
+        return mMailbox.getOfferedCount();
+    }
+
+    /**
+     * number of frames that were overwritten before detection thread took them
+     * @return
+     */
+    public long getDropCount() {
+        return mMailbox.getDropCount();
+    }
+}
@@ -0,0 +1,332 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * bounded pool of detection worker threads that is shared by frame sources of several cameras
+ * each camera has its own Session with single slot FrameMailbox(latest frame wins) and
+ * DetectionStream, so slow detection drops frames of that camera only and never queues up.
+ * sessions that have a pending frame wait in a FIFO ready queue, a session is in the queue
+ * at most once and is processed by one worker at a time(detector and tracker keep state of
+ * previous frames), then it goes to the tail of the queue if next frame already arrived.
+ * so every camera gets one frame processed per round(fairness) and throughput scales with
+ * the number of cameras until all workers are busy.
+ * workers are started lazily up to min(number of sessions, max workers).
+ * parallel mode of the detectors should be disabled since workers already occupy the cores.
+ * this does not depend on Android.
+ */
+public class DetectionPool {
+    private final Object mSync = new Object();
+    private final int mMaxWorkers;
+    private final ArrayDeque<Session> mReady = new ArrayDeque<Session>();
+    private final List<Session> mSessions = new ArrayList<Session>();
+    private final List<Thread> mWorkers = new ArrayList<Thread>();
+    private boolean mShutdown;
+
+    /**
+     * @param maxWorkers max number of worker threads, this is bounded by number of cores,
+     *                   0: same as number of cores
+     */
+    public DetectionPool(final int maxWorkers) {
+        if (maxWorkers < 0) {
+            throw new IllegalArgumentException("invalid number of workers:" + maxWorkers);
+        }
+        final int cores = DetectorForkJoinPool.getParallelism();
+        mMaxWorkers = maxWorkers > 0 ? Math.min(maxWorkers, cores) : cores;
+    }
+
+    /**
+     * create new session, you can set up its stream before calling Session#start
+     * @param name name of the session for logging, e.g. device name
+     * @param callback called on worker thread after each frame of the session is processed
+     * @return
+     */
+    public Session open(final String name, final DetectionThread.Callback callback) {
+        synchronized (mSync) {
+            if (mShutdown) {
+                throw new IllegalStateException("already shut down");
+            }
+            final Session session = new Session(name, callback);
+            mSessions.add(session);
+            if (mWorkers.size() < Math.min(mSessions.size(), mMaxWorkers)) {
+                final Thread worker = new Thread(mWorkerTask,
+                    "DetectionPool-" + mWorkers.size());
+                mWorkers.add(worker);
+                worker.start();
+            }
+            return session;
+        }
+    }
+
+    /**
+     * sessions that are not released yet
+     * @return copy of the sessions
+     */
+    public List<Session> getSessions() {
+        synchronized (mSync) {
+            return new ArrayList<Session>(mSessions);
+        }
+    }
+
+    public int getMaxWorkers() {
+        return mMaxWorkers;
+    }
+
+    public int getWorkerCount() {
+        synchronized (mSync) {
+            return mWorkers.size();
+        }
+    }
+
+    /**
+     * stop all sessions and terminate workers after they released the sessions,
+     * pool can not be used after this
+     */
+    public void shutdown() {
+        final List<Session> sessions = getSessions();
+        for (final Session session: sessions) {
+            session.stop();
+        }
+        synchronized (mSync) {
+            mShutdown = true;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * wait for workers to terminate after #shutdown
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        final List<Thread> workers;
+        synchronized (mSync) {
+            workers = new ArrayList<Thread>(mWorkers);
+        }
+        for (final Thread worker: workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * add the session to the tail of ready queue, you should hold mSync
+     */
+    private void enqueue(final Session session) {
+        session.mQueued = true;
+        session.mEnqueuedNs = System.nanoTime();
+        mReady.addLast(session);
+        mSync.notify();
+    }
+
+    /**
+     * called on the thread of the source after a frame was offered to the mailbox
+     */
+    private void schedule(final Session session) {
+        synchronized (mSync) {
+            if (!session.mQueued && !session.mBusy && !session.mClosed) {
+                enqueue(session);
+            }
+        }
+    }
+
+    private final Runnable mWorkerTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                for ( ; ; ) {
+                    final Session session;
+                    final boolean closed;
+                    synchronized (mSync) {
+                        while (mReady.isEmpty() && !mShutdown) {
+                            mSync.wait();
+                        }
+                        // sessions that were stopped by #shutdown are released before terminating
+                        if (mReady.isEmpty()) break;
+                        session = mReady.removeFirst();
+                        session.mQueued = false;
+                        session.mBusy = true;
+                        session.mWaitNs += System.nanoTime() - session.mEnqueuedNs;
+                        closed = session.mClosed;
+                    }
+                    if (!closed) {
+                        session.processPending();
+                    }
+                    final boolean release;
+                    synchronized (mSync) {
+                        session.mBusy = false;
+                        release = session.mClosed && !session.mReleased;
+                        if (release) {
+                            session.mReleased = true;
+                            mSessions.remove(session);
+                        } else if (!session.mClosed && session.mMailbox.hasPending()) {
+                            // next frame arrived while processing, wait behind other sessions
+                            enqueue(session);
+                        }
+                    }
+                    if (release) {
+                        session.mStream.release();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                // terminate
+            }
+        }
+    };
+
+    /**
+     * frames of one camera, consumer of its FrameSource
+     */
+    public final class Session implements FrameSource.Listener {
+        private final String mName;
+        private final FrameMailbox mMailbox = new FrameMailbox();
+        private final DetectionStream mStream;
+        private FrameSource mSource;
+        private volatile boolean mEndOfStream;
+        /**
+         * guarded by mSync of the pool
+         */
+        private boolean mQueued, mBusy, mClosed, mReleased;
+        private long mEnqueuedNs;
+        private volatile long mWaitNs;
+
+        private Session(final String name, final DetectionThread.Callback callback) {
+            mName = name;
+            mStream = new DetectionStream(callback);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * detection state of this session, you can set up it before calling #start
+         * @return
+         */
+        public DetectionStream getStream() {
+            return mStream;
+        }
+
+        /**
+         * start the source
+         * @param source
+         */
+        public synchronized void start(final FrameSource source) {
+            if (mSource != null) {
+                throw new IllegalStateException("already started");
+            }
+            mSource = source;
+            source.start(this);
+        }
+
+        /**
+         * stop the source and remove this session from the pool,
+         * detector is released on a worker thread
+         */
+        public void stop() {
+            synchronized (this) {
+                if (mSource != null) {
+                    mSource.stop();
+                }
+            }
+            mMailbox.close();
+            synchronized (mSync) {
+                if (mClosed) return;
+                mClosed = true;
+                if (!mQueued && !mBusy) {
+                    // let a worker release the stream
+                    enqueue(this);
+                }
+            }
+        }
+
+        /**
+         * called on the thread of the source, this only copies the frame into the mailbox
+         * and returns immediately, detection runs on a worker thread
+         * frames that AnalysisRateController skipped are not copied
+         */
+        @Override
+        public void onFrame(final ByteBuffer frame,
+            final int width, final int height, final int format, final long timestampNs) {
+
+            if (frame == null) return;
+            final AnalysisRateController controller = mStream.getRateController();
+            if ((controller != null) && !controller.shouldAnalyze(timestampNs)) return;
+            final Frame f = mMailbox.obtain();
+            if (f != null) {
+                f.set(frame, width, height, format, timestampNs);
+                mMailbox.offer(f);
+                schedule(this);
+            }
+        }
+
+        @Override
+        public void onEndOfStream() {
+            mEndOfStream = true;
+        }
+
+        public boolean isEndOfStream() {
+            return mEndOfStream;
+        }
+
+        /**
+         * called on a worker thread
+         */
+        private void processPending() {
+            final Frame frame = mMailbox.poll();
+            if (frame != null) {
+                try {
+                    mStream.process(frame);
+                } finally {
+                    mMailbox.recycle(frame);
+                }
+            }
+        }
+
+        /**
+         * number of frames that came from the source
+         * @return
+         */
+        public long getOfferedCount() {
+            return mMailbox.getOfferedCount();
+        }
+
+        /**
+         * number of frames that were overwritten before a worker took them
+         * @return
+         */
+        public long getDropCount() {
+            return mMailbox.getDropCount();
+        }
+
+        /**
+         * number of frames that were processed
+         * @return
+         */
+        public long getProcessedCount() {
+            return mStream.getProcessedCount();
+        }
+
+        /**
+         * total time that this session waited in ready queue for a free worker
+         * @return
+         */
+        public long getWaitNs() {
+            return mWaitNs;
+        }
+
+        @Override
+        public String toString() {
+            final AnalysisRateController controller = mStream.getRateController();
+            return "Session{" + mName
+                + ",offered=" + getOfferedCount()
+                + ",dropped=" + getDropCount()
+                + ",skipped=" + (controller != null ? controller.getSkippedCount() : 0)
+                + ",processed=" + getProcessedCount()
+                + ",busy=" + mStream.getBusyNs() / 1000000 + "ms"
+                + ",wait=" + mWaitNs / 1000000 + "ms"
+                + ",latency=" + mStream.getLastLatencyNs() / 1000 + "us}";
+        }
+    }
+}
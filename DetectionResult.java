@@ -0,0 +1,180 @@
+package com.serenegiant.opencvwithuvc;
+
+/**
+ * holder of detection results of one frame
+ * this uses primitive arrays and reuse them between frames
+ * to avoid allocation while detecting.
+ */
+public final class DetectionResult {
+    /**
+     * top level contour that passed brightness check, drawn as green circle
+     */
+    public static final int KIND_LENS = 0;
+    /**
+     * nested contour, drawn as small red circle
+     */
+    public static final int KIND_NESTED = 1;
+
+    /**
+     * number of floats per detection written by #pack,
+     * center x, center y, radius, brightness and kind
+     */
+    public static final int PACKED_STRIDE = 5;
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private int mCount;
+    private int[] mX, mY, mWidth, mHeight;
+    private float[] mArea;
+    private int[] mBrightness;
+    private int[] mKind;
+    private int[] mTrackId;
+
+    public DetectionResult() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DetectionResult(final int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * add detected lens
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param area contour area
+     * @param brightness average brightness of bounding rect, -1 if not checked
+     * @param kind KIND_LENS or KIND_NESTED
+     */
+    public void add(final int x, final int y, final int width, final int height,
+        final double area, final int brightness, final int kind) {
+
+        if (mCount >= mX.length) {
+            grow();
+        }
+        final int ix = mCount++;
+        mX[ix] = x;
+        mY[ix] = y;
+        mWidth[ix] = width;
+        mHeight[ix] = height;
+        mArea[ix] = (float)area;
+        mBrightness[ix] = brightness;
+        mKind[ix] = kind;
+        mTrackId[ix] = -1;
+    }
+
+    /**
+     * set id of the track that this detection belongs to
+     * @param ix
+     * @param trackId
+     */
+    public void setTrackId(final int ix, final int trackId) {
+        mTrackId[ix] = trackId;
+    }
+
+    public int getX(final int ix) {
+        return mX[ix];
+    }
+
+    public int getY(final int ix) {
+        return mY[ix];
+    }
+
+    public int getWidth(final int ix) {
+        return mWidth[ix];
+    }
+
+    public int getHeight(final int ix) {
+        return mHeight[ix];
+    }
+
+    public float getArea(final int ix) {
+        return mArea[ix];
+    }
+
+    public int getBrightness(final int ix) {
+        return mBrightness[ix];
+    }
+
+    public int getKind(final int ix) {
+        return mKind[ix];
+    }
+
+    /**
+     * @param ix
+     * @return id of track, -1 if not tracked
+     */
+    public int getTrackId(final int ix) {
+        return mTrackId[ix];
+    }
+
+    /**
+     * center x of bounding rect, same rounding as former MainActivity#onFrame
+     */
+    public int getCenterX(final int ix) {
+        return ((mX[ix] * 2) + mWidth[ix]) / 2;
+    }
+
+    /**
+     * center y of bounding rect, same rounding as former MainActivity#onFrame
+     */
+    public int getCenterY(final int ix) {
+        return ((mY[ix] * 2) + mHeight[ix]) / 2;
+    }
+
+    /**
+     * write detections into compact float array for drawing overlay
+     * each detection has PACKED_STRIDE floats, center x, center y,
+     * radius(half of longer side of bounding rect), brightness and kind
+     * @param out array to reuse, can be null
+     * @return out or new array if out is too small
+     */
+    public float[] pack(final float[] out) {
+        final float[] result = (out != null) && (out.length >= mCount * PACKED_STRIDE)
+            ? out : new float[Math.max(mX.length, mCount) * PACKED_STRIDE];
+        for (int i = 0; i < mCount; i++) {
+            final int ix = i * PACKED_STRIDE;
+            result[ix] = mX[i] + mWidth[i] / 2.0f;
+            result[ix + 1] = mY[i] + mHeight[i] / 2.0f;
+            result[ix + 2] = Math.max(mWidth[i], mHeight[i]) / 2.0f;
+            result[ix + 3] = mBrightness[i];
+            result[ix + 4] = mKind[i];
+        }
+        return result;
+    }
+
+    private void allocate(final int capacity) {
+        mX = new int[capacity];
+        mY = new int[capacity];
+        mWidth = new int[capacity];
+        mHeight = new int[capacity];
+        mArea = new float[capacity];
+        mBrightness = new int[capacity];
+        mKind = new int[capacity];
+        mTrackId = new int[capacity];
+    }
+
+    private void grow() {
+        final int[] x = mX, y = mY, w = mWidth, h = mHeight, b = mBrightness, k = mKind, t = mTrackId;
+        final float[] a = mArea;
+        allocate(x.length * 2);
+        System.arraycopy(x, 0, mX, 0, mCount);
+        System.arraycopy(y, 0, mY, 0, mCount);
+        System.arraycopy(w, 0, mWidth, 0, mCount);
+        System.arraycopy(h, 0, mHeight, 0, mCount);
+        System.arraycopy(a, 0, mArea, 0, mCount);
+        System.arraycopy(b, 0, mBrightness, 0, mCount);
+        System.arraycopy(k, 0, mKind, 0, mCount);
+        System.arraycopy(t, 0, mTrackId, 0, mCount);
+    }
+}
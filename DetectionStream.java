@@ -0,0 +1,249 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * detection state of one frame source(camera), detector, tracker and work buffers
+ * frames of one stream should be processed sequentially because the detector and the tracker
+ * keep state of previous frames, but any thread can process them.
+ * DetectionThread processes one stream on its own thread,
+ * DetectionPool processes streams of several cameras on shared worker threads.
+ */
+public class DetectionStream {
+
+    private final DetectionThread.Callback mCallback;
+    private final LensDetector mDetector = new LensDetector();
+    private final DetectionResult mResult = new DetectionResult();
+    private final LensTracker mTracker = new LensTracker();
+    private final DetectionResult mTracked = new DetectionResult();
+    private boolean mTrackingEnabled = true;
+    private final Mat mRgba = new Mat();
+    private final Mat mImage = new Mat();
+    private final Mat mYuv = new Mat();
+    private volatile long mLastLatencyNs;
+    private volatile long mProcessed;
+    private volatile long mBusyNs;
+    private volatile StageStats mStats;
+    private volatile DetectionEventLog mEventLog;
+    private volatile AnalysisRateController mRateController;
+
+    public DetectionStream(final DetectionThread.Callback callback) {
+        mCallback = callback;
+        mDetector.setTracker(mTracker);
+    }
+
+    /**
+     * set whether the detector preprocesses frame and verifies candidates in parallel
+     * @param parallel
+     */
+    public void setParallel(final boolean parallel) {
+        mDetector.setParallel(parallel);
+    }
+
+    /**
+     * set whether only the regions that changed since previous frame are processed
+     * @param incremental
+     */
+    public void setIncremental(final boolean incremental) {
+        mDetector.setIncremental(incremental);
+    }
+
+    /**
+     * set levels of coarse to fine detection, you should call this before processing frames
+     * @param levels 0: disable, 1: propose on half resolution, 2: on quarter resolution
+     */
+    public void setPyramidLevels(final int levels) {
+        mDetector.setPyramidLevels(levels);
+    }
+
+    /**
+     * set whether candidates are extracted from connected components instead of contours
+     * @param connectedComponents
+     */
+    public void setConnectedComponents(final boolean connectedComponents) {
+        mDetector.setConnectedComponents(connectedComponents);
+    }
+
+    /**
+     * replace parameters of the detector, this can be called while frames are processed
+     * and the config is applied from next frame
+     * @param config
+     */
+    public void setDetectorConfig(final DetectorConfig config) {
+        mDetector.setConfig(config);
+    }
+
+    public DetectorConfig getDetectorConfig() {
+        return mDetector.getConfig();
+    }
+
+    /**
+     * ratio of pixels that were processed on latest frame
+     * @return
+     */
+    public float getProcessedFraction() {
+        return mDetector.getProcessedFraction();
+    }
+
+    /**
+     * number of candidates that passed size/aspect/area filters on latest frame,
+     * this is consistent with the result while DetectionThread.Callback#onDetected is called
+     * @return
+     */
+    public int getCandidateCount() {
+        return mDetector.getCandidateCount();
+    }
+
+    /**
+     * average luma of latest frame
+     * @return
+     */
+    public float getMeanLuma() {
+        return mDetector.getMeanLuma();
+    }
+
+    /**
+     * set whether detections are tracked across frames,
+     * you should call this before processing frames
+     * @param enabled
+     */
+    public void setTrackingEnabled(final boolean enabled) {
+        mTrackingEnabled = enabled;
+        mDetector.setTracker(enabled ? mTracker : null);
+    }
+
+    /**
+     * set histograms to record latency of each stage of detection
+     * @param stats null: do not record
+     */
+    public void setStageStats(final StageStats stats) {
+        mStats = stats;
+        mDetector.setStageStats(stats);
+    }
+
+    /**
+     * set log to append detections of each frame(before confirmation by tracker),
+     * the log is closed when this stream is released
+     * @param log null: do not log
+     */
+    public void setEventLog(final DetectionEventLog log) {
+        mEventLog = log;
+    }
+
+    /**
+     * set scheduler that is notified of candidates of each processed frame,
+     * the consumer of the source skips frames by this before they are processed
+     * @param controller null: all frames are analyzed
+     */
+    public void setRateController(final AnalysisRateController controller) {
+        mRateController = controller;
+    }
+
+    public AnalysisRateController getRateController() {
+        return mRateController;
+    }
+
+    public LensTracker getTracker() {
+        return mTracker;
+    }
+
+    /**
+     * elapsed time from frame arrival to end of detection of latest processed frame
+     * @return
+     */
+    public long getLastLatencyNs() {
+        return mLastLatencyNs;
+    }
+
+    /**
+     * number of frames that were processed
+     * @return
+     */
+    public long getProcessedCount() {
+        return mProcessed;
+    }
+
+    /**
+     * total time that was spent in #process including the callback,
+     * this is the share of cpu time that this stream took from the threads
+     * @return
+     */
+    public long getBusyNs() {
+        return mBusyNs;
+    }
+
+    /**
+     * detect lenses in the frame and call the callback
+     * exceptions are passed to DetectionThread.Callback#onError
+     * @param frame
+     */
+    public void process(final Frame frame) {
+        final long start = System.nanoTime();
+        try {
+            detect(frame, start);
+        } catch (final Exception e) {
+            mCallback.onError(e);
+        }
+        mProcessed++;
+        mBusyNs += System.nanoTime() - start;
+    }
+
+    /**
+     * release native resources and close the event log,
+     * you should call this on the thread that processed frames after last frame
+     */
+    public void release() {
+        mDetector.release();
+        final DetectionEventLog log = mEventLog;
+        if (log != null) {
+            mEventLog = null;
+            log.close();
+        }
+        mRgba.release();
+        mImage.release();
+        mYuv.release();
+    }
+
+    private void detect(final Frame frame, final long start) {
+        final Mat image;
+        if (frame.getFormat() == Frame.FORMAT_NV21) {
+            // wrap whole NV21 frame, detector uses Y plane directly
+            mYuv.create(frame.getHeight() * 3 / 2, frame.getWidth(), CvType.CV_8UC1);
+            mYuv.put(0, 0, frame.getData());
+            mDetector.detectNV21(mYuv, mResult);
+            image = mYuv;
+        } else {
+            mRgba.create(frame.getHeight(), frame.getWidth(), CvType.CV_8UC4);
+            mRgba.put(0, 0, frame.getData());
+            // same conversion as former img_show
+            Imgproc.cvtColor(mRgba, mImage, Imgproc.COLOR_BGR2RGB);
+            mDetector.detect(mImage, mResult);
+            image = mImage;
+        }
+        final DetectionResult result;
+        if (mTrackingEnabled) {
+            mTracker.update(mResult, mTracked);
+            result = mTracked;
+        } else {
+            result = mResult;
+        }
+        final long now = System.nanoTime();
+        final StageStats stats = mStats;
+        if (stats != null) {
+            stats.record(StageStats.STAGE_DETECT, now - start);
+        }
+        mLastLatencyNs = now - frame.getTimestampNs();
+        final AnalysisRateController controller = mRateController;
+        if (controller != null) {
+            controller.onAnalyzed(frame.getTimestampNs(), mDetector.getCandidateCount());
+        }
+        final DetectionEventLog log = mEventLog;
+        if (log != null) {
+            // track ids were set by tracker
+            log.append(frame.getSequence(), mResult);
+        }
+        mCallback.onDetected(frame, image, result);
+    }
+}
@@ -0,0 +1,188 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+
+/**
+ * thread that takes latest frame from FrameMailbox and runs LensDetector,
+ * this decouples frame arrival(ImageProcessor callback thread) from detection
+ * so that unprocessed frames never queue up.
+ * detection state is held by DetectionStream, this thread processes only one stream.
+ */
+public class DetectionThread extends Thread {
+
+    public interface Callback {
+        /**
+         * called on DetectionThread(or worker thread of DetectionPool) after each frame is processed
+         * @param frame processed frame, this is recycled after returning
+         * @param image 3 channel image of the frame for FORMAT_RGBA,
+         *              single channel NV21 image for FORMAT_NV21, you can draw into this
+         * @param result detected lenses, confirmed tracks when tracking is enabled
+         */
+        public void onDetected(final Frame frame, final Mat image, final DetectionResult result);
+        public void onError(final Exception e);
+    }
+
+    private final FrameMailbox mMailbox;
+    private final DetectionStream mStream;
+
+    public DetectionThread(final FrameMailbox mailbox, final Callback callback) {
+        super("DetectionThread");
+        mMailbox = mailbox;
+        mStream = new DetectionStream(callback);
+    }
+
+    /**
+     * request to terminate this thread, native resources are released on this thread
+     */
+    public void quit() {
+        mMailbox.close();
+    }
+
+    /**
+     * detection state that this thread processes frames with
+     * @return
+     */
+    public DetectionStream getStream() {
+        return mStream;
+    }
+
+    /**
+     * set whether the detector preprocesses frame and verifies candidates in parallel
+     * @param parallel
+     */
+    public void setParallel(final boolean parallel) {
+        mStream.setParallel(parallel);
+    }
+
+    /**
+     * set whether only the regions that changed since previous frame are processed
+     * @param incremental
+     */
+    public void setIncremental(final boolean incremental) {
+        mStream.setIncremental(incremental);
+    }
+
+    /**
+     * set levels of coarse to fine detection, you should call this before starting this thread
+     * @param levels 0: disable, 1: propose on half resolution, 2: on quarter resolution
+     */
+    public void setPyramidLevels(final int levels) {
+        mStream.setPyramidLevels(levels);
+    }
+
+    /**
+     * set whether candidates are extracted from connected components instead of contours
+     * @param connectedComponents
+     */
+    public void setConnectedComponents(final boolean connectedComponents) {
+        mStream.setConnectedComponents(connectedComponents);
+    }
+
+    /**
+     * replace parameters of the detector, this can be called while this thread is running
+     * and the config is applied from next frame
+     * @param config
+     */
+    public void setDetectorConfig(final DetectorConfig config) {
+        mStream.setDetectorConfig(config);
+    }
+
+    public DetectorConfig getDetectorConfig() {
+        return mStream.getDetectorConfig();
+    }
+
+    /**
+     * ratio of pixels that were processed on latest frame
+     * @return
+     */
+    public float getProcessedFraction() {
+        return mStream.getProcessedFraction();
+    }
+
+    /**
+     * number of candidates that passed size/aspect/area filters on latest frame,
+     * this is consistent with the result while DetectionThread.Callback#onDetected is called
+     * @return
+     */
+    public int getCandidateCount() {
+        return mStream.getCandidateCount();
+    }
+
+    /**
+     * average luma of latest frame
+     * @return
+     */
+    public float getMeanLuma() {
+        return mStream.getMeanLuma();
+    }
+
+    /**
+     * set whether detections are tracked across frames,
+     * you should call this before starting this thread
+     * @param enabled
+     */
+    public void setTrackingEnabled(final boolean enabled) {
+        mStream.setTrackingEnabled(enabled);
+    }
+
+    /**
+     * set histograms to record latency of each stage of detection
+     * @param stats null: do not record
+     */
+    public void setStageStats(final StageStats stats) {
+        mStream.setStageStats(stats);
+    }
+
+    /**
+     * set log to append detections of each frame(before confirmation by tracker),
+     * the log is closed when this thread terminates
+     * @param log null: do not log
+     */
+    public void setEventLog(final DetectionEventLog log) {
+        mStream.setEventLog(log);
+    }
+
+    /**
+     * set scheduler that is notified of candidates of each processed frame,
+     * DetectionPipeline skips frames by this before they are passed to this thread
+     * @param controller null: all frames are analyzed
+     */
+    public void setRateController(final AnalysisRateController controller) {
+        mStream.setRateController(controller);
+    }
+
+    public AnalysisRateController getRateController() {
+        return mStream.getRateController();
+    }
+
+    public LensTracker getTracker() {
+        return mStream.getTracker();
+    }
+
+    /**
+     * elapsed time from frame arrival to end of detection of latest processed frame
+     * @return
+     */
+    public long getLastLatencyNs() {
+        return mStream.getLastLatencyNs();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for ( ; ; ) {
+                final Frame frame = mMailbox.take();
+                if (frame == null) break;
+                try {
+                    mStream.process(frame);
+                } finally {
+                    mMailbox.recycle(frame);
+                }
+            }
+        } catch (final InterruptedException e) {
+            // terminate
+        } finally {
+            mStream.release();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.serenegiant.opencvwithuvc;
+
+/**
+ * immutable parameters of LensDetector
+ * kernel sizes, distances and areas are given at reference resolution
+ * (640x480, the preview size that former hard-coded values were tuned for)
+ * and #resolve derives actual values for processing resolution, lengths are scaled by
+ * square root of pixel ratio and areas by pixel ratio. threshold offset, aspect ratio
+ * and brightness do not depend on resolution. resolved values at reference resolution are
+ * exactly same as former hard-coded values.
+ * this does not depend on Android.
+ */
+public final class DetectorConfig {
+    public static final int REFERENCE_WIDTH = 640;
+    public static final int REFERENCE_HEIGHT = 480;
+
+    /**
+     * default values, same as former hard-coded values
+     */
+    public static final DetectorConfig DEFAULT = new Builder().build();
+
+    private final int mReferenceWidth, mReferenceHeight;
+    private final int mBlurKernelSize;
+    private final double mBlurSigma;
+    private final int mThresholdBlockSize;
+    private final double mThresholdC;
+    private final int mMorphKernelSize;
+    private final double mApproxEpsilon;
+    private final int mMaxAspectRatio;
+    private final double mMinArea, mMaxArea;
+    private final int mMinBrightness, mMaxBrightness;
+    private final int mMaxProposalSize;
+
+    private DetectorConfig(final Builder builder) {
+        mReferenceWidth = builder.mReferenceWidth;
+        mReferenceHeight = builder.mReferenceHeight;
+        mBlurKernelSize = builder.mBlurKernelSize;
+        mBlurSigma = builder.mBlurSigma;
+        mThresholdBlockSize = builder.mThresholdBlockSize;
+        mThresholdC = builder.mThresholdC;
+        mMorphKernelSize = builder.mMorphKernelSize;
+        mApproxEpsilon = builder.mApproxEpsilon;
+        mMaxAspectRatio = builder.mMaxAspectRatio;
+        mMinArea = builder.mMinArea;
+        mMaxArea = builder.mMaxArea;
+        mMinBrightness = builder.mMinBrightness;
+        mMaxBrightness = builder.mMaxBrightness;
+        mMaxProposalSize = builder.mMaxProposalSize;
+    }
+
+    /**
+     * derive actual values for the processing resolution
+     * @param width
+     * @param height
+     * @return
+     */
+    public Resolved resolve(final int width, final int height) {
+        return new Resolved(this, width, height);
+    }
+
+    public int getReferenceWidth() {
+        return mReferenceWidth;
+    }
+
+    public int getReferenceHeight() {
+        return mReferenceHeight;
+    }
+
+    public int getBlurKernelSize() {
+        return mBlurKernelSize;
+    }
+
+    public double getBlurSigma() {
+        return mBlurSigma;
+    }
+
+    public int getThresholdBlockSize() {
+        return mThresholdBlockSize;
+    }
+
+    public double getThresholdC() {
+        return mThresholdC;
+    }
+
+    public int getMorphKernelSize() {
+        return mMorphKernelSize;
+    }
+
+    public double getApproxEpsilon() {
+        return mApproxEpsilon;
+    }
+
+    public int getMaxAspectRatio() {
+        return mMaxAspectRatio;
+    }
+
+    public double getMinArea() {
+        return mMinArea;
+    }
+
+    public double getMaxArea() {
+        return mMaxArea;
+    }
+
+    public int getMinBrightness() {
+        return mMinBrightness;
+    }
+
+    public int getMaxBrightness() {
+        return mMaxBrightness;
+    }
+
+    public int getMaxProposalSize() {
+        return mMaxProposalSize;
+    }
+
+    @Override
+    public String toString() {
+        return "DetectorConfig{reference=" + mReferenceWidth + "x" + mReferenceHeight
+            + ",blur=" + mBlurKernelSize + "/" + mBlurSigma
+            + ",threshold=" + mThresholdBlockSize + "/" + mThresholdC
+            + ",morph=" + mMorphKernelSize
+            + ",epsilon=" + mApproxEpsilon
+            + ",aspect=" + mMaxAspectRatio
+            + ",area=" + mMinArea + "-" + mMaxArea
+            + ",brightness=" + mMinBrightness + "-" + mMaxBrightness
+            + ",proposal=" + mMaxProposalSize + "}";
+    }
+
+    /**
+     * actual values for one processing resolution
+     */
+    public static final class Resolved {
+        private final DetectorConfig mConfig;
+        private final int mWidth, mHeight;
+        private final int mBlurKernelSize;
+        private final double mBlurSigma;
+        private final int mThresholdBlockSize;
+        private final int mMorphKernelSize;
+        private final double mApproxEpsilon;
+        private final double mMinArea, mMaxArea;
+        private final int mMaxProposalSize;
+
+        private Resolved(final DetectorConfig config, final int width, final int height) {
+            if ((width <= 0) || (height <= 0)) {
+                throw new IllegalArgumentException("invalid size:" + width + "x" + height);
+            }
+            mConfig = config;
+            mWidth = width;
+            mHeight = height;
+            final double ratio = ((double)width * height)
+                / ((double)config.mReferenceWidth * config.mReferenceHeight);
+            final double scale = Math.sqrt(ratio);
+            mBlurKernelSize = odd(config.mBlurKernelSize * scale, 1);
+            mBlurSigma = config.mBlurSigma * scale;
+            mThresholdBlockSize = odd(config.mThresholdBlockSize * scale, 3);
+            mMorphKernelSize = odd(config.mMorphKernelSize * scale, 1);
+            mApproxEpsilon = config.mApproxEpsilon * scale;
+            mMinArea = config.mMinArea * ratio;
+            mMaxArea = config.mMaxArea * ratio;
+            mMaxProposalSize = (int)Math.round(config.mMaxProposalSize * scale);
+        }
+
+        /**
+         * config that these values were derived from
+         * @return
+         */
+        public DetectorConfig getConfig() {
+            return mConfig;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getBlurKernelSize() {
+            return mBlurKernelSize;
+        }
+
+        public double getBlurSigma() {
+            return mBlurSigma;
+        }
+
+        public int getThresholdBlockSize() {
+            return mThresholdBlockSize;
+        }
+
+        public double getThresholdC() {
+            return mConfig.mThresholdC;
+        }
+
+        public int getMorphKernelSize() {
+            return mMorphKernelSize;
+        }
+
+        public double getApproxEpsilon() {
+            return mApproxEpsilon;
+        }
+
+        public int getMaxAspectRatio() {
+            return mConfig.mMaxAspectRatio;
+        }
+
+        public double getMinArea() {
+            return mMinArea;
+        }
+
+        public double getMaxArea() {
+            return mMaxArea;
+        }
+
+        public int getMinBrightness() {
+            return mConfig.mMinBrightness;
+        }
+
+        public int getMaxBrightness() {
+            return mConfig.mMaxBrightness;
+        }
+
+        public int getMaxProposalSize() {
+            return mMaxProposalSize;
+        }
+
+        /**
+         * round to odd integer that is not less than min
+         */
+        private static int odd(final double value, final int min) {
+            return Math.max(min, (int)Math.round(value) | 1);
+        }
+    }
+
+    /**
+     * builder of DetectorConfig, initial values are same as DEFAULT
+     */
+    public static final class Builder {
+        private int mReferenceWidth = REFERENCE_WIDTH, mReferenceHeight = REFERENCE_HEIGHT;
+        private int mBlurKernelSize = 5;
+        private double mBlurSigma = 2;
+        private int mThresholdBlockSize = 27;
+        private double mThresholdC = -15;
+        private int mMorphKernelSize = 5;
+        private double mApproxEpsilon = 3;
+        private int mMaxAspectRatio = 2;
+        private double mMinArea = 50, mMaxArea = 80;
+        private int mMinBrightness = 100, mMaxBrightness = 150;
+        private int mMaxProposalSize = 24;
+
+        public Builder() {
+        }
+
+        /**
+         * start from values of existing config
+         * @param config
+         */
+        public Builder(final DetectorConfig config) {
+            mReferenceWidth = config.mReferenceWidth;
+            mReferenceHeight = config.mReferenceHeight;
+            mBlurKernelSize = config.mBlurKernelSize;
+            mBlurSigma = config.mBlurSigma;
+            mThresholdBlockSize = config.mThresholdBlockSize;
+            mThresholdC = config.mThresholdC;
+            mMorphKernelSize = config.mMorphKernelSize;
+            mApproxEpsilon = config.mApproxEpsilon;
+            mMaxAspectRatio = config.mMaxAspectRatio;
+            mMinArea = config.mMinArea;
+            mMaxArea = config.mMaxArea;
+            mMinBrightness = config.mMinBrightness;
+            mMaxBrightness = config.mMaxBrightness;
+            mMaxProposalSize = config.mMaxProposalSize;
+        }
+
+        /**
+         * resolution that sizes and areas of this builder are given at
+         * @param width
+         * @param height
+         * @return
+         */
+        public Builder setReferenceSize(final int width, final int height) {
+            mReferenceWidth = width;
+            mReferenceHeight = height;
+            return this;
+        }
+
+        /**
+         * @param kernelSize kernel size of GaussianBlur, should be odd
+         * @param sigma
+         * @return
+         */
+        public Builder setBlur(final int kernelSize, final double sigma) {
+            mBlurKernelSize = kernelSize;
+            mBlurSigma = sigma;
+            return this;
+        }
+
+        /**
+         * @param blockSize block size of adaptiveThreshold, should be odd
+         * @param c constant that is subtracted from weighted mean
+         * @return
+         */
+        public Builder setThreshold(final int blockSize, final double c) {
+            mThresholdBlockSize = blockSize;
+            mThresholdC = c;
+            return this;
+        }
+
+        /**
+         * @param kernelSize size of elliptic structuring element for open/dilate, should be odd
+         * @return
+         */
+        public Builder setMorphKernelSize(final int kernelSize) {
+            mMorphKernelSize = kernelSize;
+            return this;
+        }
+
+        /**
+         * @param epsilon approximation accuracy of approxPolyDP in pixels
+         * @return
+         */
+        public Builder setApproxEpsilon(final double epsilon) {
+            mApproxEpsilon = epsilon;
+            return this;
+        }
+
+        /**
+         * @param ratio max ratio of long side / short side of bounding rect(integer division)
+         * @return
+         */
+        public Builder setMaxAspectRatio(final int ratio) {
+            mMaxAspectRatio = ratio;
+            return this;
+        }
+
+        /**
+         * @param min min contour area of candidate
+         * @param max max contour area of candidate
+         * @return
+         */
+        public Builder setArea(final double min, final double max) {
+            mMinArea = min;
+            mMaxArea = max;
+            return this;
+        }
+
+        /**
+         * @param min min average brightness of top level candidate
+         * @param max max average brightness of top level candidate
+         * @return
+         */
+        public Builder setBrightness(final int min, final int max) {
+            mMinBrightness = min;
+            mMaxBrightness = max;
+            return this;
+        }
+
+        /**
+         * @param size max width/height of coarse blob that PyramidProposer proposes
+         * @return
+         */
+        public Builder setMaxProposalSize(final int size) {
+            mMaxProposalSize = size;
+            return this;
+        }
+
+        public DetectorConfig build() {
+            if ((mReferenceWidth <= 0) || (mReferenceHeight <= 0)) {
+                throw new IllegalArgumentException("invalid reference size:"
+                    + mReferenceWidth + "x" + mReferenceHeight);
+            }
+            if ((mBlurKernelSize < 1) || (mMorphKernelSize < 1) || (mThresholdBlockSize < 3)) {
+                throw new IllegalArgumentException("invalid kernel size:blur=" + mBlurKernelSize
+                    + ",morph=" + mMorphKernelSize + ",block=" + mThresholdBlockSize);
+            }
+            if ((mMinArea < 0) || (mMaxArea < mMinArea)) {
+                throw new IllegalArgumentException("invalid area:" + mMinArea + "-" + mMaxArea);
+            }
+            if (mMaxBrightness < mMinBrightness) {
+                throw new IllegalArgumentException("invalid brightness:"
+                    + mMinBrightness + "-" + mMaxBrightness);
+            }
+            if ((mMaxAspectRatio < 1) || (mMaxProposalSize < 1)) {
+                throw new IllegalArgumentException("invalid aspect ratio or proposal size:"
+                    + mMaxAspectRatio + "," + mMaxProposalSize);
+            }
+            return new DetectorConfig(this);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * work stealing pool that is shared by detection tasks,
+ * parallelism is bounded by the number of cores of the device
+ */
+final class DetectorForkJoinPool {
+    private static ForkJoinPool sPool;
+
+    private DetectorForkJoinPool() {
+        // never instantiate
+    }
+
+    public static synchronized ForkJoinPool get() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(getParallelism());
+        }
+        return sPool;
+    }
+
+    public static int getParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,84 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * reusable holder of one frame image
+ * the backing array grows when needed and is reused for following frames
+ */
+public final class Frame {
+    /**
+     * RGBA8888 that came from ImageProcessor
+     */
+    public static final int FORMAT_RGBA = 0;
+    /**
+     * NV21(YUV420SP), Y plane followed by interleaved VU plane, that came from UVCCamera
+     */
+    public static final int FORMAT_NV21 = 1;
+
+    private byte[] mData = new byte[0];
+    private int mSize;
+    private int mWidth, mHeight;
+    private int mFormat;
+    private long mTimestampNs;
+    private long mSequence;
+
+    /**
+     * copy frame data from the buffer
+     * @param buffer
+     * @param width
+     * @param height
+     * @param format
+     * @param timestampNs
+     */
+    public void set(final ByteBuffer buffer,
+        final int width, final int height, final int format, final long timestampNs) {
+
+        buffer.clear();
+        final int size = buffer.remaining();
+        if (mData.length < size) {
+            mData = new byte[size];
+        }
+        buffer.get(mData, 0, size);
+        mSize = size;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mTimestampNs = timestampNs;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return System#nanoTime when this frame arrived
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /*package*/void setSequence(final long sequence) {
+        mSequence = sequence;
+    }
+}
@@ -0,0 +1,140 @@
+package com.serenegiant.opencvwithuvc;
+
+/**
+ * single slot mailbox between frame producer and detection thread,
+ * newer frame overwrites the frame that is not taken yet(latest frame wins).
+ * this holds three Frames, one for producer, one for pending and one for consumer,
+ * so producer never waits for consumer.
+ */
+public final class FrameMailbox {
+    private static final int NUM_FRAMES = 3;
+
+    private final Object mSync = new Object();
+    private final Frame[] mFree = new Frame[NUM_FRAMES];
+    private int mFreeCount;
+    private Frame mPending;
+    private boolean mClosed;
+    private long mSequence;
+    private volatile long mOffered;
+    private volatile long mDropped;
+
+    public FrameMailbox() {
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            mFree[i] = new Frame();
+        }
+        mFreeCount = NUM_FRAMES;
+    }
+
+    /**
+     * get Frame to write next frame into, you should pass it to #offer after writing
+     * @return null if closed
+     */
+    public Frame obtain() {
+        synchronized (mSync) {
+            if (mClosed || (mFreeCount == 0)) return null;
+            return mFree[--mFreeCount];
+        }
+    }
+
+    /**
+     * publish the frame, the pending frame that consumer did not take yet is dropped
+     * @param frame Frame that was obtained by #obtain
+     */
+    public void offer(final Frame frame) {
+        synchronized (mSync) {
+            if (mClosed) {
+                mFree[mFreeCount++] = frame;
+                return;
+            }
+            if (mPending != null) {
+                mFree[mFreeCount++] = mPending;
+                mDropped++;
+            }
+            frame.setSequence(mSequence++);
+            mPending = frame;
+            mOffered++;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * wait for and take latest frame, you should pass it to #recycle after processing
+     * @return null if closed
+     * @throws InterruptedException
+     */
+    public Frame take() throws InterruptedException {
+        synchronized (mSync) {
+            while (!mClosed && (mPending == null)) {
+                mSync.wait();
+            }
+            if (mClosed) return null;
+            final Frame result = mPending;
+            mPending = null;
+            return result;
+        }
+    }
+
+    /**
+     * take latest frame without waiting, you should pass it to #recycle after processing
+     * @return null if closed or no frame is pending
+     */
+    public Frame poll() {
+        synchronized (mSync) {
+            if (mClosed) return null;
+            final Frame result = mPending;
+            mPending = null;
+            return result;
+        }
+    }
+
+    /**
+     * whether a frame is waiting to be taken
+     * @return
+     */
+    public boolean hasPending() {
+        synchronized (mSync) {
+            return !mClosed && (mPending != null);
+        }
+    }
+
+    /**
+     * return the frame that was taken by #take
+     * @param frame
+     */
+    public void recycle(final Frame frame) {
+        if (frame == null) return;
+        synchronized (mSync) {
+            mFree[mFreeCount++] = frame;
+        }
+    }
+
+    /**
+     * wake up consumer and refuse following frames
+     */
+    public void close() {
+        synchronized (mSync) {
+            mClosed = true;
+            if (mPending != null) {
+                mFree[mFreeCount++] = mPending;
+                mPending = null;
+            }
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * number of frames that were offered
+     * @return
+     */
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * number of frames that were overwritten before consumer took them
+     * @return
+     */
+    public long getDropCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,214 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * multiple buffer of processed frames and their detections for still capture
+ * detection thread copies each processed frame into a slot that is neither published
+ * nor pinned and publishes it, still capture pins the latest published snapshot
+ * and reads it while following frames are written into other slots.
+ * slots are allocated on first frame and reused while the frame size is not changed,
+ * detection thread never waits for still capture, publishing is skipped
+ * only when all slots are pinned, that never happens while at most MAX_PINNED snapshots
+ * are pinned at once.
+ */
+public final class FrameSnapshotBuffer {
+    /**
+     * max number of snapshots that still capture may pin at once,
+     * StillImageWriter bounds its queue by this
+     */
+    static final int MAX_PINNED = 3;
+    /**
+     * pinned slots + latest published slot + free slot for next frame
+     */
+    private static final int NUM_SLOTS = MAX_PINNED + 2;
+
+    private static final Scalar COLOR_TEXT = new Scalar(0, 0, 255);
+    private static final Scalar COLOR_LENS = new Scalar(0, 255, 0);
+    private static final Scalar COLOR_NESTED = new Scalar(255, 0, 0);
+
+    private final Object mSync = new Object();
+    private final Snapshot[] mSlots = new Snapshot[NUM_SLOTS];
+    private Snapshot mPublished;
+    private Snapshot mWriting;
+    private boolean mClosed;
+    private long mSequence;
+    private volatile long mSkipped;
+
+    public FrameSnapshotBuffer() {
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            mSlots[i] = new Snapshot();
+        }
+    }
+
+    /**
+     * copy the frame and detections into free slot and publish it as latest snapshot
+     * @param image 3 channel image or single channel NV21 image that DetectionThread passed
+     * @param format Frame.FORMAT_RGBA or FORMAT_NV21
+     * @param result detections of the frame
+     * @param timestampNs
+     * @return false if all slots are pinned or already closed
+     */
+    public boolean publish(final Mat image, final int format,
+        final DetectionResult result, final long timestampNs) {
+
+        final Snapshot slot;
+        synchronized (mSync) {
+            slot = findFree();
+            if (slot == null) {
+                mSkipped++;
+                return false;
+            }
+            mWriting = slot;
+        }
+        image.copyTo(slot.mImage);
+        slot.mPacked = result.pack(slot.mPacked);
+        slot.mCount = result.size();
+        slot.mFormat = format;
+        slot.mTimestampNs = timestampNs;
+        synchronized (mSync) {
+            mWriting = null;
+            if (mClosed) {
+                slot.mImage.release();
+                return false;
+            }
+            slot.mSequence = mSequence++;
+            mPublished = slot;
+        }
+        return true;
+    }
+
+    /**
+     * pin the latest snapshot, you should pass it to #release after using it
+     * @return null if nothing is published yet or already closed
+     */
+    public Snapshot acquire() {
+        synchronized (mSync) {
+            if (mClosed || (mPublished == null)) return null;
+            mPublished.mPinCount++;
+            return mPublished;
+        }
+    }
+
+    /**
+     * unpin the snapshot that was acquired by #acquire
+     * @param snapshot
+     */
+    public void release(final Snapshot snapshot) {
+        if (snapshot == null) return;
+        synchronized (mSync) {
+            if ((--snapshot.mPinCount == 0) && mClosed) {
+                snapshot.mImage.release();
+            }
+        }
+    }
+
+    /**
+     * release slots, pinned slots are released when they are unpinned
+     */
+    public void close() {
+        synchronized (mSync) {
+            mClosed = true;
+            mPublished = null;
+            for (final Snapshot slot: mSlots) {
+                if ((slot.mPinCount == 0) && (slot != mWriting)) {
+                    slot.mImage.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * number of frames that were not published because all slots were pinned
+     * @return
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    private Snapshot findFree() {
+        if (mClosed) return null;
+        for (final Snapshot slot: mSlots) {
+            if ((slot != mPublished) && (slot.mPinCount == 0)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * one processed frame and its detections, contents are not changed while pinned
+     */
+    public static final class Snapshot {
+        private final Mat mImage = new Mat();
+        private float[] mPacked;
+        private int mCount;
+        private int mFormat;
+        private long mTimestampNs;
+        private long mSequence;
+        private int mPinCount;
+
+        private Snapshot() {
+        }
+
+        /**
+         * image of the frame, you should not modify this
+         * @return 3 channel image for FORMAT_RGBA, single channel NV21 image for FORMAT_NV21
+         */
+        public Mat getImage() {
+            return mImage;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        /**
+         * detections packed by DetectionResult#pack
+         * @return
+         */
+        public float[] getDetections() {
+            return mPacked;
+        }
+
+        public int getDetectionCount() {
+            return mCount;
+        }
+
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * convert the frame into 3 channel image(same channel order as img_show
+         * of former MainActivity#onFrame) and draw detections into it
+         * @param dst
+         */
+        public void render(final Mat dst) {
+            if (mFormat == Frame.FORMAT_NV21) {
+                Imgproc.cvtColor(mImage, dst, Imgproc.COLOR_YUV2BGR_NV21);
+            } else {
+                mImage.copyTo(dst);
+            }
+            for (int i = 0; i < mCount; i++) {
+                final int ix = i * DetectionResult.PACKED_STRIDE;
+                final Point center = new Point((int)mPacked[ix], (int)mPacked[ix + 1]);
+                if ((int)mPacked[ix + 4] == DetectionResult.KIND_LENS) {
+                    final float r = mPacked[ix + 2];
+                    Imgproc.putText(dst, Integer.toString((int)mPacked[ix + 3]),
+                        new Point((int)(mPacked[ix] - r), (int)(mPacked[ix + 1] - r)), 2, 1, COLOR_TEXT);
+                    Imgproc.circle(dst, center, 10, COLOR_LENS, 4);
+                } else {
+                    Imgproc.circle(dst, center, 5, COLOR_NESTED, 4);
+                }
+            }
+        }
+    }
+}
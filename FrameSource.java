@@ -0,0 +1,41 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * source of frames that the detection pipeline consumes
+ * UvcFrameSource delivers frames of live UVC camera,
+ * ReplayFrameSource delivers recorded frames from files without camera.
+ */
+public interface FrameSource {
+
+    public interface Listener {
+        /**
+         * called on the thread of the source, the frame is valid only while this call,
+         * so the listener should copy it and return immediately
+         * @param frame
+         * @param width
+         * @param height
+         * @param format Frame.FORMAT_RGBA or Frame.FORMAT_NV21
+         * @param timestampNs System#nanoTime when the frame was delivered
+         */
+        public void onFrame(final ByteBuffer frame,
+            final int width, final int height, final int format, final long timestampNs);
+
+        /**
+         * called when the source delivered all frames, live sources never call this
+         */
+        public void onEndOfStream();
+    }
+
+    /**
+     * start delivering frames to the listener
+     * @param listener
+     */
+    public void start(final Listener listener);
+
+    /**
+     * stop delivering frames, the listener is never called after returning from this
+     */
+    public void stop();
+}
@@ -0,0 +1,98 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * fixed bucket log scale histogram of latencies in nanoseconds
+ * each power of 2 range is divided into SUB_BUCKETS linear buckets,
+ * so percentiles are accurate within 1/SUB_BUCKETS(12.5%).
+ * #record does not allocate and can be called from multiple threads.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * latencies longer than 2^MAX_EXPONENT ns(about 17 seconds) go into last bucket
+     */
+    private static final int MAX_EXPONENT = 34;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(final String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void record(final long ns) {
+        mBuckets.incrementAndGet(indexOf(ns));
+        mCount.incrementAndGet();
+        long max = mMax.get();
+        while ((ns > max) && !mMax.compareAndSet(max, ns)) {
+            max = mMax.get();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return upper bound of the bucket that contains the percentile in nanoseconds,
+     *         0 if nothing is recorded
+     */
+    public long getPercentile(final double percentile) {
+        final long count = mCount.get();
+        if (count == 0) return 0;
+        final long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long sum = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            sum += mBuckets.get(i);
+            if (sum >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    private static int indexOf(final long ns) {
+        if (ns < SUB_BUCKETS) {
+            return ns > 0 ? (int)ns : 0;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(ns);
+        if (exp > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        final int sub = (int)(ns >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+        final int sub = index % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
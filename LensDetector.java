@@ -0,0 +1,1074 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * lens(hidden camera) detection pipeline that was executed in MainActivity#onFrame
+ * all working Mats are owned by this instance and reused between frames,
+ * Mats that depend on candidate size come from size keyed MatPool,
+ * so #detect does not allocate new image buffers in steady state.
+ * some Mats are still created per frame, these are counted by #getCreatedMats:
+ * findContours(java binding always converts the result) creates a MatOfPoint per contour
+ * that owns native buffer of its points and a temporary Mat per contour,
+ * for the whole frame/region and for each candidate in #isSingleBlob,
+ * and submat headers(that share the buffer of the parent) are created per candidate
+ * in #isSingleBlob, per region in #processRegion and per band in BandPreprocessor.
+ * LensDetectorSteadyStateTest of benchmark module checks that no other Mat is created.
+ * blur/threshold/open are processed by horizontal bands in parallel by BandPreprocessor,
+ * contours are verified in parallel on DetectorForkJoinPool when there are many of them,
+ * each task writes into the slot of its contour index and results are merged in contour order.
+ * #detectNV21 works on Y plane of NV21 frame directly without full frame color conversion.
+ * brightness of candidates is looked up from integral images that are built once per frame,
+ * so cost of brightness check does not depend on candidate size.
+ * when LensTracker is set, candidates that match confirmed tracks inherit their
+ * verification result instead of being verified on every frame, and while all tracks
+ * are confirmed only search windows around them are processed(whole frame is scanned
+ * every scan interval of the tracker), unless incremental or pyramid mode is enabled.
+ * in incremental mode, only the regions that MotionGate found changed since previous frame
+ * are processed again and detections outside of them are reused from previous frame.
+ * in pyramid mode, PyramidProposer finds small blobs on downsampled image
+ * and only the regions around them are processed at full resolution.
+ * candidates are extracted by tracing contours, or by ComponentExtractor
+ * from connected components with stats when #setConnectedComponents is enabled.
+ * parameters come from DetectorConfig that is resolved for the frame size, the config
+ * can be replaced from any thread by #setConfig and is applied from next frame.
+ * this class is not thread safe, you should call #detect from single thread.
+ */
+public class LensDetector {
+    /**
+     * integral images are built as CV_32S,
+     * this is enough for frames up to this number of pixels(a little larger than 4K UHD)
+     */
+    private static final int MAX_INTEGRAL_PIXELS = Integer.MAX_VALUE / 255;
+
+    /**
+     * minimum number of contours to verify them in parallel
+     */
+    private static final int PARALLEL_MIN_CONTOURS = 32;
+    /**
+     * number of contours that one fork/join leaf task verifies
+     */
+    private static final int CONTOURS_PER_TASK = 8;
+
+    private final AtomicReference<DetectorConfig> mConfig
+        = new AtomicReference<DetectorConfig>(DetectorConfig.DEFAULT);
+    /**
+     * config that is applied to current frame size, only accessed on the thread of #detect
+     */
+    private DetectorConfig.Resolved mResolved;
+    /**
+     * candidates found in the region of incremental mode are accepted only when their
+     * bounding rect is inside the region shrunk by this(except image border),
+     * so that contours are not cut by the region and dilation in #isSingleBlob
+     * does not read stale binary image outside of the region
+     */
+    private int mRegionEdge;
+    /**
+     * structuring element for open/dilate, created when the config is applied
+     */
+    private Mat mKernel;
+    private volatile BandPreprocessor mPreprocessor;
+    private final Mat mGray = new Mat();
+    private final Mat mBinary = new Mat();
+    private final Mat mHierarchy = new Mat();
+    private final List<MatOfPoint> mContours = new ArrayList<MatOfPoint>();
+    private int[] mHierarchyBuf = new int[4 * 256];
+    /**
+     * verification result of each contour, written by (parallel) verification tasks
+     * into the slot of its contour index and merged in contour order
+     */
+    private int[] mSlotX, mSlotY, mSlotWidth, mSlotHeight;
+    private int[] mSlotBrightness, mSlotKind, mSlotTrackId;
+    /**
+     * whether the candidate in the slot passed size/aspect/area filters
+     */
+    private boolean[] mSlotCandidate;
+    private double[] mSlotArea;
+    /**
+     * number of Mats that were created while verifying the candidate in the slot
+     */
+    private int[] mSlotMats;
+    /**
+     * number of Mats that were created per frame(see class comment), for tests
+     */
+    private long mCreatedMats;
+    /**
+     * scratch for serial verification
+     */
+    private final Scratch mSerialScratch = new Scratch();
+    /**
+     * scratches for parallel verification, one scratch is used by one leaf task at a time
+     */
+    private final List<Scratch> mScratches = new ArrayList<Scratch>();
+    private final List<Scratch> mFreeScratches = new ArrayList<Scratch>();
+    private volatile boolean mParallel = true;
+    private volatile LensTracker mTracker;
+    private volatile StageStats mStats;
+    /**
+     * for extraction by connected components
+     */
+    private ComponentExtractor mExtractor;
+    private volatile boolean mConnectedComponents;
+    /**
+     * whether candidates of current frame came from mExtractor
+     */
+    private boolean mFromComponents;
+    /**
+     * header of Y plane of NV21 frame, reused while the frame buffer is not changed
+     */
+    private Mat mLuma, mChroma;
+    private long mLumaAddr;
+    private int mLumaRows, mLumaCols;
+    /**
+     * integral images of color input(3 channels) or of Y plane and VU plane(2 channels)
+     */
+    private final Mat mSum = new Mat();
+    private final Mat mChromaSum = new Mat();
+    /**
+     * input image of current frame, either of them is set while detecting
+     */
+    private Mat mColorInput, mYuvInput;
+    private boolean mReleased;
+    /**
+     * for incremental mode
+     */
+    private final MotionGate mMotionGate = new MotionGate();
+    private final DetectionResult mPrevious = new DetectionResult();
+    /**
+     * id of the track that each detection of mPrevious belongs to
+     */
+    private int[] mPreviousTrack = new int[256];
+    private final Mat mRegionWork = new Mat();
+    private final Point mOffset = new Point();
+    private volatile boolean mIncremental;
+    private boolean mGateReset;
+    private int mFrameRows, mFrameCols;
+    private volatile float mProcessedFraction = 1.0f;
+    private volatile int mCandidateCount;
+    private volatile float mMeanLuma;
+    private final int[] mTotal = new int[3];
+    /**
+     * for pyramid mode
+     */
+    private volatile int mPyramidLevels;
+    private PyramidProposer mProposer;
+    private final RegionList mProposals = new RegionList();
+    /**
+     * regions that are being processed, from MotionGate or PyramidProposer
+     */
+    private RegionList mRegions;
+    /**
+     * search windows of confirmed tracks
+     */
+    private final RegionList mWindows = new RegionList();
+
+    public LensDetector() {
+        allocateSlots(256);
+    }
+
+    /**
+     * release all native resources, this instance can not be used after calling this
+     */
+    public void release() {
+        if (!mReleased) {
+            mReleased = true;
+            releaseContours(mContours);
+            mSerialScratch.release();
+            synchronized (mFreeScratches) {
+                for (final Scratch scratch: mScratches) {
+                    scratch.release();
+                }
+                mScratches.clear();
+                mFreeScratches.clear();
+            }
+            releaseConfigured();
+            mGray.release();
+            mBinary.release();
+            mHierarchy.release();
+            mMotionGate.release();
+            mRegionWork.release();
+            mSum.release();
+            mChromaSum.release();
+            if (mLuma != null) {
+                mLuma.release();
+                mChroma.release();
+                mLuma = null;
+                mChroma = null;
+            }
+        }
+    }
+
+    /**
+     * set whether preprocessing and verification of contours run in parallel
+     * on DetectorForkJoinPool
+     * @param parallel false: process whole frame and verify contours one by one on the caller thread
+     */
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+        final BandPreprocessor preprocessor = mPreprocessor;
+        if (preprocessor != null) {
+            preprocessor.setParallel(parallel);
+        }
+    }
+
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    /**
+     * set whether only changed regions of the frame are processed
+     * @param incremental false: process whole frame on every frame
+     */
+    public void setIncremental(final boolean incremental) {
+        mIncremental = incremental;
+        mGateReset = true;
+    }
+
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * set levels of coarse to fine detection, candidates are proposed on
+     * half(1) or quarter(2) resolution image and only the regions around them
+     * are processed at full resolution. incremental mode is ignored while this is enabled.
+     * this is applied from next frame.
+     * @param levels 0: disable, 1: half resolution, 2: quarter resolution
+     */
+    public void setPyramidLevels(final int levels) {
+        if ((levels < 0) || (levels > 2)) {
+            throw new IllegalArgumentException("unsupported pyramid levels:" + levels);
+        }
+        mPyramidLevels = levels;
+        mGateReset = true;
+    }
+
+    public int getPyramidLevels() {
+        return mPyramidLevels;
+    }
+
+    /**
+     * replace parameters of detection, this can be called from any thread
+     * and the config is applied from next frame without stopping detection
+     * @param config
+     */
+    public void setConfig(final DetectorConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config should not be null");
+        }
+        mConfig.set(config);
+    }
+
+    public DetectorConfig getConfig() {
+        return mConfig.get();
+    }
+
+    /**
+     * set whether candidates are extracted from connected components with stats
+     * instead of contours, this is much faster on cluttered scene but contour area
+     * of candidates is estimated from their pixel area
+     * @param connectedComponents false: extract candidates by findContours
+     */
+    public void setConnectedComponents(final boolean connectedComponents) {
+        mConnectedComponents = connectedComponents;
+    }
+
+    public boolean isConnectedComponents() {
+        return mConnectedComponents;
+    }
+
+    /**
+     * ratio of pixels that were processed on latest frame(including halo of regions),
+     * this is always 1 when incremental mode is disabled
+     * @return
+     */
+    public float getProcessedFraction() {
+        return mProcessedFraction;
+    }
+
+    /**
+     * number of candidates that passed size/aspect/area filters on latest frame
+     * (including reused detections in incremental mode), whether or not they were verified
+     * @return
+     */
+    public int getCandidateCount() {
+        return mCandidateCount;
+    }
+
+    /**
+     * average luma(0-255) of latest frame, this comes from the integral image
+     * that is built for brightness check, so this does not need another pass over the frame
+     * @return
+     */
+    public float getMeanLuma() {
+        return mMeanLuma;
+    }
+
+    /**
+     * set tracker to skip verification of candidates that match confirmed tracks
+     * @param tracker null: verify all candidates on every frame
+     */
+    public void setTracker(final LensTracker tracker) {
+        mTracker = tracker;
+    }
+
+    /**
+     * set histograms to record latency of each stage
+     * @param stats null: do not record
+     */
+    public void setStageStats(final StageStats stats) {
+        mStats = stats;
+        final BandPreprocessor preprocessor = mPreprocessor;
+        if (preprocessor != null) {
+            preprocessor.setStats(stats);
+        }
+    }
+
+    /**
+     * number of Mats that this detector allocated for candidate size dependent buffers,
+     * this should not increase in steady state.
+     * Mat headers that are created per frame(see class comment) are not counted
+     * @return
+     */
+    public long getPoolMisses() {
+        long result = mSerialScratch.pool.getMisses();
+        synchronized (mFreeScratches) {
+            for (final Scratch scratch: mScratches) {
+                result += scratch.pool.getMisses();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * address of binary image buffer, for tests that check the buffer is not reallocated
+     * @return
+     */
+    long getBinaryAddr() {
+        return mBinary.dataAddr();
+    }
+
+    /**
+     * number of Mats that were created per frame since this detector was created(see class comment),
+     * for tests that count actual Mat allocations
+     * @return
+     */
+    long getCreatedMats() {
+        return mCreatedMats + (mPreprocessor != null ? mPreprocessor.getCreatedMats() : 0);
+    }
+
+    /**
+     * detect lens from color image
+     * @param in 3 channel image, same channel order as img_show of former MainActivity#onFrame
+     * @param out detected lenses are written into this, previous contents are cleared
+     */
+    public void detect(final Mat in, final DetectionResult out) {
+        if (mReleased) {
+            throw new IllegalStateException("already released");
+        }
+        // img_show was made from RGBA by BGR2RGB, so RGB2GRAY gives the same weights
+        // as former BGR2GRAY applied to the RGBA image
+        Imgproc.cvtColor(in, mGray, Imgproc.COLOR_RGB2GRAY);
+        checkIntegralSize(in.rows(), in.cols());
+        Imgproc.integral(in, mSum, CvType.CV_32S);
+        // sum of whole frame is at bottom right, same weights as RGB2GRAY
+        mSum.get(in.rows(), in.cols(), mTotal);
+        mMeanLuma = (float)((0.299 * mTotal[0] + 0.587 * mTotal[1] + 0.114 * mTotal[2])
+            / ((double)in.rows() * in.cols()));
+        mColorInput = in;
+        try {
+            detectGray(mGray, out);
+        } finally {
+            mColorInput = null;
+        }
+    }
+
+    /**
+     * detect lens from NV21 frame without full frame color conversion
+     * @param yuv NV21 frame, single channel Mat that has height * 3 / 2 rows
+     * @param out detected lenses are written into this, previous contents are cleared
+     */
+    public void detectNV21(final Mat yuv, final DetectionResult out) {
+        if (mReleased) {
+            throw new IllegalStateException("already released");
+        }
+        final Mat luma = luma(yuv);
+        checkIntegralSize(luma.rows(), luma.cols());
+        Imgproc.integral(luma, mSum, CvType.CV_32S);
+        mSum.get(luma.rows(), luma.cols(), mTotal);
+        mMeanLuma = (float)(mTotal[0] / ((double)luma.rows() * luma.cols()));
+        Imgproc.integral(mChroma, mChromaSum, CvType.CV_32S);
+        mYuvInput = yuv;
+        try {
+            detectGray(luma, out);
+        } finally {
+            mYuvInput = null;
+        }
+    }
+
+    private static void checkIntegralSize(final int rows, final int cols) {
+        if ((long)rows * cols > MAX_INTEGRAL_PIXELS) {
+            throw new IllegalArgumentException("frame is too large:" + cols + "x" + rows);
+        }
+    }
+
+    /**
+     * get header of Y plane of NV21 frame, header of VU plane as 2 channel Mat is also updated
+     * @param yuv
+     * @return
+     */
+    private Mat luma(final Mat yuv) {
+        final int rows = yuv.rows() * 2 / 3;
+        final int cols = yuv.cols();
+        final long addr = yuv.dataAddr();
+        if ((mLuma == null) || (mLumaAddr != addr) || (mLumaRows != rows) || (mLumaCols != cols)) {
+            if (mLuma != null) {
+                mLuma.release();
+                mChroma.release();
+            }
+            mLuma = yuv.submat(0, rows, 0, cols);
+            final Mat vu = yuv.submat(rows, rows + rows / 2, 0, cols);
+            try {
+                mChroma = vu.reshape(2);
+            } finally {
+                vu.release();
+            }
+            mCreatedMats += 3;
+            mLumaAddr = addr;
+            mLumaRows = rows;
+            mLumaCols = cols;
+        }
+        return mLuma;
+    }
+
+    private void detectGray(final Mat gray, final DetectionResult out) {
+        out.clear();
+        mCandidateCount = 0;
+        mFrameRows = gray.rows();
+        mFrameCols = gray.cols();
+        applyConfig();
+        final PyramidProposer proposer = mProposer;
+        if (proposer != null) {
+            if (proposer.propose(gray, mProposals)) {
+                processFrame(gray, out);
+            } else {
+                processRegions(gray, mProposals, out);
+            }
+            return;
+        }
+        if (!mIncremental) {
+            final LensTracker tracker = mTracker;
+            if ((tracker != null)
+                && tracker.getSearchWindows(mWindows, mRegionEdge, mFrameCols, mFrameRows)) {
+
+                processRegions(gray, mWindows, out);
+            } else {
+                processFrame(gray, out);
+            }
+            return;
+        }
+        if (mGateReset) {
+            mGateReset = false;
+            mMotionGate.reset();
+        }
+        if (mMotionGate.update(gray)) {
+            processFrame(gray, out);
+        } else {
+            final RegionList regions = mMotionGate.getRegions();
+            final LensTracker tracker = mTracker;
+            final int m = mPrevious.size();
+            // detections in unchanged regions whose track is due for re-verification
+            // are processed again instead of being reused
+            for (int j = 0; (tracker != null) && (j < m); j++) {
+                final int x = mPrevious.getX(j), y = mPrevious.getY(j);
+                final int w = mPrevious.getWidth(j), h = mPrevious.getHeight(j);
+                final int track = tracker.findTrack(x, y, w, h, mPrevious.getKind(j));
+                mPreviousTrack[j] = track >= 0 ? tracker.getTrackId(track) : -1;
+                if ((track >= 0) && tracker.needsReverification(track)) {
+                    regions.add(x - mRegionEdge, y - mRegionEdge,
+                        x + w + mRegionEdge, y + h + mRegionEdge, mFrameCols, mFrameRows);
+                }
+            }
+            final int n = regions.size();
+            mRegions = regions;
+            // reuse detections that are not inside of any region to be processed,
+            // they keep their track id so that the tracker does not treat them as verified
+            for (int j = 0; j < m; j++) {
+                final int x = mPrevious.getX(j), y = mPrevious.getY(j);
+                final int w = mPrevious.getWidth(j), h = mPrevious.getHeight(j);
+                if (!isInsideRegions(n, x, y, w, h)) {
+                    out.add(x, y, w, h, mPrevious.getArea(j), mPrevious.getBrightness(j),
+                        mPrevious.getKind(j));
+                    out.setTrackId(out.size() - 1,
+                        tracker != null ? mPreviousTrack[j] : mPrevious.getTrackId(j));
+                    mCandidateCount++;
+                }
+            }
+            processRegions(gray, regions, out);
+        }
+        copy(out, mPrevious);
+    }
+
+    /**
+     * resolve latest config for current frame size and rebuild the objects that depend on it
+     * when the config, frame size or pyramid levels were changed
+     */
+    private void applyConfig() {
+        final DetectorConfig config = mConfig.get();
+        final int levels = mPyramidLevels;
+        final DetectorConfig.Resolved prev = mResolved;
+        if ((prev != null) && (prev.getConfig() == config)
+            && (prev.getWidth() == mFrameCols) && (prev.getHeight() == mFrameRows)) {
+
+            if (((mProposer != null) ? mProposer.getLevels() : 0) != levels) {
+                createProposer(levels);
+            }
+            return;
+        }
+        final DetectorConfig.Resolved resolved = config.resolve(mFrameCols, mFrameRows);
+        releaseConfigured();
+        final int kernelSize = resolved.getMorphKernelSize();
+        mKernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE,
+            new Size(kernelSize, kernelSize));
+        final int blurSize = resolved.getBlurKernelSize();
+        final BandPreprocessor preprocessor = new BandPreprocessor(new Size(blurSize, blurSize),
+            resolved.getBlurSigma(), resolved.getThresholdBlockSize(), resolved.getThresholdC(), mKernel);
+        preprocessor.setParallel(mParallel);
+        preprocessor.setStats(mStats);
+        mPreprocessor = preprocessor;
+        mExtractor = new ComponentExtractor(resolved.getMinArea(), resolved.getMaxArea(),
+            resolved.getMaxAspectRatio());
+        mRegionEdge = kernelSize / 2 + 1;
+        mResolved = resolved;
+        createProposer(levels);
+        // detections of previous frame were found with former parameters
+        mMotionGate.reset();
+    }
+
+    private void createProposer(final int levels) {
+        if (mProposer != null) {
+            mProposer.release();
+        }
+        mProposer = levels > 0 ? new PyramidProposer(levels, mResolved.getThresholdBlockSize(),
+            mResolved.getThresholdC(), mResolved.getMaxProposalSize()) : null;
+    }
+
+    /**
+     * release the objects that were created by #applyConfig
+     */
+    private void releaseConfigured() {
+        if (mPreprocessor != null) {
+            mCreatedMats += mPreprocessor.getCreatedMats();
+            mPreprocessor.release();
+            mPreprocessor = null;
+        }
+        if (mKernel != null) {
+            mKernel.release();
+            mKernel = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        if (mProposer != null) {
+            mProposer.release();
+            mProposer = null;
+        }
+        mResolved = null;
+    }
+
+    private void processFrame(final Mat gray, final DetectionResult out) {
+        mPreprocessor.process(gray, mBinary);
+        findAndVerify(mBinary, 0, 0, -1, out);
+        mProcessedFraction = 1.0f;
+    }
+
+    /**
+     * process only the regions, detections are appended into out
+     * @param gray
+     * @param regions
+     * @param out
+     */
+    private void processRegions(final Mat gray, final RegionList regions, final DetectionResult out) {
+        // contents outside of the regions are stale but they are never read
+        mBinary.create(mFrameRows, mFrameCols, CvType.CV_8UC1);
+        mRegions = regions;
+        final int n = regions.size();
+        long processed = 0;
+        for (int i = 0; i < n; i++) {
+            processed += processRegion(gray, i, out);
+        }
+        mProcessedFraction = Math.min(1.0f, processed / (float)((long)mFrameRows * mFrameCols));
+    }
+
+    /**
+     * preprocess the region with halo, write its inner part into mBinary
+     * and find/verify contours in it
+     * @param gray
+     * @param region index of region in mRegions
+     * @param out
+     * @return number of preprocessed pixels
+     */
+    private int processRegion(final Mat gray, final int region, final DetectionResult out) {
+        final int x = mRegions.getX(region);
+        final int y = mRegions.getY(region);
+        final int w = mRegions.getWidth(region);
+        final int h = mRegions.getHeight(region);
+        final int halo = mPreprocessor.getHalo();
+        final int left = Math.max(0, x - halo), top = Math.max(0, y - halo);
+        final int right = Math.min(mFrameCols, x + w + halo), bottom = Math.min(mFrameRows, y + h + halo);
+        final Mat src = gray.submat(top, bottom, left, right);
+        try {
+            mPreprocessor.process(src, mRegionWork);
+        } finally {
+            src.release();
+        }
+        final Mat inner = mRegionWork.submat(y - top, y - top + h, x - left, x - left + w);
+        final Mat dst = mBinary.submat(y, y + h, x, x + w);
+        mCreatedMats += 3;
+        try {
+            inner.copyTo(dst);
+            findAndVerify(dst, x, y, region, out);
+        } finally {
+            inner.release();
+            dst.release();
+        }
+        return (right - left) * (bottom - top);
+    }
+
+    /**
+     * find candidates in the binary image and verify them
+     * @param binary whole binary image or region of it
+     * @param offsetX offset of binary in the frame
+     * @param offsetY
+     * @param region index of region in mRegions, -1 if binary is whole frame
+     * @param out verified candidates are appended into this
+     */
+    private void findAndVerify(final Mat binary, final int offsetX, final int offsetY,
+        final int region, final DetectionResult out) {
+
+        final StageStats stats = mStats;
+        try {
+            final long t0 = System.nanoTime();
+            mFromComponents = mConnectedComponents;
+            final int n;
+            if (mFromComponents) {
+                // candidates that passed size/aspect/area filters
+                n = mExtractor.extract(binary, offsetX, offsetY);
+            } else {
+                mOffset.x = offsetX;
+                mOffset.y = offsetY;
+                // hierarchy is of the region, contours that are nested in the contour
+                // outside of the region are treated as top level
+                Imgproc.findContours(binary, mContours, mHierarchy,
+                    Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE, mOffset);
+                n = mContours.size();
+                // result Mat of the binding, temporary Mat and MatOfPoint of each contour
+                mCreatedMats += 1 + 2 * n;
+                if ((n > 0) && (mHierarchyBuf.length < n * 4)) {
+                    mHierarchyBuf = new int[n * 8];
+                }
+                if (n > 0) {
+                    mHierarchy.get(0, 0, mHierarchyBuf);
+                }
+            }
+            final long t1 = System.nanoTime();
+            if (stats != null) {
+                stats.record(StageStats.STAGE_CONTOURS, t1 - t0);
+            }
+            if (n > 0) {
+                if (mSlotKind.length < n) {
+                    allocateSlots(n * 2);
+                }
+                if (mParallel && (n >= PARALLEL_MIN_CONTOURS)
+                    && (DetectorForkJoinPool.getParallelism() > 1)) {
+
+                    DetectorForkJoinPool.get().invoke(new VerifyTask(0, n));
+                } else {
+                    verifyRange(mSerialScratch, 0, n);
+                }
+                // merge in candidate order so that result is same as serial verification
+                int candidates = 0;
+                for (int i = 0; i < n; i++) {
+                    if (mSlotCandidate[i]) {
+                        candidates++;
+                    }
+                    mCreatedMats += mSlotMats[i];
+                    if ((mSlotKind[i] >= 0)
+                        && ((region < 0) || isAcceptable(region, mSlotX[i], mSlotY[i],
+                            mSlotWidth[i], mSlotHeight[i]))) {
+
+                        out.add(mSlotX[i], mSlotY[i], mSlotWidth[i], mSlotHeight[i],
+                            mSlotArea[i], mSlotBrightness[i], mSlotKind[i]);
+                        out.setTrackId(out.size() - 1, mSlotTrackId[i]);
+                    }
+                }
+                // only written on this thread
+                mCandidateCount += candidates;
+            }
+            if (stats != null) {
+                stats.record(StageStats.STAGE_VERIFY, System.nanoTime() - t1);
+            }
+        } finally {
+            releaseContours(mContours);
+        }
+    }
+
+    /**
+     * whether the candidate was found in the region and is not the one
+     * of former region that overlaps
+     */
+    private boolean isAcceptable(final int region,
+        final int x, final int y, final int width, final int height) {
+
+        return isInsideRegion(region, x, y, width, height)
+            && !isInsideRegions(region, x, y, width, height);
+    }
+
+    /**
+     * whether the rect is inside of any of regions [0, n)
+     */
+    private boolean isInsideRegions(final int n,
+        final int x, final int y, final int width, final int height) {
+
+        for (int i = 0; i < n; i++) {
+            if (isInsideRegion(i, x, y, width, height)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * whether the rect is inside of the region shrunk by mRegionEdge
+     */
+    private boolean isInsideRegion(final int region,
+        final int x, final int y, final int width, final int height) {
+
+        final int rx = mRegions.getX(region);
+        final int ry = mRegions.getY(region);
+        final int rr = rx + mRegions.getWidth(region);
+        final int rb = ry + mRegions.getHeight(region);
+        final int left = rx > 0 ? rx + mRegionEdge : 0;
+        final int top = ry > 0 ? ry + mRegionEdge : 0;
+        final int right = rr < mFrameCols ? rr - mRegionEdge : mFrameCols;
+        final int bottom = rb < mFrameRows ? rb - mRegionEdge : mFrameRows;
+        return (x >= left) && (y >= top) && (x + width <= right) && (y + height <= bottom);
+    }
+
+    private void copy(final DetectionResult src, final DetectionResult dst) {
+        dst.clear();
+        final int n = src.size();
+        for (int i = 0; i < n; i++) {
+            dst.add(src.getX(i), src.getY(i), src.getWidth(i), src.getHeight(i),
+                src.getArea(i), src.getBrightness(i), src.getKind(i));
+            dst.setTrackId(i, src.getTrackId(i));
+        }
+        if (mPreviousTrack.length < n) {
+            mPreviousTrack = new int[n * 2];
+        }
+    }
+
+    private void allocateSlots(final int capacity) {
+        mSlotX = new int[capacity];
+        mSlotY = new int[capacity];
+        mSlotWidth = new int[capacity];
+        mSlotHeight = new int[capacity];
+        mSlotBrightness = new int[capacity];
+        mSlotKind = new int[capacity];
+        mSlotTrackId = new int[capacity];
+        mSlotArea = new double[capacity];
+        mSlotCandidate = new boolean[capacity];
+        mSlotMats = new int[capacity];
+    }
+
+    /**
+     * verify candidates in [from, to) and write results into their slots
+     * @param scratch
+     * @param from
+     * @param to
+     */
+    private void verifyRange(final Scratch scratch, final int from, final int to) {
+        try {
+            for (int i = from; i < to; i++) {
+                mSlotKind[i] = -1;
+                mSlotCandidate[i] = false;
+                mSlotMats[i] = 0;
+                if (mFromComponents) {
+                    verifyComponent(scratch, i);
+                } else {
+                    verifyContour(scratch, i);
+                }
+            }
+        } finally {
+            scratch.pool.recycleAll();
+        }
+    }
+
+    private Scratch obtainScratch() {
+        synchronized (mFreeScratches) {
+            final int n = mFreeScratches.size();
+            if (n > 0) {
+                return mFreeScratches.remove(n - 1);
+            }
+            final Scratch scratch = new Scratch();
+            mScratches.add(scratch);
+            return scratch;
+        }
+    }
+
+    private void recycleScratch(final Scratch scratch) {
+        synchronized (mFreeScratches) {
+            mFreeScratches.add(scratch);
+        }
+    }
+
+    /**
+     * fork/join task to verify range of contours
+     */
+    private final class VerifyTask extends RecursiveAction {
+        // never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom, mTo;
+
+        private VerifyTask(final int from, final int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= CONTOURS_PER_TASK) {
+                final Scratch scratch = obtainScratch();
+                try {
+                    verifyRange(scratch, mFrom, mTo);
+                } finally {
+                    recycleScratch(scratch);
+                }
+            } else {
+                final int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new VerifyTask(mFrom, mid), new VerifyTask(mid, mTo));
+            }
+        }
+    }
+
+    /**
+     * approximate the contour and apply size/aspect/area filters,
+     * then check shape and brightness, the result is written into the slot
+     * @param scratch
+     * @param ix contour index
+     */
+    private void verifyContour(final Scratch scratch, final int ix) {
+        final DetectorConfig.Resolved config = mResolved;
+        mContours.get(ix).convertTo(scratch.curve, CvType.CV_32FC2);
+        Imgproc.approxPolyDP(scratch.curve, scratch.approxCurve, config.getApproxEpsilon(), true);
+        scratch.approxCurve.convertTo(scratch.approx, CvType.CV_32S);
+        final Rect rect = Imgproc.boundingRect(scratch.approx);
+        if (Math.max(rect.height, rect.width) / Math.min(rect.height, rect.width)
+            > config.getMaxAspectRatio()) {
+            return;
+        }
+        final double area = Imgproc.contourArea(scratch.approx);
+        if ((area < config.getMinArea()) || (area > config.getMaxArea())) {
+            return;
+        }
+        final boolean isTopLevel = mHierarchyBuf[ix * 4 + 3] == -1;
+        verify(scratch, ix, rect, area, isTopLevel);
+    }
+
+    /**
+     * check shape and brightness of the candidate that ComponentExtractor already filtered,
+     * the result is written into the slot
+     * @param scratch
+     * @param ix candidate index
+     */
+    private void verifyComponent(final Scratch scratch, final int ix) {
+        final Rect rect = scratch.rect;
+        rect.x = mExtractor.getX(ix);
+        rect.y = mExtractor.getY(ix);
+        rect.width = mExtractor.getWidth(ix);
+        rect.height = mExtractor.getHeight(ix);
+        verify(scratch, ix, rect, mExtractor.getArea(ix), mExtractor.isTopLevel(ix));
+    }
+
+    /**
+     * check shape and brightness of the candidate that passed size/aspect/area filters
+     * @param scratch
+     * @param ix slot index
+     * @param rect bounding rect in the frame
+     * @param area contour area
+     * @param isTopLevel whether the contour does not have parent
+     */
+    private void verify(final Scratch scratch, final int ix,
+        final Rect rect, final double area, final boolean isTopLevel) {
+
+        mSlotCandidate[ix] = true;
+        final int kind = isTopLevel ? DetectionResult.KIND_LENS : DetectionResult.KIND_NESTED;
+        final LensTracker tracker = mTracker;
+        final int track = tracker != null
+            ? tracker.findVerifiedTrack(rect.x, rect.y, rect.width, rect.height, kind) : -1;
+        final int brightness;
+        if (track >= 0) {
+            // inherit verification result of confirmed track
+            brightness = tracker.getTrackBrightness(track);
+            mSlotTrackId[ix] = tracker.getTrackId(track);
+        } else {
+            if (!isSingleBlob(scratch, ix, rect)) {
+                return;
+            }
+            if (isTopLevel) {
+                // exclude screws etc. by brightness
+                brightness = mYuvInput != null
+                    ? measureBrightnessNV21(scratch, rect) : measureBrightness(scratch, rect);
+                if ((brightness < mResolved.getMinBrightness())
+                    || (brightness > mResolved.getMaxBrightness())) {
+                    return;
+                }
+            } else {
+                brightness = -1;
+            }
+            mSlotTrackId[ix] = -1;
+        }
+        mSlotX[ix] = rect.x;
+        mSlotY[ix] = rect.y;
+        mSlotWidth[ix] = rect.width;
+        mSlotHeight[ix] = rect.height;
+        mSlotArea[ix] = area;
+        mSlotBrightness[ix] = brightness;
+        mSlotKind[ix] = kind;
+    }
+
+    /**
+     * dilate bounding rect of binary image and check whether it has only one contour
+     * former implementation dilated the ROI of shared binary image in place,
+     * this writes into pooled Mat instead so that later candidates see unmodified image.
+     * @param scratch
+     * @param ix slot index
+     * @param rect
+     * @return
+     */
+    private boolean isSingleBlob(final Scratch scratch, final int ix, final Rect rect) {
+        final Mat roi = mBinary.submat(rect);
+        final Mat dilated = scratch.pool.obtain(rect.height, rect.width, CvType.CV_8UC1);
+        try {
+            Imgproc.dilate(roi, dilated, mKernel);
+        } finally {
+            roi.release();
+        }
+        Imgproc.findContours(dilated, scratch.contours, scratch.hierarchy,
+            Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        final int n = scratch.contours.size();
+        releaseContours(scratch.contours);
+        // submat, result Mat of findContours, temporary Mat and MatOfPoint of each contour
+        mSlotMats[ix] = 2 + 2 * n;
+        return n == 1;
+    }
+
+    /**
+     * average of channel means in the bounding rect, looked up from the integral image
+     * @param scratch
+     * @param rect
+     * @return
+     */
+    private int measureBrightness(final Scratch scratch, final Rect rect) {
+        final int[] sum = scratch.sum;
+        sumRect(scratch, mSum, rect.x, rect.y, rect.width, rect.height, 3);
+        final double area = rect.width * rect.height;
+        final double sum_pix = sum[0] / area + sum[1] / area + sum[2] / area;
+        return (int)sum_pix / 3;
+    }
+
+    /**
+     * average of channel means in the bounding rect of NV21 frame
+     * this uses means of Y and of VU(in the rect aligned to chroma sub sampling)
+     * and the linear part of YUV to RGB conversion: R + G + B = 3Y + 1.429U' + 0.689V',
+     * so saturated pixels are not clamped unlike converting the pixels.
+     * @param scratch
+     * @param rect
+     * @return
+     */
+    private int measureBrightnessNV21(final Scratch scratch, final Rect rect) {
+        final int[] sum = scratch.sum;
+        sumRect(scratch, mSum, rect.x, rect.y, rect.width, rect.height, 1);
+        final double y = sum[0] / (double)(rect.width * rect.height);
+        final int cx = rect.x / 2;
+        final int cy = rect.y / 2;
+        final int cw = Math.max(1, (rect.x + rect.width + 1) / 2 - cx);
+        final int ch = Math.max(1, (rect.y + rect.height + 1) / 2 - cy);
+        sumRect(scratch, mChromaSum, cx, cy, cw, ch, 2);
+        final double v = sum[0] / (double)(cw * ch) - 128;
+        final double u = sum[1] / (double)(cw * ch) - 128;
+        final double sum_pix = 3 * y + 1.429 * u + 0.689 * v;
+        return (int)sum_pix / 3;
+    }
+
+    /**
+     * sum of each channel in the rect, result is written into scratch.sum
+     * @param scratch
+     * @param integral CV_32S integral image
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param channels
+     */
+    private static void sumRect(final Scratch scratch, final Mat integral,
+        final int x, final int y, final int width, final int height, final int channels) {
+
+        integral.get(y, x, scratch.tl);
+        integral.get(y, x + width, scratch.tr);
+        integral.get(y + height, x, scratch.bl);
+        integral.get(y + height, x + width, scratch.br);
+        for (int c = 0; c < channels; c++) {
+            scratch.sum[c] = scratch.br[c] - scratch.bl[c] - scratch.tr[c] + scratch.tl[c];
+        }
+    }
+
+    private static void releaseContours(final List<MatOfPoint> contours) {
+        final int n = contours.size();
+        for (int i = 0; i < n; i++) {
+            contours.get(i).release();
+        }
+        contours.clear();
+    }
+
+    /**
+     * working Mats for verification, each thread that verifies contours
+     * uses its own Scratch at a time
+     */
+    private static final class Scratch {
+        private final MatPool pool = new MatPool();
+        private final Mat hierarchy = new Mat();
+        private final List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        private final MatOfPoint2f curve = new MatOfPoint2f();
+        private final MatOfPoint2f approxCurve = new MatOfPoint2f();
+        private final MatOfPoint approx = new MatOfPoint();
+        private final Rect rect = new Rect();
+        /**
+         * corners of integral image and channel sums,
+         * length of corner arrays should be multiple of channels(1, 2 and 3) for Mat#get
+         */
+        private final int[] tl = new int[6], tr = new int[6], bl = new int[6], br = new int[6];
+        private final int[] sum = new int[3];
+
+        private void release() {
+            releaseContours(contours);
+            pool.release();
+            hierarchy.release();
+            curve.release();
+            approxCurve.release();
+            approx.release();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * temporal tracker of detected lenses
+ * this gives persistent id to each lens, associates detections across frames
+ * by IoU/centroid distance and keeps hit/miss counters.
+ * LensDetector asks #findVerifiedTrack while verifying candidates and skips
+ * the verification of candidates that match a confirmed track
+ * until the track needs re-verification(every reverifyInterval frames).
+ * while all tracks are confirmed, LensDetector processes only search windows around them
+ * (#getSearchWindows) and scans whole frame every scanInterval frames to find new lenses,
+ * so confirmed tracks are re-verified in their search windows.
+ * this does not depend on Android nor OpenCV.
+ * #update should be called from single thread, #findVerifiedTrack can be called
+ * from verification tasks while the thread that calls #update is waiting for them.
+ */
+public final class LensTracker {
+    private static final float DEFAULT_MIN_IOU = 0.3f;
+    private static final int DEFAULT_MAX_CENTER_DISTANCE = 8;
+    private static final int DEFAULT_CONFIRM_HITS = 3;
+    private static final int DEFAULT_MAX_MISSES = 5;
+    private static final int DEFAULT_REVERIFY_INTERVAL = 10;
+    private static final int DEFAULT_MAX_TRACKS = 64;
+    private static final int DEFAULT_SCAN_INTERVAL = 10;
+
+    private final float mMinIoU;
+    private final int mMaxCenterDistance;
+    private final int mConfirmHits;
+    private final int mMaxMisses;
+    private final int mReverifyInterval;
+    private final int mMaxTracks;
+    private final int mScanInterval;
+
+    private int mTrackCount;
+    private final int[] mId;
+    private final int[] mX, mY, mWidth, mHeight;
+    private final float[] mArea;
+    private final int[] mBrightness, mKind;
+    private final int[] mHits, mMisses;
+    private final long[] mLastVerified;
+    private final boolean[] mMatched;
+    private int mNextId;
+    private volatile long mFrame;
+    private long mLastFullScan;
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    public LensTracker() {
+        this(DEFAULT_MIN_IOU, DEFAULT_MAX_CENTER_DISTANCE,
+            DEFAULT_CONFIRM_HITS, DEFAULT_MAX_MISSES, DEFAULT_REVERIFY_INTERVAL, DEFAULT_MAX_TRACKS,
+            DEFAULT_SCAN_INTERVAL);
+    }
+
+    /**
+     * @param minIoU minimum IoU to associate detection with track
+     * @param maxCenterDistance max distance of centers in pixels to associate detection with track
+     *                          when IoU is less than minIoU
+     * @param confirmHits number of hits to confirm the track
+     * @param maxMisses track is removed when it is not detected more than this number of frames
+     * @param reverifyInterval confirmed track is re-verified every this number of frames
+     * @param maxTracks max number of tracks
+     */
+    public LensTracker(final float minIoU, final int maxCenterDistance,
+        final int confirmHits, final int maxMisses,
+        final int reverifyInterval, final int maxTracks) {
+
+        this(minIoU, maxCenterDistance, confirmHits, maxMisses, reverifyInterval, maxTracks,
+            DEFAULT_SCAN_INTERVAL);
+    }
+
+    /**
+     * @param minIoU minimum IoU to associate detection with track
+     * @param maxCenterDistance max distance of centers in pixels to associate detection with track
+     *                          when IoU is less than minIoU
+     * @param confirmHits number of hits to confirm the track
+     * @param maxMisses track is removed when it is not detected more than this number of frames
+     * @param reverifyInterval confirmed track is re-verified every this number of frames
+     * @param maxTracks max number of tracks
+     * @param scanInterval whole frame is scanned at least every this number of frames
+     *                     while only search windows of confirmed tracks are processed
+     */
+    public LensTracker(final float minIoU, final int maxCenterDistance,
+        final int confirmHits, final int maxMisses,
+        final int reverifyInterval, final int maxTracks, final int scanInterval) {
+
+        mMinIoU = minIoU;
+        mMaxCenterDistance = maxCenterDistance;
+        mConfirmHits = confirmHits;
+        mMaxMisses = maxMisses;
+        mReverifyInterval = reverifyInterval;
+        mMaxTracks = maxTracks;
+        mScanInterval = scanInterval;
+        mId = new int[maxTracks];
+        mX = new int[maxTracks];
+        mY = new int[maxTracks];
+        mWidth = new int[maxTracks];
+        mHeight = new int[maxTracks];
+        mArea = new float[maxTracks];
+        mBrightness = new int[maxTracks];
+        mKind = new int[maxTracks];
+        mHits = new int[maxTracks];
+        mMisses = new int[maxTracks];
+        mLastVerified = new long[maxTracks];
+        mMatched = new boolean[maxTracks];
+    }
+
+    public void clear() {
+        mTrackCount = 0;
+        mLastFullScan = mFrame;
+    }
+
+    public int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * number of frames that were passed to #update
+     * @return
+     */
+    public long getFrameCount() {
+        return mFrame;
+    }
+
+    /**
+     * number of candidates whose verification was skipped because they matched confirmed track
+     * @return
+     */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    /**
+     * find confirmed track that matches the candidate and does not need re-verification
+     * on the frame that is being detected
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param kind DetectionResult.KIND_LENS or KIND_NESTED
+     * @return index of track(not id), -1 if the candidate should be verified
+     */
+    public int findVerifiedTrack(final int x, final int y, final int width, final int height,
+        final int kind) {
+
+        final long frame = mFrame;
+        for (int i = 0; i < mTrackCount; i++) {
+            if ((mHits[i] >= mConfirmHits) && (mKind[i] == kind)
+                && (frame - mLastVerified[i] < mReverifyInterval)
+                && isMatched(i, x, y, width, height)) {
+
+                mSkipped.incrementAndGet();
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * find track that matches the rect regardless of whether it needs re-verification,
+     * e.g. for detections that are reused without verification
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param kind
+     * @return index of track(not id), -1 if no track matches
+     */
+    public int findTrack(final int x, final int y, final int width, final int height,
+        final int kind) {
+
+        for (int i = 0; i < mTrackCount; i++) {
+            if ((mKind[i] == kind) && isMatched(i, x, y, width, height)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * whether the confirmed track should be verified again on the frame that is being detected
+     * @param track index of track(not id)
+     * @return
+     */
+    public boolean needsReverification(final int track) {
+        return (mHits[track] >= mConfirmHits) && (mFrame - mLastVerified[track] >= mReverifyInterval);
+    }
+
+    /**
+     * search windows for the frame that is being detected
+     * whole frame should be scanned when there is no track, when a track is waiting for
+     * confirmation(it may be a new lens) or when scanInterval frames passed since last scan,
+     * otherwise bounding rects of confirmed tracks expanded by max center distance and margin
+     * are written into out. confirmed tracks that are due for re-verification
+     * are verified in their windows.
+     * @param out
+     * @param margin pixels that the detector needs around candidates
+     * @param frameWidth
+     * @param frameHeight
+     * @return false if whole frame should be scanned
+     */
+    boolean getSearchWindows(final RegionList out, final int margin,
+        final int frameWidth, final int frameHeight) {
+
+        out.clear();
+        final long frame = mFrame;
+        boolean scan = (mTrackCount == 0) || (frame - mLastFullScan >= mScanInterval);
+        for (int i = 0; !scan && (i < mTrackCount); i++) {
+            scan = mHits[i] < mConfirmHits;
+        }
+        if (scan) {
+            mLastFullScan = frame;
+            return false;
+        }
+        final int d = mMaxCenterDistance + margin;
+        for (int i = 0; i < mTrackCount; i++) {
+            out.add(mX[i] - d, mY[i] - d, mX[i] + mWidth[i] + d, mY[i] + mHeight[i] + d,
+                frameWidth, frameHeight);
+        }
+        out.mergeOverlapping();
+        return true;
+    }
+
+    public int getTrackId(final int track) {
+        return mId[track];
+    }
+
+    public int getTrackBrightness(final int track) {
+        return mBrightness[track];
+    }
+
+    /**
+     * associate detections of the frame with tracks
+     * id of the track is written into detections, detections that already have track id
+     * (verification was skipped by #findVerifiedTrack) are associated with that track
+     * without updating its verified frame.
+     * @param detections
+     * @param out confirmed tracks(including tracks that were missed in recent frames)
+     *            are written into this, can be null
+     */
+    public void update(final DetectionResult detections, final DetectionResult out) {
+        final long frame = mFrame;
+        for (int i = 0; i < mTrackCount; i++) {
+            mMatched[i] = false;
+        }
+        final int n = detections.size();
+        // detections that inherited verification result from the track
+        for (int j = 0; j < n; j++) {
+            final int trackId = detections.getTrackId(j);
+            if (trackId >= 0) {
+                final int track = indexOf(trackId);
+                if ((track >= 0) && !mMatched[track]) {
+                    updateTrack(track, detections, j, false, frame);
+                } else {
+                    detections.setTrackId(j, -1);
+                }
+            }
+        }
+        // verified detections
+        for (int j = 0; j < n; j++) {
+            if (detections.getTrackId(j) >= 0) continue;
+            final int track = findBestTrack(detections, j);
+            if (track >= 0) {
+                updateTrack(track, detections, j, true, frame);
+            } else if (mTrackCount < mMaxTracks) {
+                final int ix = mTrackCount++;
+                mId[ix] = mNextId++;
+                mHits[ix] = 0;
+                updateTrack(ix, detections, j, true, frame);
+            }
+        }
+        // count misses and remove lost tracks
+        for (int i = mTrackCount - 1; i >= 0; i--) {
+            if (!mMatched[i] && (++mMisses[i] > mMaxMisses)) {
+                removeTrack(i);
+            }
+        }
+        if (out != null) {
+            out.clear();
+            for (int i = 0; i < mTrackCount; i++) {
+                if (mHits[i] >= mConfirmHits) {
+                    out.add(mX[i], mY[i], mWidth[i], mHeight[i], mArea[i], mBrightness[i], mKind[i]);
+                    out.setTrackId(out.size() - 1, mId[i]);
+                }
+            }
+        }
+        mFrame = frame + 1;
+    }
+
+    private int indexOf(final int trackId) {
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mId[i] == trackId) return i;
+        }
+        return -1;
+    }
+
+    private int findBestTrack(final DetectionResult detections, final int j) {
+        final int x = detections.getX(j), y = detections.getY(j);
+        final int w = detections.getWidth(j), h = detections.getHeight(j);
+        final int kind = detections.getKind(j);
+        int best = -1;
+        float bestIoU = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mTrackCount; i++) {
+            if (mMatched[i] || (mKind[i] != kind)) continue;
+            final float iou = iou(i, x, y, w, h);
+            if (iou >= mMinIoU) {
+                if (iou > bestIoU) {
+                    best = i;
+                    bestIoU = iou;
+                }
+            } else if (bestIoU == 0) {
+                final long d = centerDistance2(i, x, y, w, h);
+                if ((d <= (long)mMaxCenterDistance * mMaxCenterDistance) && (d < bestDistance)) {
+                    best = i;
+                    bestDistance = d;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void updateTrack(final int track, final DetectionResult detections, final int j,
+        final boolean verified, final long frame) {
+
+        mX[track] = detections.getX(j);
+        mY[track] = detections.getY(j);
+        mWidth[track] = detections.getWidth(j);
+        mHeight[track] = detections.getHeight(j);
+        mArea[track] = detections.getArea(j);
+        mBrightness[track] = detections.getBrightness(j);
+        mKind[track] = detections.getKind(j);
+        mHits[track]++;
+        mMisses[track] = 0;
+        mMatched[track] = true;
+        if (verified) {
+            mLastVerified[track] = frame;
+        }
+        detections.setTrackId(j, mId[track]);
+    }
+
+    private void removeTrack(final int track) {
+        final int last = --mTrackCount;
+        if (track != last) {
+            mId[track] = mId[last];
+            mX[track] = mX[last];
+            mY[track] = mY[last];
+            mWidth[track] = mWidth[last];
+            mHeight[track] = mHeight[last];
+            mArea[track] = mArea[last];
+            mBrightness[track] = mBrightness[last];
+            mKind[track] = mKind[last];
+            mHits[track] = mHits[last];
+            mMisses[track] = mMisses[last];
+            mLastVerified[track] = mLastVerified[last];
+            mMatched[track] = mMatched[last];
+        }
+    }
+
+    private boolean isMatched(final int track,
+        final int x, final int y, final int width, final int height) {
+
+        return (iou(track, x, y, width, height) >= mMinIoU)
+            || (centerDistance2(track, x, y, width, height)
+                <= (long)mMaxCenterDistance * mMaxCenterDistance);
+    }
+
+    private float iou(final int track,
+        final int x, final int y, final int width, final int height) {
+
+        final int left = Math.max(mX[track], x);
+        final int top = Math.max(mY[track], y);
+        final int right = Math.min(mX[track] + mWidth[track], x + width);
+        final int bottom = Math.min(mY[track] + mHeight[track], y + height);
+        if ((right <= left) || (bottom <= top)) return 0;
+        final float intersection = (right - left) * (float)(bottom - top);
+        final float union = mWidth[track] * (float)mHeight[track] + width * (float)height - intersection;
+        return intersection / union;
+    }
+
+    /**
+     * square of distance between centers
+     */
+    private long centerDistance2(final int track,
+        final int x, final int y, final int width, final int height) {
+
+        final long dx = (2L * mX[track] + mWidth[track]) - (2L * x + width);
+        final long dy = (2L * mY[track] + mHeight[track]) - (2L * y + height);
+        return (dx * dx + dy * dy) / 4;
+    }
+}
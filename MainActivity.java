@@ -26,9 +26,12 @@ package com.serenegiant.opencvwithuvc;
 import android.animation.Animator;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.graphics.Typeface;
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
@@ -52,7 +55,6 @@ import android.widget.ToggleButton;
 
 import com.serenegiant.common.BaseActivity;
 import com.serenegiant.math.Vector;
-import com.serenegiant.opencv.ImageProcessor;
 import com.serenegiant.usb.CameraDialog;
 import com.serenegiant.usb.USBMonitor;
 import com.serenegiant.usb.USBMonitor.OnDeviceConnectListener;
@@ -77,10 +79,15 @@ import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.InvalidMarkException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -115,6 +122,114 @@ public final class MainActivity extends BaseActivity
      */
     private static final boolean USE_SURFACE_ENCODER = false;
 
+    /**
+     * set true if you want to detect lens from NV21 frames that come from
+     * UVCCamera#setFrameCallback, detection uses Y plane directly
+     * and does not need GL readback by ImageProcessor
+     * set false if you want to detect lens from RGBA frames of ImageProcessor
+     */
+    private static final boolean USE_NV21_DETECTION = false;
+
+    /**
+     * set true if you want to preprocess frame by bands and verify lens candidates
+     * in parallel on all cores
+     * set false if you want to process them one by one on the detection thread
+     */
+    private static final boolean USE_PARALLEL_DETECTION = true;
+
+    /**
+     * set true if you want to track lenses across frames, this shows only confirmed lenses
+     * and skips re-verification of them on most frames
+     * set false if you want to show lenses detected on each frame as is
+     */
+    private static final boolean USE_TRACKER = true;
+
+    /**
+     * set true if you want to process only the regions of the frame that changed
+     * since previous frame and reuse detections of other regions
+     * set false if you want to process whole frame on every frame
+     */
+    private static final boolean USE_INCREMENTAL_DETECTION = false;
+
+    /**
+     * set true if you want to propose lens candidates on downsampled image
+     * and process only the regions around them at full resolution,
+     * candidates are proposed on quarter resolution image for 1280x720 and larger frames,
+     * otherwise on half resolution image
+     * set false if you want to process whole frame at full resolution
+     */
+    private static final boolean USE_PYRAMID_DETECTION = false;
+
+    /**
+     * set true if you want to extract lens candidates from connected components with stats,
+     * this is faster on cluttered scene but contour area is estimated from pixel area
+     * set false if you want to extract candidates by tracing contours
+     */
+    private static final boolean USE_CONNECTED_COMPONENTS = false;
+
+    /**
+     * set true if you want to lower analysis rate while no lens candidate is in the scene,
+     * frames are analyzed at ANALYSIS_MIN_RATE after no candidate was found for
+     * ANALYSIS_IDLE_DELAY_MS and at ANALYSIS_MAX_RATE(0: every frame) once a candidate is found
+     * set false if you want to analyze every frame
+     */
+    private static final boolean USE_ADAPTIVE_RATE = true;
+    private static final float ANALYSIS_MIN_RATE = 2;
+    private static final float ANALYSIS_MAX_RATE = 0;
+    private static final long ANALYSIS_IDLE_DELAY_MS = 3000;
+
+    /**
+     * set true if you want to keep last seconds of encoded frames in memory and save them
+     * as a clip when confirmed lens is detected or you long click on capture button
+     */
+    private static final boolean USE_PRE_EVENT_RECORDER = false;
+    private static final int PRE_ROLL_SEC = 5;
+    private static final int POST_ROLL_SEC = 5;
+    private static final long PRE_EVENT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int PRE_EVENT_BIT_RATE = 1000000;
+    private static final int PRE_EVENT_FRAME_RATE = 30;
+
+    /**
+     * set true if you want to log detections into app specific external storage,
+     * logged detections can be read by DetectionEventLog.Reader.
+     * old segments are never deleted, so you should delete them by yourself
+     */
+    private static final boolean USE_EVENT_LOG = false;
+    private static final int EVENT_LOG_RECORDS_PER_SEGMENT = 256 * 1024;
+
+    /**
+     * set true if you want to scan with several cameras at once(e.g. cameras on a USB hub),
+     * cameras that are attached while the camera of this activity is opened are scanned
+     * without preview, frames of them are processed by shared DetectionPool
+     * and detections are logged into events/<device> when USE_EVENT_LOG is true.
+     * MULTI_CAMERA_MAX_WORKERS is max number of workers of the pool, 0: number of cores
+     */
+    private static final boolean USE_MULTI_CAMERA = false;
+    private static final int MULTI_CAMERA_MAX_WORKERS = 0;
+
+    /**
+     * camera control sweep that is started by long click on settings button,
+     * each control is set to these percentages of its supported range,
+     * each setting is measured over SWEEP_MEASURE_FRAMES frames after SWEEP_SETTLE_FRAMES frames
+     */
+    private static final int[] SWEEP_LEVELS = {20, 40, 60, 80};
+    private static final int SWEEP_SETTLE_FRAMES = 2;
+    private static final int SWEEP_MEASURE_FRAMES = 2;
+    private static final int[] SWEEP_CONTROLS = {
+            UVCCamera.PU_BRIGHTNESS, UVCCamera.PU_CONTRAST, UVCCamera.PU_GAMMA,
+            UVCCamera.PU_GAIN, UVCCamera.PU_SHARPNESS};
+
+    /**
+     * format and quality of still images, quality is ignored for PNG
+     */
+    private static final Bitmap.CompressFormat STILL_IMAGE_FORMAT = Bitmap.CompressFormat.PNG;
+    private static final int STILL_IMAGE_QUALITY = 100;
+
+    /**
+     * interval of logging metrics of camera handler in debug build
+     */
+    private static final long METRICS_INTERVAL_MS = 5000;
+
     /**
      * preview resolution(width)
      * if your camera does not support specific resolution and mode,
@@ -145,6 +260,12 @@ public final class MainActivity extends BaseActivity
      * Handler to execute camera related methods sequentially on private thread
      */
     private UVCCameraHandlerMultiSurface mCameraHandler;
+    /**
+     * device that mCameraHandler opened, other cameras are opened by mCameraSessions
+     */
+    private volatile UsbDevice mPrimaryDevice;
+    private DetectionPool mDetectionPool;
+    private CameraSessionManager mCameraSessions;
     /**
      * for camera preview display
      */
@@ -168,7 +289,6 @@ public final class MainActivity extends BaseActivity
     private SeekBar mBrightnessSeekbar, mContrastSeekbar, mGammaSeekbar, mGainSeekbar, mSharpnessSeekbar;
     //private SeekBar mZoomSeekbar;
 
-    protected ImageProcessor mImageProcessor;
     private TextView mbrightness, mcontrast, mgamma, mgain, msharpness;
 
     @Override
@@ -180,6 +300,7 @@ public final class MainActivity extends BaseActivity
         mCameraButton.setOnCheckedChangeListener(mOnCheckedChangeListener);
         mCaptureButton = findViewById(R.id.capture_button);
         mCaptureButton.setOnClickListener(mOnClickListener);
+        mCaptureButton.setOnLongClickListener(mOnLongClickListener);
         mCaptureButton.setVisibility(View.INVISIBLE);
 
         mUVCCameraView = findViewById(R.id.camera_view);
@@ -187,9 +308,15 @@ public final class MainActivity extends BaseActivity
         mUVCCameraView.setAspectRatio(PREVIEW_WIDTH / (float) PREVIEW_HEIGHT);
 
         mResultView = findViewById(R.id.result_view);
+        // result view only has detections, camera preview should be seen through it
+        mResultView.setZOrderMediaOverlay(true);
+        mResultView.getHolder().setFormat(PixelFormat.TRANSPARENT);
+        mResultView.setOnClickListener(mOnClickListener);
+        mResultView.setOnLongClickListener(mOnLongClickListener);
 
         mSettingsButton = findViewById(R.id.settings_button);
         mSettingsButton.setOnClickListener(mOnClickListener);
+        mSettingsButton.setOnLongClickListener(mOnLongClickListener);
         mResetButton = findViewById(R.id.reset_button);
         mResetButton.setOnClickListener(mOnClickListener);
         mBrightnessSeekbar = findViewById(R.id.brightness_seekbar);
@@ -223,6 +350,27 @@ public final class MainActivity extends BaseActivity
         mUSBMonitor = new USBMonitor(this, mOnDeviceConnectListener);
         mCameraHandler = UVCCameraHandlerMultiSurface.createHandler(this, mUVCCameraView,
                 USE_SURFACE_ENCODER ? 0 : 1, PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_MODE);
+        mCameraHandler.setSnapshotBuffer(mSnapshotBuffer);
+        mCameraHandler.addCallback(mCameraCallback);
+        mCameraHandler.setStillImageFormat(STILL_IMAGE_FORMAT, STILL_IMAGE_QUALITY);
+        if (DEBUG) {
+            mCameraHandler.setMetricsCallback(new AbstractUVCCameraHandler.MetricsCallback() {
+                @Override
+                public void onMetrics(final CameraMetrics metrics) {
+                    Log.v(TAG, "onMetrics:" + metrics);
+                    if (mCameraSessions != null) {
+                        for (final DetectionPool.Session session: mCameraSessions.getSessions()) {
+                            Log.v(TAG, "onMetrics:" + session);
+                        }
+                    }
+                }
+            }, METRICS_INTERVAL_MS);
+        }
+        if (USE_MULTI_CAMERA) {
+            mDetectionPool = new DetectionPool(MULTI_CAMERA_MAX_WORKERS);
+            mCameraSessions = new CameraSessionManager(this, mDetectionPool,
+                    PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_MODE, mSessionCallback);
+        }
         //hc--
         System.loadLibrary("opencv_java3");
         //----
@@ -251,6 +399,15 @@ public final class MainActivity extends BaseActivity
             mCameraHandler.release();
             mCameraHandler = null;
         }
+        if (mCameraSessions != null) {
+            mCameraSessions.release();
+            mCameraSessions = null;
+        }
+        if (mDetectionPool != null) {
+            mDetectionPool.shutdown();
+            mDetectionPool = null;
+        }
+        mSnapshotBuffer.close();
         if (mUSBMonitor != null) {
             mUSBMonitor.destroy();
             mUSBMonitor = null;
@@ -287,6 +444,10 @@ public final class MainActivity extends BaseActivity
                 case R.id.reset_button:
                     resetSettings();
                     break;
+                case R.id.result_view:
+                    // toggle stage latency overlay
+                    mShowStageStats = !mShowStageStats;
+                    break;
             }
         }
     };
@@ -310,7 +471,10 @@ public final class MainActivity extends BaseActivity
     };
 
     /**
-     * capture still image when you long click on preview image(not on buttons)
+     * capture still image when you long click on preview image(not on buttons),
+     * dump stage latency histograms when you long click on result image,
+     * save pre-event clip when you long click on capture button,
+     * sweep camera controls when you long click on settings button
      */
     private final OnLongClickListener mOnLongClickListener = new OnLongClickListener() {
         @Override
@@ -323,6 +487,18 @@ public final class MainActivity extends BaseActivity
                         }
                         return true;
                     }
+                    break;
+                case R.id.result_view:
+                    dumpStageStats();
+                    return true;
+                case R.id.capture_button:
+                    if (mPreEventRecorder != null) {
+                        mPreEventRecorder.trigger();
+                        return true;
+                    }
+                    break;
+                case R.id.settings_button:
+                    return startControlSweep();
             }
             return false;
         }
@@ -383,6 +559,10 @@ public final class MainActivity extends BaseActivity
             mPreviewSurfaceId = 0;
         }
         mCameraHandler.close();
+        mPrimaryDevice = null;
+        if (mCameraSessions != null) {
+            mCameraSessions.closeAll();
+        }
         setCameraButton(false);
     }
 
@@ -393,6 +573,29 @@ public final class MainActivity extends BaseActivity
         public void onAttach(final UsbDevice device) {
             Toast.makeText(MainActivity.this,
                     "USB_DEVICE_ATTACHED", Toast.LENGTH_SHORT).show();
+            // add the camera to the scan while scanning
+            final UsbDevice primary = mPrimaryDevice;
+            if ((mCameraSessions != null) && (primary != null) && isVideoDevice(device)
+                    && !primary.equals(device) && !mCameraSessions.contains(device)) {
+                mUSBMonitor.requestPermission(device);
+            }
+        }
+
+        /**
+         * whether the device has video class interface(UVC), other USB devices on the hub
+         * (e.g. storage or keyboard) are never asked for permission
+         * @param device
+         * @return
+         */
+        private boolean isVideoDevice(final UsbDevice device) {
+            if (device.getDeviceClass() == UsbConstants.USB_CLASS_VIDEO) return true;
+            final int n = device.getInterfaceCount();
+            for (int i = 0; i < n; i++) {
+                if (device.getInterface(i).getInterfaceClass() == UsbConstants.USB_CLASS_VIDEO) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
@@ -400,6 +603,12 @@ public final class MainActivity extends BaseActivity
                               final UsbControlBlock ctrlBlock, final boolean createNew) {
 
             if (DEBUG) Log.v(TAG, "onConnect:");
+            final UsbDevice primary = mPrimaryDevice;
+            if ((mCameraSessions != null) && (primary != null) && !primary.equals(device)) {
+                mCameraSessions.open(ctrlBlock);
+                return;
+            }
+            mPrimaryDevice = device;
             mCameraHandler.open(ctrlBlock);
             startPreview();
             updateItems();
@@ -410,6 +619,16 @@ public final class MainActivity extends BaseActivity
                                  final UsbControlBlock ctrlBlock) {
 
             if (DEBUG) Log.v(TAG, "onDisconnect:");
+            final CameraSessionManager sessions = mCameraSessions;
+            if ((sessions != null) && sessions.contains(device)) {
+                queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        sessions.close(device);
+                    }
+                }, 0);
+                return;
+            }
             if (mCameraHandler != null) {
                 queueEvent(new Runnable() {
                     @Override
@@ -482,12 +701,6 @@ public final class MainActivity extends BaseActivity
             if (isFinishing()) return;
             final int visible_active = isActive() ? View.VISIBLE : View.INVISIBLE;
             mToolsLayout.setVisibility(visible_active);
-            //gr_setting
-            mCameraHandler.setValue(UVCCamera.PU_BRIGHTNESS, 30);  //기본값: 30
-            mCameraHandler.setValue(UVCCamera.PU_CONTRAST, 60);  //기본값: 60
-            mCameraHandler.setValue(UVCCamera.PU_GAMMA, 30);  //기본값: 30
-            mCameraHandler.setValue(UVCCamera.PU_GAIN, 40);  //기본값: 40
-            mCameraHandler.setValue(UVCCamera.PU_SHARPNESS, 70);  //기본값: 70
             mSettingsButton.setVisibility(
                     checkSupportFlag(UVCCamera.PU_BRIGHTNESS)
                             ? visible_active : View.INVISIBLE);
@@ -514,14 +727,41 @@ public final class MainActivity extends BaseActivity
             mSharpnessSeekbar.setProgress(getValue(UVCCamera.PU_SHARPNESS));
             ViewAnimationHelper.fadeIn(mValueLayout, -1, 0, mViewAnimationListener);
 
-            mbrightness.setText(String.format(Locale.US, "Brightness:%3d", getValue(UVCCamera.PU_BRIGHTNESS)));
-            mcontrast.setText(String.format(Locale.US, "Contrast:%3d", getValue(UVCCamera.PU_CONTRAST)));
-            mgamma.setText(String.format(Locale.US, "Gamma:%3d", getValue(UVCCamera.PU_GAMMA)));
-            mgain.setText(String.format(Locale.US, "Gain:%3d", getValue(UVCCamera.PU_GAIN)));
-            msharpness.setText(String.format(Locale.US, "Sharpness:%3d", getValue(UVCCamera.PU_SHARPNESS)));
+            updateValueTexts();
         }
     }
 
+    /**
+     * show values of controls, values come from the cache of camera handler
+     */
+    private void updateValueTexts() {
+        mbrightness.setText(String.format(Locale.US, "Brightness:%3d", getValue(UVCCamera.PU_BRIGHTNESS)));
+        mcontrast.setText(String.format(Locale.US, "Contrast:%3d", getValue(UVCCamera.PU_CONTRAST)));
+        mgamma.setText(String.format(Locale.US, "Gamma:%3d", getValue(UVCCamera.PU_GAMMA)));
+        mgain.setText(String.format(Locale.US, "Gain:%3d", getValue(UVCCamera.PU_GAIN)));
+        msharpness.setText(String.format(Locale.US, "Sharpness:%3d", getValue(UVCCamera.PU_SHARPNESS)));
+    }
+
+    /**
+     * control that the seek bar changes
+     * @param seekBar
+     * @return 0 if the seek bar is not for camera control
+     */
+    private int controlOf(final SeekBar seekBar) {
+        if (seekBar == mBrightnessSeekbar) {
+            return UVCCamera.PU_BRIGHTNESS;
+        } else if (seekBar == mContrastSeekbar) {
+            return UVCCamera.PU_CONTRAST;
+        } else if (seekBar == mGammaSeekbar) {
+            return UVCCamera.PU_GAMMA;
+        } else if (seekBar == mGainSeekbar) {
+            return UVCCamera.PU_GAIN;
+        } else if (seekBar == mSharpnessSeekbar) {
+            return UVCCamera.PU_SHARPNESS;
+        }
+        return 0;
+    }
+
     private void resetSettings() {
         if (isActive()) {
             mBrightnessSeekbar.setProgress(resetValue(UVCCamera.PU_BRIGHTNESS));
@@ -530,11 +770,7 @@ public final class MainActivity extends BaseActivity
             mGainSeekbar.setProgress(resetValue(UVCCamera.PU_GAIN));
             mSharpnessSeekbar.setProgress(resetValue(UVCCamera.PU_SHARPNESS));
 
-            mbrightness.setText(String.format(Locale.US, "Brightness:%3d", getValue(UVCCamera.PU_BRIGHTNESS)));
-            mcontrast.setText(String.format(Locale.US, "Contrast:%3d", getValue(UVCCamera.PU_CONTRAST)));
-            mgamma.setText(String.format(Locale.US, "Gamma:%3d", getValue(UVCCamera.PU_GAMMA)));
-            mgain.setText(String.format(Locale.US, "Gain:%3d", getValue(UVCCamera.PU_GAIN)));
-            msharpness.setText(String.format(Locale.US, "Sharpness:%3d", getValue(UVCCamera.PU_SHARPNESS)));
+            updateValueTexts();
         }
         mSettingMode = -1;
         ViewAnimationHelper.fadeOut(mValueLayout, -1, 0, mViewAnimationListener);
@@ -607,6 +843,12 @@ public final class MainActivity extends BaseActivity
 
             if (fromUser) {
                 runOnUiThread(mSettingHideTask, SETTINGS_HIDE_DELAY_MS);
+                // writes are queued to camera thread and coalesced while dragging
+                final int flag = controlOf(seekBar);
+                if ((flag != 0) && isActive()) {
+                    setValue(flag, progress);
+                    updateValueTexts();
+                }
             }
         }
 
@@ -624,11 +866,7 @@ public final class MainActivity extends BaseActivity
                 setValue(UVCCamera.PU_GAIN, mGainSeekbar.getProgress());
                 setValue(UVCCamera.PU_SHARPNESS, mSharpnessSeekbar.getProgress());
 
-                mbrightness.setText(String.format(Locale.US, "Brightness:%3d", getValue(UVCCamera.PU_BRIGHTNESS)));
-                mcontrast.setText(String.format(Locale.US, "Contrast:%3d", getValue(UVCCamera.PU_CONTRAST)));
-                mgamma.setText(String.format(Locale.US, "Gamma:%3d", getValue(UVCCamera.PU_GAMMA)));
-                mgain.setText(String.format(Locale.US, "Gain:%3d", getValue(UVCCamera.PU_GAIN)));
-                msharpness.setText(String.format(Locale.US, "Sharpness:%3d", getValue(UVCCamera.PU_SHARPNESS)));
+                updateValueTexts();
             }    // if (active)
         }
     };
@@ -678,7 +916,86 @@ public final class MainActivity extends BaseActivity
 
     //================================================================================
     private volatile boolean mIsRunning;
-    private int mImageProcessorSurfaceId;
+    private DetectionPipeline mPipeline;
+    private volatile PreEventRecorder mPreEventRecorder;
+    /**
+     * latency histograms of each stage of detection and drawing, always recorded
+     */
+    private final StageStats mStageStats = new StageStats();
+    /**
+     * whether stage latency overlay is drawn, toggled by tapping result view
+     */
+    private volatile boolean mShowStageStats = false;
+    /**
+     * latest processed frame and its detections for still capture
+     */
+    private final FrameSnapshotBuffer mSnapshotBuffer = new FrameSnapshotBuffer();
+    /**
+     * sweep of camera controls, measured with detections on detection thread
+     */
+    private final ControlSweep mControlSweep = new ControlSweep(
+            new ControlSweep.Controls() {
+                @Override
+                public boolean isSupported(final int control) {
+                    return checkSupportFlag(control);
+                }
+
+                @Override
+                public int getValue(final int control) {
+                    return MainActivity.this.getValue(control);
+                }
+
+                @Override
+                public void setValue(final int control, final int value) {
+                    MainActivity.this.setValue(control, value);
+                }
+            },
+            SWEEP_LEVELS, SWEEP_SETTLE_FRAMES, SWEEP_MEASURE_FRAMES,
+            new ControlSweep.Callback() {
+                @Override
+                public void onSweepFinished(final int[] controls, final int[] values, final float score) {
+                    if (DEBUG) Log.v(TAG, "onSweepFinished:values=" + Arrays.toString(values)
+                            + ",score=" + score);
+                    setRatePinned(false);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mToolsLayout.getVisibility() == View.VISIBLE) {
+                                mBrightnessSeekbar.setProgress(getValue(UVCCamera.PU_BRIGHTNESS));
+                                mContrastSeekbar.setProgress(getValue(UVCCamera.PU_CONTRAST));
+                                mGammaSeekbar.setProgress(getValue(UVCCamera.PU_GAMMA));
+                                mGainSeekbar.setProgress(getValue(UVCCamera.PU_GAIN));
+                                mSharpnessSeekbar.setProgress(getValue(UVCCamera.PU_SHARPNESS));
+                                updateValueTexts();
+                            }
+                            Toast.makeText(MainActivity.this,
+                                    "sweep finished", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            });
+
+    /**
+     * start sweep of camera controls while detection is running
+     * @return true if the sweep was started
+     */
+    private boolean startControlSweep() {
+        if (!mCameraHandler.isPreviewing() || (mPipeline == null)) return false;
+        if (!mControlSweep.start(SWEEP_CONTROLS)) return false;
+        // every frame is needed to finish the sweep quickly
+        setRatePinned(true);
+        Toast.makeText(this, "sweep started", Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
+    private void setRatePinned(final boolean pinned) {
+        final DetectionPipeline pipeline = mPipeline;
+        final AnalysisRateController controller
+                = pipeline != null ? pipeline.getDetectionThread().getRateController() : null;
+        if (controller != null) {
+            controller.setPinned(pinned);
+        }
+    }
 
     /**
      * start image processing
@@ -689,250 +1006,415 @@ public final class MainActivity extends BaseActivity
     protected void startImageProcessor(final int processing_width, final int processing_height) {
         if (DEBUG) Log.v(TAG, "startImageProcessor:");
         mIsRunning = true;
-        if (mImageProcessor == null) {
-            mImageProcessor = new ImageProcessor(PREVIEW_WIDTH, PREVIEW_HEIGHT,    // src size
-                    new MyImageProcessorCallback(processing_width, processing_height));    // processing size
-            mImageProcessor.start(processing_width, processing_height);    // processing size
-            final Surface surface = mImageProcessor.getSurface();
-            mImageProcessorSurfaceId = surface != null ? surface.hashCode() : 0;
-            if (mImageProcessorSurfaceId != 0) {
-                mCameraHandler.addSurface(mImageProcessorSurfaceId, surface, false);
+        if (mPipeline == null) {
+            // NV21 frames come from camera at preview size,
+            // RGBA frames come from ImageProcessor at processing size
+            final UvcFrameSource source = new UvcFrameSource(mCameraHandler,
+                    USE_NV21_DETECTION ? Frame.FORMAT_NV21 : Frame.FORMAT_RGBA,
+                    PREVIEW_WIDTH, PREVIEW_HEIGHT, processing_width, processing_height);
+            final int width = source.getWidth();
+            final int height = source.getHeight();
+            final MyDetectionCallback callback = new MyDetectionCallback(width, height);
+            mPipeline = new DetectionPipeline(callback);
+            final DetectionThread thread = mPipeline.getDetectionThread();
+            callback.mDetectionThread = thread;
+            thread.setParallel(USE_PARALLEL_DETECTION);
+            thread.setTrackingEnabled(USE_TRACKER);
+            thread.setIncremental(USE_INCREMENTAL_DETECTION);
+            thread.setPyramidLevels(!USE_PYRAMID_DETECTION ? 0
+                    : (width * height >= 1280 * 720 ? 2 : 1));
+            thread.setConnectedComponents(USE_CONNECTED_COMPONENTS);
+            thread.setStageStats(mStageStats);
+            if (USE_ADAPTIVE_RATE) {
+                thread.setRateController(new AnalysisRateController(
+                        ANALYSIS_MIN_RATE, ANALYSIS_MAX_RATE, ANALYSIS_IDLE_DELAY_MS));
+            }
+            if (USE_EVENT_LOG) {
+                thread.setEventLog(openEventLog());
             }
+            mPipeline.start(source);
+        }
+        if (USE_PRE_EVENT_RECORDER && (mPreEventRecorder == null)) {
+            startPreEventRecorder();
         }
     }
 
     /**
-     * stop image processing
+     * open detection event log in app specific external storage
+     * @return null if the storage is not available
      */
-    protected void stopImageProcessor() {
-        if (DEBUG) Log.v(TAG, "stopImageProcessor:");
-        if (mImageProcessorSurfaceId != 0) {
-            mCameraHandler.removeSurface(mImageProcessorSurfaceId);
-            mImageProcessorSurfaceId = 0;
-        }
-        if (mImageProcessor != null) {
-            mImageProcessor.release();
-            mImageProcessor = null;
+    private DetectionEventLog openEventLog() {
+        final File dir = getExternalFilesDir("events");
+        if (dir == null) return null;
+        try {
+            return new DetectionEventLog(dir, EVENT_LOG_RECORDS_PER_SEGMENT);
+        } catch (final IOException e) {
+            Log.w(TAG, e);
+            return null;
         }
     }
 
     /**
-     * callback listener from `ImageProcessor`
+     * start encoding NV21 frames of preview size into the pre-event ring
      */
+    private void startPreEventRecorder() {
+        final PreEventRecorder recorder = new PreEventRecorder(
+                mCameraHandler.getWidth(), mCameraHandler.getHeight(),
+                PRE_EVENT_FRAME_RATE, PRE_EVENT_BIT_RATE, PRE_ROLL_SEC, POST_ROLL_SEC,
+                PRE_EVENT_MAX_BYTES, mPreEventCallback);
+        try {
+            recorder.start();
+        } catch (final Exception e) {
+            Log.w(TAG, e);
+            recorder.release();
+            return;
+        }
+        mPreEventRecorder = recorder;
+        mCameraHandler.addFrameCallback(recorder);
+    }
 
-    public static Bitmap bitmapOutput = null;
-
-    protected class MyImageProcessorCallback implements ImageProcessor.ImageProcessorCallback {
+    private final PreEventRecorder.Callback mPreEventCallback = new PreEventRecorder.Callback() {
+        @Override
+        public void onClipSaved(final String path) {
+            if (DEBUG) Log.v(TAG, "onClipSaved:" + path);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(MainActivity.this, path, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
 
-        private final int width, height;
-        private final Matrix matrix = new Matrix();
-        private Bitmap mFrame;
+        @Override
+        public void onError(final Exception e) {
+            Log.w(TAG, e);
+        }
+    };
 
-        protected MyImageProcessorCallback(
-                final int processing_width, final int processing_height) {
+    /**
+     * set up detection of cameras that were added to the scan,
+     * called on the thread of USBMonitor and on worker threads of DetectionPool
+     */
+    private final CameraSessionManager.Callback mSessionCallback
+            = new CameraSessionManager.Callback() {
 
-            width = processing_width;
-            height = processing_height;
+        @Override
+        public void onSessionCreated(final UsbDevice device, final DetectionStream stream) {
+            if (DEBUG) Log.v(TAG, "onSessionCreated:" + device.getDeviceName());
+            stream.setTrackingEnabled(USE_TRACKER);
+            stream.setIncremental(USE_INCREMENTAL_DETECTION);
+            stream.setPyramidLevels(!USE_PYRAMID_DETECTION ? 0
+                    : (PREVIEW_WIDTH * PREVIEW_HEIGHT >= 1280 * 720 ? 2 : 1));
+            stream.setConnectedComponents(USE_CONNECTED_COMPONENTS);
+            if (USE_ADAPTIVE_RATE) {
+                stream.setRateController(new AnalysisRateController(
+                        ANALYSIS_MIN_RATE, ANALYSIS_MAX_RATE, ANALYSIS_IDLE_DELAY_MS));
+            }
+            if (USE_EVENT_LOG) {
+                final File dir = getExternalFilesDir("events");
+                if (dir != null) {
+                    try {
+                        // device name is like /dev/bus/usb/001/002
+                        stream.setEventLog(new DetectionEventLog(
+                                new File(dir, device.getDeviceName().replace('/', '_')),
+                                EVENT_LOG_RECORDS_PER_SEGMENT));
+                    } catch (final IOException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            }
         }
 
         @Override
-        public void onFrame(final ByteBuffer frame) {
-            if (mResultView != null) {
-                final SurfaceHolder holder = mResultView.getHolder();
-                if ((holder == null)
-                        || (holder.getSurface() == null)
-                        || (frame == null)) return;
-
-//--------------------------------------------------------------------------------
-// Using SurfaceView and Bitmap to draw resulted images is inefficient way,
-// but functions onOpenCV are relatively heavy and expect slower than source
-// frame rate. So currently just use the way to simply this sample app.
-// If you want to use much efficient way, try to use as same way as
-// UVCCamera class use to receive images from UVC camera.
-//--------------------------------------------------------------------------------
-                if (mFrame == null) {
-                    mFrame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                    final float scaleX = mResultView.getWidth() / (float) width;
-                    final float scaleY = mResultView.getHeight() / (float) height;
-                    matrix.reset();
-                    matrix.postScale(scaleX, scaleY);
-                }
-                try {
-                    frame.clear();
-                    mFrame.copyPixelsFromBuffer(frame);
-
-                    final Canvas canvas = holder.lockCanvas();
-// mn
-//2021-02-08
-                    Mat img_output = new Mat();
-                    Mat img_copy = new Mat();
-                    Mat img_show = new Mat();
-                    Utils.bitmapToMat(mFrame, img_output);
-                    Imgproc.cvtColor(img_output, img_copy, Imgproc.COLOR_BGR2GRAY);
-                    Imgproc.cvtColor(img_output, img_show, Imgproc.COLOR_BGR2RGB);
-
-                    Mat se = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
-
-                    Mat subimage_mor = new Mat();
-                    org.opencv.core.Size s = new Size(5, 5);
-                    Imgproc.GaussianBlur(img_copy, subimage_mor, s, 2);
-                    Imgproc.adaptiveThreshold(subimage_mor, subimage_mor, 255, ADAPTIVE_THRESH_MEAN_C, THRESH_BINARY, 27, -15);  //bs27(odd). c-15
-
-                    Imgproc.morphologyEx(subimage_mor, subimage_mor, Imgproc.MORPH_OPEN, se);
-//
-////##############################################################################
-////
-                    Mat hierarchy = new Mat();
-
-                    List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-
-                    Imgproc.findContours(subimage_mor, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
-
-                    int[] current_hierarchy = new int[4];
-
-                    for (int i = 0; i < contours.size(); i++) {
-                        Mat contour = contours.get(i);
-                        MatOfPoint2f mMOP2f1 = new MatOfPoint2f();
-                        MatOfPoint2f mMOP2f2 = new MatOfPoint2f();
-                        contours.get(i).convertTo(mMOP2f1, CvType.CV_32FC2);
-                        Imgproc.approxPolyDP(mMOP2f1, mMOP2f2, 3, true);
-                        mMOP2f2.convertTo(contours.get(i), CvType.CV_32S);
-                        Rect rect = Imgproc.boundingRect(contours.get(i));
-                        Rect rect2 = Imgproc.boundingRect(contours.get(i));
-                        double contourArea = Imgproc.contourArea(contour);
-
-                        hierarchy.get(0, i, current_hierarchy);
-                        if (max(rect.height, rect.width) / min(rect.height, rect.width) > 2) {
-                            try {
-                                Thread.sleep(1);
-                                // Do some stuff
-                            } catch (Exception e) {
-                                e.getLocalizedMessage();
-                            }
-                            continue;
-                        }
-                        if (contourArea < 50) {
-                            try {
-                                Thread.sleep(1);
-                                // Do some stuff
-                            } catch (Exception e) {
-                                e.getLocalizedMessage();
-                            }
-                            continue;
-                        }
-                        if (contourArea > 80) {
-                            try {
-                                Thread.sleep(1);
-                                // Do some stuff
-                            } catch (Exception e) {
-                                e.getLocalizedMessage();
-                            }
-                            continue;
-                        }
+        public void onDetected(final UsbDevice device,
+                final Frame frame, final Mat image, final DetectionResult result) {
 
-                        Mat checkimg = new Mat(subimage_mor, rect);
-                        Mat se2 = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
+            if (DEBUG && (result.size() > 0)) Log.v(TAG, "onDetected:"
+                    + device.getDeviceName() + ",n=" + result.size());
+        }
 
-                        Imgproc.morphologyEx(checkimg, checkimg, Imgproc.MORPH_DILATE, se2);
+        @Override
+        public void onError(final UsbDevice device, final Exception e) {
+            Log.w(TAG, e);
+        }
+    };
 
-                        Mat hierarchy_temp = new Mat();
+    /**
+     * follow preview resolution that was changed by AbstractUVCCameraHandler#resize,
+     * called on camera thread while the stream is stopped
+     */
+    private final AbstractUVCCameraHandler.CameraCallback mCameraCallback
+            = new AbstractUVCCameraHandler.CameraCallback() {
 
-                        List<MatOfPoint> contours_temp = new ArrayList<MatOfPoint>();
-                        Imgproc.findContours(checkimg, contours_temp, hierarchy_temp, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        @Override
+        public void onResize(final int width, final int height) {
+            if (DEBUG) Log.v(TAG, "onResize:" + width + "x" + height);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mUVCCameraView.setAspectRatio(width / (float) height);
+                }
+            });
+            // encoder of pre-event recorder was configured with former size
+            final PreEventRecorder recorder = mPreEventRecorder;
+            if (recorder != null) {
+                mPreEventRecorder = null;
+                mCameraHandler.removeFrameCallback(recorder);
+                recorder.release();
+                startPreEventRecorder();
+            }
+        }
 
-                        if(contours_temp.size()>1){
-                            continue;
-                        }
-                        if(contours_temp.size() == 0){
-                            continue;
-                        }
+        /**
+         * gr_setting: apply default values of camera controls(brightness 30, contrast 60,
+         * gamma 30, gain 40, sharpness 70) once when the camera is opened,
+         * so that values that were changed by user or by control sweep are kept afterwards
+         */
+        @Override
+        public void onOpen() {
+            if (mControlSweep.isRunning()) return;
+            // sweep controls are all controls that have default value
+            for (final int flag: SWEEP_CONTROLS) {
+                if (mCameraHandler.checkSupportFlag(flag)) {
+                    mCameraHandler.resetValue(flag);
+                }
+            }
+        }
 
-                        //나사 제외 검출
-                        if (current_hierarchy[3] == -1) {
-                            Mat crop_image = new Mat(img_show, rect2);
-
-                            double sum_pix = 0;
-
-                            int pix = (rect2.height + 2) * (rect2.width + 2);
-
-                            Mat bCnl = new Mat();
-                            Core.extractChannel(crop_image, bCnl, 0);
-                            Mat gCnl = new Mat();
-                            Core.extractChannel(crop_image, gCnl, 1);
-                            Mat rCnl = new Mat();
-                            Core.extractChannel(crop_image, rCnl, 2);
-                            double bMean = Core.mean(bCnl).val[0];
-                            double gMean = Core.mean(gCnl).val[0];
-                            double rMean = Core.mean(rCnl).val[0];
-                            sum_pix  = bMean + gMean + rMean ;
-
-                            int average_pix = (int)sum_pix / 3;
-
-                            //if ((average_pix >= 0 && average_pix <= 20) || (average_pix >= 100 && average_pix <= 190) || (average_pix >= 220)) {
-                            if ((average_pix < 100) || (average_pix > 150)) {
-                                try {
-                                    Thread.sleep(1);
-                                    // Do some stuff
-                                } catch (Exception e) {
-                                    e.getLocalizedMessage();
-                                }
-                                continue;
-                            }
+        @Override
+        public void onClose() {
+        }
 
-                            int circle_x = ((rect2.x * 2) + rect.width) / 2;
-                            int circle_y = ((rect2.y * 2) + rect.height) / 2;
+        @Override
+        public void onStartPreview() {
+        }
 
-                            Imgproc.putText(img_show, Integer.toString(average_pix), new Point(rect.x , rect.y ), 2, 1, new Scalar(0, 0, 255));
-                            Imgproc.circle(img_show, new Point(circle_x, circle_y), 10, new Scalar(0, 255, 0), 4);
-                        }
-                        // 여기까지 나사 제외 검출
+        @Override
+        public void onStopPreview() {
+        }
 
-                        if (current_hierarchy[3] == -1) {
-                            // random colour
-                            continue;
-                        }
-                        Imgproc.circle(img_show, new Point((rect.x + rect.x + rect.width)/2, (rect.y+rect.y+rect.height)/2), 5, new Scalar(255,0,0), 4);
+        @Override
+        public void onStartRecording() {
+        }
 
-//						Vibrator vib = (Vibrator) getSystemService(VIBRATOR_SERVICE);
-//						vib.vibrate(20);
-                    }
+        @Override
+        public void onStopRecording() {
+        }
 
-//##############################################################################
+        @Override
+        public void onError(final Exception e) {
+            Log.w(TAG, e);
+        }
 
-                    //Imgproc.rectangle(img_show, new Point(160, 120), new Point(480, 360), new Scalar(255, 255, 0), 4);
-                    bitmapOutput = Bitmap.createBitmap(img_output.cols(), img_output.rows(), Bitmap.Config.ARGB_8888);
-                    Utils.matToBitmap(img_show, bitmapOutput);
+        @Override
+        public void onCaptureStill(final String path) {
+        }
+    };
 
+    /**
+     * stop image processing, detector is released on detection thread
+     */
+    protected void stopImageProcessor() {
+        if (DEBUG) Log.v(TAG, "stopImageProcessor:");
+        mControlSweep.cancel();
+        if (mPipeline != null) {
+            mPipeline.stop();
+            if (DEBUG) Log.v(TAG, "stopImageProcessor:offered=" + mPipeline.getOfferedCount()
+                    + ",dropped=" + mPipeline.getDropCount());
+            final AnalysisRateController controller
+                    = mPipeline.getDetectionThread().getRateController();
+            if (DEBUG && (controller != null)) Log.v(TAG, "stopImageProcessor:analyzed="
+                    + controller.getAnalyzedCount() + ",skipped=" + controller.getSkippedCount());
+            mPipeline = null;
+        }
+        final PreEventRecorder recorder = mPreEventRecorder;
+        mPreEventRecorder = null;
+        if (recorder != null) {
+            mCameraHandler.removeFrameCallback(recorder);
+            recorder.release();
+        }
+    }
+
+    /**
+     * write stage latency histograms into app specific external storage
+     */
+    private void dumpStageStats() {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                final File dir = getExternalFilesDir(null);
+                if (dir == null) return;
+                final File file = new File(dir, "stage_stats_"
+                        + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".tsv");
+                try {
+                    final Writer writer = new FileWriter(file);
                     try {
-                        Thread.sleep(10);
-                        // Do some stuff
-                    } catch (Exception e) {
-                        e.getLocalizedMessage();
+                        mStageStats.dump(writer);
+                    } finally {
+                        writer.close();
                     }
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(MainActivity.this,
+                                    file.getAbsolutePath(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * callback listener from `DetectionThread`
+     */
+    protected class MyDetectionCallback implements DetectionThread.Callback {
 
-//###################################################################
+        private final int width, height;
+        /**
+         * detections are drawn over the camera preview on transparent mResultView
+         */
+        private final DetectionOverlay mOverlay;
+        /**
+         * stage latency overlay, text is updated every OVERLAY_INTERVAL frames
+         */
+        private static final int OVERLAY_INTERVAL = 30;
+        private final Paint mOverlayPaint = new Paint();
+        private final String[] mOverlayLines = new String[StageStats.NUM_STAGES];
+        private int mOverlayFrames;
+        /**
+         * pre-event clip is triggered only when a lens is newly confirmed,
+         * ids of confirmed tracks that already triggered(only tracks in latest result are kept,
+         * ids of removed tracks are never reused)
+         */
+        private int[] mTriggeredIds = new int[16];
+        private int[] mWorkIds = new int[16];
+        private int mTriggeredCount;
+        private boolean mHadLens;
+        /**
+         * set before the pipeline starts, candidates and luma are read for control sweep
+         */
+        private DetectionThread mDetectionThread;
+
+        protected MyDetectionCallback(final int processing_width, final int processing_height) {
+            width = processing_width;
+            height = processing_height;
+            mOverlay = new DetectionOverlay();
+            mOverlayPaint.setColor(Color.YELLOW);
+            mOverlayPaint.setTypeface(Typeface.MONOSPACE);
+            mOverlayPaint.setTextSize(24);
+        }
 
-                    if (canvas != null) {
-                        try {
-                            Thread.sleep(1);
-                            canvas.drawBitmap(bitmapOutput, matrix, null);//여기에 원래 첫번째에 mFrame 있었다-mn
-                        } catch (final Exception e) {
-                            Log.w(TAG, e);
+        /**
+         * called on DetectionThread
+         * @param frame
+         * @param image
+         * @param result
+         */
+        @Override
+        public void onDetected(final Frame frame, final Mat image, final DetectionResult result) {
+            // still capture reads latest snapshot on camera thread
+            mSnapshotBuffer.publish(image, frame.getFormat(), result, frame.getTimestampNs());
+            final PreEventRecorder recorder = mPreEventRecorder;
+            if ((recorder != null) && hasNewLens(result)) {
+                recorder.trigger();
+            }
+            if (mControlSweep.isRunning() && (mDetectionThread != null)) {
+                mControlSweep.onFrame(result,
+                        mDetectionThread.getCandidateCount(), mDetectionThread.getMeanLuma());
+            }
 
-                        } finally {
-                            holder.unlockCanvasAndPost(canvas);
-                        }
+            // only detections are drawn on the surface, the frame itself is shown by camera preview
+            if (mResultView == null) return;
+            final SurfaceHolder holder = mResultView.getHolder();
+            if ((holder == null)
+                    || (holder.getSurface() == null)) return;
+            final long t0 = System.nanoTime();
+            mOverlay.update(result, frame.getWidth(), frame.getHeight());
+            final long t1 = System.nanoTime();
+            mStageStats.record(StageStats.STAGE_OVERLAY, t1 - t0);
+
+            final Canvas canvas = holder.lockCanvas();
+            final long t2 = System.nanoTime();
+            mStageStats.record(StageStats.STAGE_LOCK_CANVAS, t2 - t1);
+            if (canvas != null) {
+                try {
+                    mOverlay.draw(canvas);
+                    if (mShowStageStats) {
+                        drawStageStats(canvas);
                     }
-
                 } catch (final Exception e) {
                     Log.w(TAG, e);
+                } finally {
+                    holder.unlockCanvasAndPost(canvas);
                 }
+                mStageStats.record(StageStats.STAGE_POST, System.nanoTime() - t2);
+            }
+        }
+
+        /**
+         * whether the result has lens that was newly confirmed by tracker
+         * (or lens appeared after frames without lens when tracking is disabled)
+         * @param result
+         * @return
+         */
+        private boolean hasNewLens(final DetectionResult result) {
+            boolean hasLens = false;
+            boolean hasNewTrack = false;
+            int count = 0;
+            final int n = result.size();
+            if (mWorkIds.length < n) {
+                mWorkIds = new int[n * 2];
+            }
+            for (int i = 0; i < n; i++) {
+                if (result.getKind(i) != DetectionResult.KIND_LENS) continue;
+                hasLens = true;
+                final int id = result.getTrackId(i);
+                if (id < 0) continue;
+                if (!contains(mTriggeredIds, mTriggeredCount, id)) {
+                    // confirmed track that did not trigger yet, regardless of its id order
+                    hasNewTrack = true;
+                }
+                mWorkIds[count++] = id;
+            }
+            // keep ids of tracks in this result only, so the set never grows
+            final int[] ids = mTriggeredIds;
+            mTriggeredIds = mWorkIds;
+            mWorkIds = ids;
+            mTriggeredCount = count;
+            final boolean newLens = USE_TRACKER ? hasNewTrack : hasLens && !mHadLens;
+            mHadLens = hasLens;
+            return newLens;
+        }
+
+        private boolean contains(final int[] ids, final int count, final int id) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] == id) return true;
+            }
+            return false;
+        }
+
+        /**
+         * draw percentiles of each stage on the canvas
+         * @param canvas
+         */
+        private void drawStageStats(final Canvas canvas) {
+            if ((mOverlayFrames++ % OVERLAY_INTERVAL) == 0) {
+                for (int i = 0; i < StageStats.NUM_STAGES; i++) {
+                    mOverlayLines[i] = mStageStats.format(i);
+                }
+            }
+            final float lineHeight = mOverlayPaint.getTextSize() * 1.2f;
+            for (int i = 0; i < StageStats.NUM_STAGES; i++) {
+                canvas.drawText(mOverlayLines[i], 8, lineHeight * (i + 1), mOverlayPaint);
             }
         }
 
         @Override
-        public void onResult(final int type, final float[] result) {
-            // do something
+        public void onError(final Exception e) {
+            Log.w(TAG, e);
         }
     }
 }
\ No newline at end of file
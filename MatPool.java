@@ -0,0 +1,107 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+
+/**
+ * pool of Mats keyed by rows/cols/type
+ * Mats obtained from this pool are valid until next #recycleAll call,
+ * so the owner should call #recycleAll once per frame.
+ * this class is not thread safe.
+ */
+final class MatPool {
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final int mMaxEntries;
+    private final Mat[] mMats;
+    private final int[] mRows, mCols, mTypes;
+    private final boolean[] mInUse;
+    private final long[] mLastUsed;
+    private int mCount;
+    private long mGeneration;
+    private long mMisses;
+
+    MatPool() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    MatPool(final int maxEntries) {
+        mMaxEntries = maxEntries;
+        mMats = new Mat[maxEntries];
+        mRows = new int[maxEntries];
+        mCols = new int[maxEntries];
+        mTypes = new int[maxEntries];
+        mInUse = new boolean[maxEntries];
+        mLastUsed = new long[maxEntries];
+    }
+
+    /**
+     * get Mat that has specific size and type
+     * @param rows
+     * @param cols
+     * @param type CvType
+     * @return
+     */
+    public Mat obtain(final int rows, final int cols, final int type) {
+        int lru = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (mInUse[i]) continue;
+            if ((mRows[i] == rows) && (mCols[i] == cols) && (mTypes[i] == type)) {
+                mInUse[i] = true;
+                mLastUsed[i] = mGeneration;
+                return mMats[i];
+            }
+            if ((lru < 0) || (mLastUsed[i] < mLastUsed[lru])) {
+                lru = i;
+            }
+        }
+        mMisses++;
+        final int ix;
+        if (mCount < mMaxEntries) {
+            ix = mCount++;
+        } else if (lru >= 0) {
+            // evict least recently used free entry
+            ix = lru;
+            mMats[ix].release();
+        } else {
+            throw new IllegalStateException("all pooled Mats are in use");
+        }
+        mMats[ix] = new Mat(rows, cols, type);
+        mRows[ix] = rows;
+        mCols[ix] = cols;
+        mTypes[ix] = type;
+        mInUse[ix] = true;
+        mLastUsed[ix] = mGeneration;
+        return mMats[ix];
+    }
+
+    /**
+     * mark all Mats as free, Mats obtained before this call should not be used anymore
+     */
+    public void recycleAll() {
+        for (int i = 0; i < mCount; i++) {
+            mInUse[i] = false;
+        }
+        mGeneration++;
+    }
+
+    /**
+     * number of Mats that were newly allocated because there was no matched free one
+     * @return
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void release() {
+        for (int i = 0; i < mCount; i++) {
+            mMats[i].release();
+            mMats[i] = null;
+            mInUse[i] = false;
+        }
+        mCount = 0;
+    }
+}
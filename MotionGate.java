@@ -0,0 +1,165 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * block level change detector for incremental lens detection
+ * this compares downsampled luma image with the one of previous frame,
+ * marks tiles that have changed pixels as dirty and groups 8-connected dirty tiles
+ * into rectangles(with margin) that should be processed again.
+ * this class is not thread safe.
+ */
+final class MotionGate {
+    /**
+     * tile size in pixels of processing image
+     */
+    private static final int TILE_SIZE = 32;
+    /**
+     * downsampling factor of luma image that is compared
+     */
+    private static final int SCALE = 4;
+    /**
+     * difference of downsampled luma to treat as changed
+     */
+    private static final double DIFF_THRESHOLD = 12;
+    /**
+     * margin in pixels that is added around the group of dirty tiles
+     */
+    private static final int MARGIN = TILE_SIZE / 2;
+    /**
+     * whole frame is processed every this number of frames to refresh reused detections
+     */
+    private static final int REFRESH_INTERVAL = 30;
+    /**
+     * whole frame is processed when dirty tiles exceed this ratio
+     */
+    private static final float FULL_FRAME_RATIO = 0.5f;
+
+    private Mat mSmall = new Mat();
+    private Mat mPrevSmall = new Mat();
+    private final Mat mDiff = new Mat();
+    private final Mat mGrid = new Mat();
+    private Size mSmallSize, mGridSize;
+    private int mWidth, mHeight;
+    private int mGridCols, mGridRows;
+    private byte[] mGridBuf = new byte[0];
+    private int[] mStack = new int[0];
+    private boolean mHasPrevious;
+    private long mFrames;
+    private final RegionList mRegions = new RegionList();
+
+    public void release() {
+        mSmall.release();
+        mPrevSmall.release();
+        mDiff.release();
+        mGrid.release();
+    }
+
+    /**
+     * forget previous frame, next #update returns true
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    /**
+     * compare the frame with previous one and update dirty regions
+     * @param gray single channel luma image of processing size
+     * @return true if whole frame should be processed, otherwise process only #getRegions
+     */
+    public boolean update(final Mat gray) {
+        final int width = gray.cols();
+        final int height = gray.rows();
+        if ((mSmallSize == null) || (mWidth != width) || (mHeight != height)) {
+            mWidth = width;
+            mHeight = height;
+            mSmallSize = new Size(Math.max(1, width / SCALE), Math.max(1, height / SCALE));
+            mGridCols = (width + TILE_SIZE - 1) / TILE_SIZE;
+            mGridRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            mGridSize = new Size(mGridCols, mGridRows);
+            mGridBuf = new byte[mGridCols * mGridRows];
+            mStack = new int[mGridCols * mGridRows];
+            mHasPrevious = false;
+        }
+        Imgproc.resize(gray, mSmall, mSmallSize, 0, 0, Imgproc.INTER_AREA);
+        mRegions.clear();
+        final boolean full;
+        if (!mHasPrevious || (mFrames % REFRESH_INTERVAL == 0)) {
+            full = true;
+        } else {
+            Core.absdiff(mSmall, mPrevSmall, mDiff);
+            Imgproc.threshold(mDiff, mDiff, DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+            // mean of each tile becomes non zero when the tile has any changed pixel
+            Imgproc.resize(mDiff, mGrid, mGridSize, 0, 0, Imgproc.INTER_AREA);
+            mGrid.get(0, 0, mGridBuf);
+            full = findRegions();
+        }
+        final Mat tmp = mPrevSmall;
+        mPrevSmall = mSmall;
+        mSmall = tmp;
+        mHasPrevious = true;
+        mFrames++;
+        return full;
+    }
+
+    /**
+     * regions to be processed when #update returned false
+     * @return
+     */
+    public RegionList getRegions() {
+        return mRegions;
+    }
+
+    /**
+     * group 8-connected dirty tiles and add their bounding rects with margin
+     * @return true if dirty tiles are too many and whole frame should be processed
+     */
+    private boolean findRegions() {
+        final int cols = mGridCols, rows = mGridRows;
+        final byte[] grid = mGridBuf;
+        int dirty = 0;
+        for (int i = 0; i < grid.length; i++) {
+            if (grid[i] != 0) {
+                grid[i] = 1;
+                dirty++;
+            }
+        }
+        if (dirty > grid.length * FULL_FRAME_RATIO) {
+            return true;
+        }
+        for (int start = 0; start < grid.length; start++) {
+            if (grid[start] != 1) continue;
+            int left = cols, top = rows, right = -1, bottom = -1;
+            int sp = 0;
+            mStack[sp++] = start;
+            grid[start] = 2;    // visited
+            while (sp > 0) {
+                final int ix = mStack[--sp];
+                final int tx = ix % cols, ty = ix / cols;
+                left = Math.min(left, tx);
+                right = Math.max(right, tx);
+                top = Math.min(top, ty);
+                bottom = Math.max(bottom, ty);
+                for (int dy = -1; dy <= 1; dy++) {
+                    final int ny = ty + dy;
+                    if ((ny < 0) || (ny >= rows)) continue;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        final int nx = tx + dx;
+                        if ((nx < 0) || (nx >= cols)) continue;
+                        final int n = ny * cols + nx;
+                        if (grid[n] == 1) {
+                            grid[n] = 2;
+                            mStack[sp++] = n;
+                        }
+                    }
+                }
+            }
+            mRegions.add(left * TILE_SIZE - MARGIN, top * TILE_SIZE - MARGIN,
+                (right + 1) * TILE_SIZE + MARGIN, (bottom + 1) * TILE_SIZE + MARGIN, mWidth, mHeight);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,346 @@
+package com.serenegiant.opencvwithuvc;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Environment;
+import android.util.Log;
+
+import com.serenegiant.encoder.MediaMuxerWrapper;
+import com.serenegiant.usb.IFrameCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * always-on recorder that keeps last seconds of encoded frames in memory
+ * and saves them with following seconds as MP4 clip when #trigger is called.
+ * NV21 frames come through AbstractUVCCameraHandler#addFrameCallback(same frames as
+ * MediaVideoBufferEncoder encodes) and are encoded by own MediaCodec,
+ * because encoders of MediaMuxerWrapper write into the muxer directly.
+ * encoded frames are kept in the ring from key frame, the ring is trimmed by whole GOPs
+ * so that it is not longer than pre-roll(+ one GOP) nor larger than max bytes.
+ * clip is muxed on writer thread after post-roll frames were encoded,
+ * the clip shares frames with the ring and is saved early when it reaches max bytes,
+ * so encoded frames in memory never exceed max bytes.
+ */
+final class PreEventRecorder implements IFrameCallback {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "PreEventRecorder";
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final int I_FRAME_INTERVAL = 1;    // seconds
+    private static final long GOP_US = I_FRAME_INTERVAL * 1000000L;
+
+    public interface Callback {
+        /**
+         * called on writer thread after the clip was saved
+         * @param path
+         */
+        public void onClipSaved(final String path);
+        public void onError(final Exception e);
+    }
+
+    /**
+     * one encoded frame, never modified after creation so that ring and clips can share it
+     */
+    private static final class Packet {
+        private final byte[] data;
+        private final long ptsUs;
+        private final boolean key;
+
+        private Packet(final byte[] data, final long ptsUs, final boolean key) {
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.key = key;
+        }
+    }
+
+    private final Object mSync = new Object();
+    private final int mWidth, mHeight;
+    private final int mFrameRate, mBitRate;
+    private final long mPreRollUs, mPostRollUs;
+    private final long mMaxBytes;
+    private final Callback mCallback;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private MediaCodec mCodec;
+    private ByteBuffer[] mInputBuffers, mOutputBuffers;
+    private MediaFormat mOutputFormat;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private byte[] mInput = new byte[0];
+    private final ArrayDeque<Packet> mRing = new ArrayDeque<Packet>();
+    private long mRingBytes;
+    /**
+     * clip that is collecting post-roll frames, null if not triggered
+     */
+    private List<Packet> mClip;
+    private long mClipBytes;
+    private long mClipEndUs;
+    private volatile boolean mTriggerRequested;
+    private volatile long mDropped;
+
+    /**
+     * @param width size of NV21 frames
+     * @param height
+     * @param frameRate
+     * @param bitRate
+     * @param preRollSec seconds of frames before the trigger
+     * @param postRollSec seconds of frames after the trigger
+     * @param maxBytes max bytes of encoded frames in memory(ring and clip)
+     * @param callback
+     */
+    PreEventRecorder(final int width, final int height, final int frameRate, final int bitRate,
+        final int preRollSec, final int postRollSec, final long maxBytes,
+        final Callback callback) {
+
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mBitRate = bitRate;
+        mPreRollUs = preRollSec * 1000000L;
+        mPostRollUs = postRollSec * 1000000L;
+        mMaxBytes = maxBytes;
+        mCallback = callback;
+    }
+
+    /**
+     * start encoder, frames are ignored until this is called
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        final MediaCodec codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.start();
+        synchronized (mSync) {
+            mCodec = codec;
+            mInputBuffers = codec.getInputBuffers();
+            mOutputBuffers = codec.getOutputBuffers();
+        }
+    }
+
+    /**
+     * stop encoder and release resources, clip that is collecting post-roll frames is saved
+     * with frames until now, this instance can not be used after calling this
+     */
+    public void release() {
+        synchronized (mSync) {
+            if (mCodec != null) {
+                try {
+                    mCodec.stop();
+                } catch (final Exception e) {
+                    Log.w(TAG, e);
+                }
+                mCodec.release();
+                mCodec = null;
+            }
+            if (mClip != null) {
+                saveClip();
+            }
+            mRing.clear();
+            mRingBytes = 0;
+        }
+        mWriter.shutdown();
+    }
+
+    /**
+     * save frames of pre-roll and post-roll as a clip,
+     * this is ignored(not queued) while previous trigger is collecting post-roll frames
+     */
+    public void trigger() {
+        mTriggerRequested = true;
+    }
+
+    /**
+     * number of frames that were not encoded because encoder had no input buffer
+     * @return
+     */
+    public long getDropCount() {
+        return mDropped;
+    }
+
+    /**
+     * bytes of encoded frames that are kept in memory,
+     * the ring is a part of the clip while the clip is collecting post-roll frames
+     * @return
+     */
+    public long getBufferedBytes() {
+        synchronized (mSync) {
+            return mClip != null ? mClipBytes : mRingBytes;
+        }
+    }
+
+    /**
+     * called on frame callback thread of UVCCamera
+     * @param frame NV21 frame
+     */
+    @Override
+    public void onFrame(final ByteBuffer frame) {
+        synchronized (mSync) {
+            if (mCodec == null) return;
+            try {
+                encode(frame);
+                drain();
+            } catch (final Exception e) {
+                mCallback.onError(e);
+                return;
+            }
+            if (mTriggerRequested && (mClip != null)) {
+                // previous trigger is still collecting post-roll frames
+                mTriggerRequested = false;
+            } else if (mTriggerRequested && (mOutputFormat != null)) {
+                mTriggerRequested = false;
+                // ring always starts with key frame
+                mClip = new ArrayList<Packet>(mRing);
+                mClipBytes = mRingBytes;
+                mClipEndUs = System.nanoTime() / 1000 + mPostRollUs;
+                if (DEBUG) Log.v(TAG, "trigger:pre-roll=" + mClip.size() + " frames");
+            }
+        }
+    }
+
+    private void encode(final ByteBuffer frame) {
+        final int ix = mCodec.dequeueInputBuffer(0);
+        if (ix < 0) {
+            mDropped++;
+            return;
+        }
+        frame.clear();
+        final int size = Math.min(frame.remaining(), mWidth * mHeight * 3 / 2);
+        if (mInput.length < size) {
+            mInput = new byte[size];
+        }
+        frame.get(mInput, 0, size);
+        // NV21 has VU order, COLOR_FormatYUV420SemiPlanar(NV12) has UV order
+        for (int i = mWidth * mHeight; i + 1 < size; i += 2) {
+            final byte v = mInput[i];
+            mInput[i] = mInput[i + 1];
+            mInput[i + 1] = v;
+        }
+        final ByteBuffer input = mInputBuffers[ix];
+        input.clear();
+        input.put(mInput, 0, size);
+        mCodec.queueInputBuffer(ix, 0, size, System.nanoTime() / 1000, 0);
+    }
+
+    private void drain() {
+        for ( ; ; ) {
+            final int ix = mCodec.dequeueOutputBuffer(mBufferInfo, 0);
+            if (ix == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (ix == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mOutputFormat = mCodec.getOutputFormat();
+            } else if (ix == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (ix >= 0) {
+                // codec config is in mOutputFormat, not in the stream
+                if (((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)
+                    && (mBufferInfo.size > 0)) {
+
+                    final ByteBuffer output = mOutputBuffers[ix];
+                    output.position(mBufferInfo.offset);
+                    output.limit(mBufferInfo.offset + mBufferInfo.size);
+                    final byte[] data = new byte[mBufferInfo.size];
+                    output.get(data);
+                    add(new Packet(data, mBufferInfo.presentationTimeUs,
+                        (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0));
+                }
+                mCodec.releaseOutputBuffer(ix, false);
+            }
+        }
+    }
+
+    private void add(final Packet packet) {
+        if (mRing.isEmpty() && !packet.key) {
+            // ring should start with key frame
+            return;
+        }
+        mRing.addLast(packet);
+        mRingBytes += packet.data.length;
+        // trim by whole GOPs, head is always key frame
+        while (!mRing.isEmpty()) {
+            final Packet head = mRing.peekFirst();
+            if (!head.key || (mRingBytes > mMaxBytes)
+                || (packet.ptsUs - head.ptsUs > mPreRollUs + GOP_US)) {
+
+                mRing.removeFirst();
+                mRingBytes -= head.data.length;
+                if (head.key) {
+                    // remove following frames of the GOP too
+                    while (!mRing.isEmpty() && !mRing.peekFirst().key) {
+                        mRingBytes -= mRing.removeFirst().data.length;
+                    }
+                }
+            } else {
+                break;
+            }
+        }
+        if (mClip != null) {
+            mClip.add(packet);
+            mClipBytes += packet.data.length;
+            // frames in the ring are also in the clip, so the clip holds all frames in memory
+            if ((packet.ptsUs >= mClipEndUs) || (mClipBytes >= mMaxBytes)) {
+                saveClip();
+            }
+        }
+    }
+
+    /**
+     * queue the clip to the writer thread
+     */
+    private void saveClip() {
+        final List<Packet> clip = mClip;
+        final MediaFormat format = mOutputFormat;
+        mClip = null;
+        mClipBytes = 0;
+        if (clip.isEmpty() || (format == null)) return;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCallback.onClipSaved(writeClip(clip, format));
+                } catch (final Exception e) {
+                    mCallback.onError(e);
+                }
+            }
+        });
+    }
+
+    private static String writeClip(final List<Packet> clip, final MediaFormat format)
+        throws IOException {
+
+        final File file = MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4");
+        if (file == null) {
+            throw new IOException("external storage is not available");
+        }
+        final MediaMuxer muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            final int track = muxer.addTrack(format);
+            muxer.start();
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            final long startUs = clip.get(0).ptsUs;
+            for (final Packet packet: clip) {
+                info.set(0, packet.data.length, packet.ptsUs - startUs,
+                    packet.key ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                muxer.writeSampleData(track, ByteBuffer.wrap(packet.data), info);
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+        if (DEBUG) Log.v(TAG, "writeClip:" + file + "," + clip.size() + " frames");
+        return file.getPath();
+    }
+}
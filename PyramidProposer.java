@@ -0,0 +1,117 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * cheap first pass of coarse to fine lens detection
+ * this thresholds half or quarter resolution image that is made by pyrDown,
+ * and proposes the regions around small blobs in coordinates of the full resolution image.
+ * LensDetector runs full resolution threshold and verification only in the regions.
+ * this class is not thread safe.
+ */
+final class PyramidProposer {
+    /**
+     * margin in pixels of full resolution image that is added around each blob
+     */
+    private static final int MARGIN = 8;
+    /**
+     * whole frame is processed when proposed regions exceed this ratio of the frame
+     */
+    private static final float FULL_FRAME_RATIO = 0.5f;
+
+    private final int mLevels;
+    private final int mScale;
+    private final int mBlockSize;
+    private final double mThresholdC;
+    private final int mMaxBlobSize;
+    private final Mat[] mPyramid;
+    private final Mat mBinary = new Mat();
+    private final Mat mHierarchy = new Mat();
+    private final List<MatOfPoint> mContours = new ArrayList<MatOfPoint>();
+
+    /**
+     * @param levels 1: half resolution, 2: quarter resolution
+     * @param blockSize block size of adaptiveThreshold at full resolution
+     * @param thresholdC
+     * @param maxBlobSize max width/height of blob in pixels of full resolution image to propose
+     */
+    PyramidProposer(final int levels, final int blockSize, final double thresholdC,
+        final int maxBlobSize) {
+
+        if ((levels < 1) || (levels > 2)) {
+            throw new IllegalArgumentException("unsupported pyramid levels:" + levels);
+        }
+        mLevels = levels;
+        mScale = 1 << levels;
+        // keep block size odd and at least 3
+        mBlockSize = Math.max(3, (blockSize / mScale) | 1);
+        mThresholdC = thresholdC;
+        mMaxBlobSize = maxBlobSize;
+        mPyramid = new Mat[levels];
+        for (int i = 0; i < levels; i++) {
+            mPyramid[i] = new Mat();
+        }
+    }
+
+    public int getLevels() {
+        return mLevels;
+    }
+
+    public void release() {
+        for (final Mat mat: mPyramid) {
+            mat.release();
+        }
+        mBinary.release();
+        mHierarchy.release();
+        releaseContours();
+    }
+
+    /**
+     * propose regions to be processed at full resolution
+     * @param gray single channel luma image of full resolution
+     * @param out proposed regions are written into this, previous contents are cleared
+     * @return true if whole frame should be processed
+     */
+    public boolean propose(final Mat gray, final RegionList out) {
+        out.clear();
+        final int width = gray.cols(), height = gray.rows();
+        Mat src = gray;
+        for (int i = 0; i < mLevels; i++) {
+            // pyrDown also blurs with 5x5 gaussian kernel
+            Imgproc.pyrDown(src, mPyramid[i]);
+            src = mPyramid[i];
+        }
+        Imgproc.adaptiveThreshold(src, mBinary, 255,
+            Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, mBlockSize, mThresholdC);
+        try {
+            Imgproc.findContours(mBinary, mContours, mHierarchy,
+                Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+            final int n = mContours.size();
+            for (int i = 0; i < n; i++) {
+                final Rect rect = Imgproc.boundingRect(mContours.get(i));
+                final int x = rect.x * mScale, y = rect.y * mScale;
+                final int w = rect.width * mScale, h = rect.height * mScale;
+                if ((w > mMaxBlobSize) || (h > mMaxBlobSize)) continue;
+                out.add(x - MARGIN, y - MARGIN, x + w + MARGIN, y + h + MARGIN, width, height);
+            }
+        } finally {
+            releaseContours();
+        }
+        out.mergeOverlapping();
+        return out.getArea() > (long)width * height * FULL_FRAME_RATIO;
+    }
+
+    private void releaseContours() {
+        final int n = mContours.size();
+        for (int i = 0; i < n; i++) {
+            mContours.get(i).release();
+        }
+        mContours.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.util.Arrays;
+
+/**
+ * list of rectangular regions of the frame that should be processed
+ * this uses primitive arrays and reuse them between frames.
+ */
+final class RegionList {
+    private int mCount;
+    private int[] mX = new int[16], mY = new int[16];
+    private int[] mWidth = new int[16], mHeight = new int[16];
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getX(final int ix) {
+        return mX[ix];
+    }
+
+    public int getY(final int ix) {
+        return mY[ix];
+    }
+
+    public int getWidth(final int ix) {
+        return mWidth[ix];
+    }
+
+    public int getHeight(final int ix) {
+        return mHeight[ix];
+    }
+
+    /**
+     * add region, it is clipped by the frame and ignored if it becomes empty
+     * @param left
+     * @param top
+     * @param right exclusive
+     * @param bottom exclusive
+     * @param frameWidth
+     * @param frameHeight
+     */
+    public void add(final int left, final int top, final int right, final int bottom,
+        final int frameWidth, final int frameHeight) {
+
+        final int l = Math.max(0, left), t = Math.max(0, top);
+        final int r = Math.min(frameWidth, right), b = Math.min(frameHeight, bottom);
+        if ((r <= l) || (b <= t)) return;
+        if (mCount >= mX.length) {
+            final int n = mX.length * 2;
+            mX = Arrays.copyOf(mX, n);
+            mY = Arrays.copyOf(mY, n);
+            mWidth = Arrays.copyOf(mWidth, n);
+            mHeight = Arrays.copyOf(mHeight, n);
+        }
+        mX[mCount] = l;
+        mY[mCount] = t;
+        mWidth[mCount] = r - l;
+        mHeight[mCount] = b - t;
+        mCount++;
+    }
+
+    /**
+     * replace overlapping regions with their bounding rect until no regions overlap
+     */
+    public void mergeOverlapping() {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < mCount; i++) {
+                for (int j = mCount - 1; j > i; j--) {
+                    if (overlaps(i, j)) {
+                        final int left = Math.min(mX[i], mX[j]);
+                        final int top = Math.min(mY[i], mY[j]);
+                        final int right = Math.max(mX[i] + mWidth[i], mX[j] + mWidth[j]);
+                        final int bottom = Math.max(mY[i] + mHeight[i], mY[j] + mHeight[j]);
+                        mX[i] = left;
+                        mY[i] = top;
+                        mWidth[i] = right - left;
+                        mHeight[i] = bottom - top;
+                        remove(j);
+                        merged = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * sum of area of regions, overlapping area is counted multiple times
+     * @return
+     */
+    public long getArea() {
+        long result = 0;
+        for (int i = 0; i < mCount; i++) {
+            result += (long)mWidth[i] * mHeight[i];
+        }
+        return result;
+    }
+
+    private boolean overlaps(final int i, final int j) {
+        return (mX[i] < mX[j] + mWidth[j]) && (mX[j] < mX[i] + mWidth[i])
+            && (mY[i] < mY[j] + mHeight[j]) && (mY[j] < mY[i] + mHeight[i]);
+    }
+
+    private void remove(final int ix) {
+        final int last = --mCount;
+        if (ix != last) {
+            mX[ix] = mX[last];
+            mY[ix] = mY[last];
+            mWidth[ix] = mWidth[last];
+            mHeight[ix] = mHeight[last];
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FrameSource that replays recorded frames without camera
+ * raw dump: consecutive NV21 or RGBA frames of same size in one file,
+ *     recorded timestamps(ns, one per line) are read from FILE.timestamps if exists
+ * image sequence: image files(png/jpg/bmp) in a directory, sorted by name and delivered as RGBA
+ * frames are delivered on its own thread at recorded timestamps(realtime)
+ * or as fast as possible. as detection pipeline always processes latest frame,
+ * replaying as fast as possible keeps the detector busy and measures its throughput.
+ * this does not depend on Android.
+ */
+public class ReplayFrameSource implements FrameSource {
+    private static final long DEFAULT_FRAME_INTERVAL_NS = 1000000000L / 30;
+    private static final String TIMESTAMPS_SUFFIX = ".timestamps";
+
+    private final File mRawFile;
+    private final File[] mImages;
+    private final int mWidth, mHeight, mFormat;
+    private final int mFrameSize;
+    private final int mFrameCount;
+    private final long[] mTimestamps;
+    private volatile boolean mRealtime = true;
+    private volatile long mFrameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+    private volatile int mLoopCount = 1;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * create source that replays raw frame dump
+     * @param file
+     * @param width
+     * @param height
+     * @param format Frame.FORMAT_NV21 or Frame.FORMAT_RGBA
+     * @return
+     * @throws IOException
+     */
+    public static ReplayFrameSource fromRawFile(final File file,
+        final int width, final int height, final int format) throws IOException {
+
+        return new ReplayFrameSource(file, null, width, height, format);
+    }
+
+    /**
+     * create source that replays images in the directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static ReplayFrameSource fromImages(final File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        final List<File> images = new ArrayList<File>();
+        if (files != null) {
+            for (final File file: files) {
+                final String name = file.getName().toLowerCase();
+                if (name.endsWith(".png") || name.endsWith(".jpg")
+                    || name.endsWith(".jpeg") || name.endsWith(".bmp")) {
+
+                    images.add(file);
+                }
+            }
+        }
+        if (images.isEmpty()) {
+            throw new IOException("no images in " + dir);
+        }
+        final File[] result = images.toArray(new File[images.size()]);
+        Arrays.sort(result);
+        final Mat first = Imgcodecs.imread(result[0].getAbsolutePath());
+        try {
+            if (first.empty()) {
+                throw new IOException("failed to load " + result[0]);
+            }
+            return new ReplayFrameSource(null, result, first.cols(), first.rows(), Frame.FORMAT_RGBA);
+        } finally {
+            first.release();
+        }
+    }
+
+    private ReplayFrameSource(final File rawFile, final File[] images,
+        final int width, final int height, final int format) throws IOException {
+
+        mRawFile = rawFile;
+        mImages = images;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mFrameSize = format == Frame.FORMAT_NV21 ? width * height * 3 / 2 : width * height * 4;
+        if (rawFile != null) {
+            mFrameCount = (int)(rawFile.length() / mFrameSize);
+            if (mFrameCount == 0) {
+                throw new IOException("no frame in " + rawFile);
+            }
+            mTimestamps = readTimestamps(new File(rawFile.getPath() + TIMESTAMPS_SUFFIX), mFrameCount);
+        } else {
+            mFrameCount = images.length;
+            mTimestamps = null;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @param realtime true: deliver frames at recorded timestamps(or frame interval),
+     *                 false: as fast as possible
+     */
+    public void setRealtime(final boolean realtime) {
+        mRealtime = realtime;
+    }
+
+    /**
+     * frame interval when recorded timestamps are not available
+     * @param intervalNs
+     */
+    public void setFrameIntervalNs(final long intervalNs) {
+        mFrameIntervalNs = intervalNs;
+    }
+
+    /**
+     * @param loopCount number of times to replay all frames
+     */
+    public void setLoopCount(final int loopCount) {
+        mLoopCount = loopCount;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(listener);
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                } catch (final InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "ReplayFrameSource");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void replay(final Listener listener) throws IOException, InterruptedException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(mFrameSize);
+        final RandomAccessFile raw = mRawFile != null ? new RandomAccessFile(mRawFile, "r") : null;
+        final Mat rgba = new Mat();
+        final byte[] pixels = mImages != null ? new byte[mFrameSize] : null;
+        try {
+            final FileChannel channel = raw != null ? raw.getChannel() : null;
+            final long duration = frameTime(mFrameCount - 1) + mFrameIntervalNs;
+            final long start = System.nanoTime();
+            final int loops = mLoopCount;
+            for (int loop = 0; loop < loops; loop++) {
+                for (int i = 0; i < mFrameCount; i++) {
+                    if (!mRunning) return;
+                    buffer.clear();
+                    if (channel != null) {
+                        long position = (long)i * mFrameSize;
+                        while (buffer.hasRemaining()) {
+                            final int n = channel.read(buffer, position);
+                            if (n < 0) throw new IOException("unexpected end of " + mRawFile);
+                            position += n;
+                        }
+                    } else {
+                        loadImage(mImages[i], rgba, pixels);
+                        buffer.put(pixels);
+                    }
+                    if (mRealtime) {
+                        final long wait = start + loop * duration + frameTime(i) - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                        }
+                    }
+                    listener.onFrame(buffer, mWidth, mHeight, mFormat, System.nanoTime());
+                }
+            }
+            listener.onEndOfStream();
+        } finally {
+            if (raw != null) {
+                raw.close();
+            }
+            rgba.release();
+        }
+    }
+
+    private void loadImage(final File file, final Mat rgba, final byte[] pixels)
+        throws IOException {
+
+        final Mat bgr = Imgcodecs.imread(file.getAbsolutePath());
+        try {
+            if ((bgr.cols() != mWidth) || (bgr.rows() != mHeight)) {
+                throw new IOException("unexpected image size:" + file);
+            }
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+            rgba.get(0, 0, pixels);
+        } finally {
+            bgr.release();
+        }
+    }
+
+    /**
+     * time of the frame from first frame
+     */
+    private long frameTime(final int ix) {
+        return mTimestamps != null ? mTimestamps[ix] - mTimestamps[0] : ix * mFrameIntervalNs;
+    }
+
+    private static long[] readTimestamps(final File file, final int frameCount) throws IOException {
+        if (!file.exists()) return null;
+        final long[] result = new long[frameCount];
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            for (int i = 0; i < frameCount; i++) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("too few timestamps in " + file);
+                }
+                result[i] = Long.parseLong(line.trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+}
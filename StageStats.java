@@ -0,0 +1,83 @@
+package com.serenegiant.opencvwithuvc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * latency histograms of each stage of the detection pipeline
+ * stages are timed by System#nanoTime and recorded without allocation,
+ * so this can stay enabled in release builds.
+ * in parallel mode, blur/threshold/open are recorded per band and
+ * STAGE_PREPROCESS has elapsed time of all bands.
+ */
+public final class StageStats {
+    public static final int STAGE_BLUR = 0;
+    public static final int STAGE_THRESHOLD = 1;
+    public static final int STAGE_OPEN = 2;
+    public static final int STAGE_PREPROCESS = 3;
+    public static final int STAGE_CONTOURS = 4;
+    public static final int STAGE_VERIFY = 5;
+    public static final int STAGE_DETECT = 6;
+    public static final int STAGE_OVERLAY = 7;
+    public static final int STAGE_LOCK_CANVAS = 8;
+    public static final int STAGE_POST = 9;
+    public static final int NUM_STAGES = 10;
+
+    private static final String[] NAMES = {
+        "blur", "threshold", "open", "preprocess", "contours", "verify", "detect",
+        "overlay", "lockCanvas", "post",
+    };
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[NUM_STAGES];
+
+    public StageStats() {
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mHistograms[i] = new LatencyHistogram(NAMES[i]);
+        }
+    }
+
+    /**
+     * @param stage one of STAGE_XXX
+     * @param ns elapsed time
+     */
+    public void record(final int stage, final long ns) {
+        mHistograms[stage].record(ns);
+    }
+
+    public LatencyHistogram get(final int stage) {
+        return mHistograms[stage];
+    }
+
+    public void clear() {
+        for (final LatencyHistogram histogram: mHistograms) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * one line summary of the stage in microseconds, for debug overlay
+     * @param stage
+     * @return
+     */
+    public String format(final int stage) {
+        final LatencyHistogram h = mHistograms[stage];
+        return String.format(Locale.US, "%-11s p50=%6d p90=%6d p99=%6d max=%6d us",
+            h.getName(), h.getPercentile(50) / 1000, h.getPercentile(90) / 1000,
+            h.getPercentile(99) / 1000, h.getMax() / 1000);
+    }
+
+    /**
+     * write all stages as tab separated values in nanoseconds
+     * @param writer
+     * @throws IOException
+     */
+    public void dump(final Writer writer) throws IOException {
+        writer.write("stage\tcount\tp50\tp90\tp99\tmax\n");
+        for (final LatencyHistogram h: mHistograms) {
+            writer.write(h.getName() + '\t' + h.getCount()
+                + '\t' + h.getPercentile(50) + '\t' + h.getPercentile(90)
+                + '\t' + h.getPercentile(99) + '\t' + h.getMax() + '\n');
+        }
+    }
+}
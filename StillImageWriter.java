@@ -0,0 +1,172 @@
+package com.serenegiant.opencvwithuvc;
+
+import android.graphics.Bitmap;
+import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.serenegiant.encoder.MediaMuxerWrapper;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writer of still images on dedicated thread
+ * camera thread only pins the snapshot and queues it, rendering, Bitmap conversion,
+ * compression and file writing run on the writer thread.
+ * queue is bounded, still capture is refused while the writer is busy with
+ * one running and MAX_PENDING queued images, so that snapshots pinned by this never exceed
+ * FrameSnapshotBuffer#MAX_PINNED and do not stall snapshot publishing.
+ */
+final class StillImageWriter {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "StillImageWriter";
+
+    /**
+     * queued images excluding the image that is being written
+     */
+    private static final int MAX_PENDING = FrameSnapshotBuffer.MAX_PINNED - 1;
+
+    public interface Callback {
+        /**
+         * called on writer thread after the image was written
+         * @param path
+         */
+        public void onWritten(final String path);
+        public void onError(final Exception e);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private volatile Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.PNG;
+    private volatile int mQuality = 100;
+
+    StillImageWriter() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * stop the writer thread after writing queued images
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * set format of following still images
+     * @param format PNG, JPEG or WEBP
+     * @param quality 0-100, ignored for PNG
+     */
+    public void setFormat(final Bitmap.CompressFormat format, final int quality) {
+        if ((quality < 0) || (quality > 100)) {
+            throw new IllegalArgumentException("quality should be 0-100:" + quality);
+        }
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    /**
+     * queue the snapshot to write, the snapshot is released into buffer after writing
+     * @param buffer buffer that the snapshot was acquired from
+     * @param snapshot
+     * @param path output path, if empty, file in DCIM with the extension of the format is used
+     * @param callback
+     * @return false if the writer is busy or already released, the snapshot was released
+     */
+    public boolean write(final FrameSnapshotBuffer buffer, final FrameSnapshotBuffer.Snapshot snapshot,
+        final String path, final Callback callback) {
+
+        final Bitmap.CompressFormat format = mFormat;
+        final int quality = mQuality;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final String written = writeImage(snapshot, path, format, quality);
+                        callback.onWritten(written);
+                    } catch (final Exception e) {
+                        callback.onError(e);
+                    } finally {
+                        buffer.release(snapshot);
+                    }
+                }
+            });
+            return true;
+        } catch (final RejectedExecutionException e) {
+            buffer.release(snapshot);
+            return false;
+        }
+    }
+
+    private static String writeImage(final FrameSnapshotBuffer.Snapshot snapshot, final String path,
+        final Bitmap.CompressFormat format, final int quality) throws IOException {
+
+        final long start = System.nanoTime();
+        final Bitmap bitmap;
+        final Mat rendered = new Mat();
+        try {
+            snapshot.render(rendered);
+            bitmap = Bitmap.createBitmap(rendered.cols(), rendered.rows(), Bitmap.Config.ARGB_8888);
+            Utils.matToBitmap(rendered, bitmap);
+        } finally {
+            rendered.release();
+        }
+        try {
+            // the file name is came from current time.
+            final File outputFile = TextUtils.isEmpty(path)
+                ? MediaMuxerWrapper.getCaptureFile(Environment.DIRECTORY_DCIM, getExtension(format))
+                : new File(path);
+            if (outputFile == null) {
+                throw new IOException("external storage is not available");
+            }
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
+            try {
+                if (!bitmap.compress(format, quality, os)) {
+                    throw new IOException("failed to compress still image:" + format);
+                }
+                os.flush();
+            } finally {
+                os.close();
+            }
+            if (DEBUG) Log.v(TAG, "writeImage:" + outputFile + "," + (System.nanoTime() - start) / 1000 + "us");
+            return outputFile.getPath();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * extension name as same as CompressFormat
+     * @param format
+     * @return
+     */
+    private static String getExtension(final Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG:
+                return ".jpg";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".png";
+        }
+    }
+}
@@ -94,12 +94,31 @@ import com.serenegiant.widget.CameraViewInterface;
             return (UVCCameraHandlerMultiSurface)thread.getHandler();
         }
 
-        private RendererHolder mRendererHolder;
+        private volatile RendererHolder mRendererHolder;
         protected UVCCameraHandlerMultiSurface(final CameraThread thread) {
             super(thread);
-            mRendererHolder = new RendererHolder(thread.getWidth(), thread.getHeight(), null);
+            mRendererHolder = new RendererHolder(thread.getWidth(), thread.getHeight(), mRenderHolderCallback);
         }
 
+        /**
+         * count rendered frames for metrics
+         */
+        private final RendererHolder.RenderHolderCallback mRenderHolderCallback
+            = new RendererHolder.RenderHolderCallback() {
+            @Override
+            public void onCreate(final Surface surface) {
+            }
+
+            @Override
+            public void onFrameAvailable() {
+                onFrameRendered();
+            }
+
+            @Override
+            public void onDestroy() {
+            }
+        };
+
         public synchronized void release() {
             if (mRendererHolder != null) {
                 mRendererHolder.release();
@@ -108,10 +127,15 @@ import com.serenegiant.widget.CameraViewInterface;
             super.release();
         }
 
-        public synchronized void resize(final int width, final int height) {
-            super.resize(width, height);
-            if (mRendererHolder != null) {
-                mRendererHolder.resize(width, height);
+        /**
+         * called on camera thread while preview is stopped,
+         * this does not lock this handler because #release waits for camera thread
+         */
+        @Override
+        protected void onResize(final int width, final int height) {
+            final RendererHolder holder = mRendererHolder;
+            if (holder != null) {
+                holder.resize(width, height);
             }
         }
 
@@ -127,12 +151,14 @@ import com.serenegiant.widget.CameraViewInterface;
         public synchronized void addSurface(final int surfaceId, final Surface surface, final boolean isRecordable) {
             checkReleased();
             mRendererHolder.addSurface(surfaceId, surface, isRecordable);
+            onSurfaceAdded(surfaceId);
         }
 
         public synchronized void removeSurface(final int surfaceId) {
             if (mRendererHolder != null) {
                 mRendererHolder.removeSurface(surfaceId);
             }
+            onSurfaceRemoved(surfaceId);
         }
 
         @Override
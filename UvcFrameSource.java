@@ -0,0 +1,184 @@
+package com.serenegiant.opencvwithuvc;
+
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.opencv.ImageProcessor;
+import com.serenegiant.usb.IFrameCallback;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameSource of live UVC camera
+ * FORMAT_NV21: frames come from UVCCamera#setFrameCallback at preview size,
+ * FORMAT_RGBA: frames come from ImageProcessor that reads back the preview texture
+ * at processing size.
+ * when preview resolution is changed by AbstractUVCCameraHandler#resize, NV21 frames
+ * follow new preview size, RGBA frames keep processing size because the renderer scales
+ * the preview into the surface of ImageProcessor.
+ */
+public class UvcFrameSource implements FrameSource {
+    private static final boolean DEBUG = false;
+    private static final String TAG = UvcFrameSource.class.getSimpleName();
+
+    private final UVCCameraHandlerMultiSurface mCameraHandler;
+    private final int mFormat;
+    private final int mSrcWidth, mSrcHeight;
+    private volatile int mWidth, mHeight;
+    private volatile Listener mListener;
+    private ImageProcessor mImageProcessor;
+    private int mImageProcessorSurfaceId;
+
+    /**
+     * @param handler
+     * @param format Frame.FORMAT_NV21 or Frame.FORMAT_RGBA
+     * @param srcWidth preview size, ignored for FORMAT_NV21
+     * @param srcHeight
+     * @param width processing size, ignored for FORMAT_NV21
+     * @param height
+     */
+    public UvcFrameSource(final UVCCameraHandlerMultiSurface handler, final int format,
+        final int srcWidth, final int srcHeight, final int width, final int height) {
+
+        mCameraHandler = handler;
+        mFormat = format;
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        if (format == Frame.FORMAT_NV21) {
+            // frames come from camera at preview size
+            mWidth = handler.getWidth();
+            mHeight = handler.getHeight();
+        } else {
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (DEBUG) Log.v(TAG, "start:format=" + mFormat);
+        mListener = listener;
+        if (mFormat == Frame.FORMAT_NV21) {
+            mCameraHandler.addCallback(mCameraCallback);
+            mCameraHandler.addFrameCallback(mNV21FrameCallback);
+        } else if (mImageProcessor == null) {
+            mImageProcessor = new ImageProcessor(mSrcWidth, mSrcHeight,    // src size
+                mImageProcessorCallback);
+            mImageProcessor.start(mWidth, mHeight);    // processing size
+            final Surface surface = mImageProcessor.getSurface();
+            mImageProcessorSurfaceId = surface != null ? surface.hashCode() : 0;
+            if (mImageProcessorSurfaceId != 0) {
+                mCameraHandler.addSurface(mImageProcessorSurfaceId, surface, false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (DEBUG) Log.v(TAG, "stop:");
+        if (mFormat == Frame.FORMAT_NV21) {
+            mCameraHandler.removeFrameCallback(mNV21FrameCallback);
+            mCameraHandler.removeCallback(mCameraCallback);
+        }
+        if (mImageProcessorSurfaceId != 0) {
+            mCameraHandler.removeSurface(mImageProcessorSurfaceId);
+            mImageProcessorSurfaceId = 0;
+        }
+        if (mImageProcessor != null) {
+            mImageProcessor.release();
+            mImageProcessor = null;
+        }
+        mListener = null;
+    }
+
+    /**
+     * called on the native frame callback thread
+     */
+    private final IFrameCallback mNV21FrameCallback = new IFrameCallback() {
+        @Override
+        public void onFrame(final ByteBuffer frame) {
+            final Listener listener = mListener;
+            final int width = mWidth, height = mHeight;
+            // skip frame of former size that was delivered while resizing
+            if ((listener != null) && (frame != null)
+                && (frame.capacity() >= width * height * 3 / 2)) {
+
+                listener.onFrame(frame, width, height, Frame.FORMAT_NV21, System.nanoTime());
+            }
+        }
+    };
+
+    /**
+     * follow preview size for NV21 frames, called on camera thread while the stream is stopped
+     */
+    private final AbstractUVCCameraHandler.CameraCallback mCameraCallback
+        = new AbstractUVCCameraHandler.CameraCallback() {
+
+        @Override
+        public void onResize(final int width, final int height) {
+            if (DEBUG) Log.v(TAG, "onResize:" + width + "x" + height);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public void onOpen() {
+        }
+
+        @Override
+        public void onClose() {
+        }
+
+        @Override
+        public void onStartPreview() {
+        }
+
+        @Override
+        public void onStopPreview() {
+        }
+
+        @Override
+        public void onStartRecording() {
+        }
+
+        @Override
+        public void onStopRecording() {
+        }
+
+        @Override
+        public void onError(final Exception e) {
+        }
+
+        @Override
+        public void onCaptureStill(final String path) {
+        }
+    };
+
+    /**
+     * called on ImageProcessor thread
+     */
+    private final ImageProcessor.ImageProcessorCallback mImageProcessorCallback
+        = new ImageProcessor.ImageProcessorCallback() {
+
+        @Override
+        public void onFrame(final ByteBuffer frame) {
+            final Listener listener = mListener;
+            if ((listener != null) && (frame != null)) {
+                listener.onFrame(frame, mWidth, mHeight, Frame.FORMAT_RGBA, System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onResult(final int type, final float[] result) {
+            // do something
+        }
+    };
+}
@@ -0,0 +1,83 @@
+package com.serenegiant.opencvwithuvc.benchmark;
+
+import com.serenegiant.opencvwithuvc.DetectionResult;
+import com.serenegiant.opencvwithuvc.LensDetector;
+import com.serenegiant.opencvwithuvc.LensTracker;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * benchmark of whole LensDetector#detect on a frame
+ */
+@State(Scope.Thread)
+public class DetectorBenchmark {
+    @Param({"640x480", "1280x720"})
+    public String resolution;
+
+    @Param({"synthetic-low", "synthetic-high"})
+    public String input;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    /**
+     * 0: whole frame, 1/2: pyramid mode with half/quarter resolution proposals
+     */
+    @Param({"0", "1", "2"})
+    public int pyramidLevels;
+
+    /**
+     * false: extract candidates by findContours, true: by connected components
+     */
+    @Param({"false", "true"})
+    public boolean connectedComponents;
+
+    /**
+     * true: detections are tracked, while all tracks are confirmed only their search windows
+     * are processed and whole frame is scanned every scan interval of LensTracker
+     */
+    @Param({"false", "true"})
+    public boolean tracking;
+
+    private Mat mImage;
+    private LensDetector mDetector;
+    private final DetectionResult mResult = new DetectionResult();
+    private final LensTracker mTracker = new LensTracker();
+    private final DetectionResult mTracked = new DetectionResult();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Mat rgba = Frames.create(resolution, input);
+        mImage = new Mat();
+        Imgproc.cvtColor(rgba, mImage, Imgproc.COLOR_BGR2RGB);
+        rgba.release();
+        mDetector = new LensDetector();
+        mDetector.setParallel(parallel);
+        mDetector.setPyramidLevels(pyramidLevels);
+        mDetector.setConnectedComponents(connectedComponents);
+        mDetector.setTracker(tracking ? mTracker : null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDetector.release();
+        mImage.release();
+    }
+
+    @Benchmark
+    public int detect() {
+        mDetector.detect(mImage, mResult);
+        if (tracking) {
+            mTracker.update(mResult, mTracked);
+        }
+        return mResult.size();
+    }
+}
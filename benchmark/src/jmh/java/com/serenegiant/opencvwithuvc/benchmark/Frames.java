@@ -0,0 +1,132 @@
+package com.serenegiant.opencvwithuvc.benchmark;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * input frames of benchmarks
+ * synthetic frames have lens like blobs(area 50-80 and brightness 100-150 as LensDetector expects)
+ * and clutter blobs on noisy background, recorded frames are loaded from the directory
+ * that is given by system property bench.frames.
+ */
+final class Frames {
+    /**
+     * system property of the directory of recorded frames,
+     * WIDTHxHEIGHT.png(or .jpg) is used if exists, otherwise first image is resized
+     */
+    static final String PROPERTY_FRAMES = "bench.frames";
+
+    /**
+     * number of lens/clutter blobs per 640x480 pixels
+     */
+    private static final int LOW_LENSES = 16, LOW_CLUTTER = 32;
+    private static final int HIGH_LENSES = 200, HIGH_CLUTTER = 2000;
+    private static final long SEED = 0x5eed;
+
+    private static boolean sLoaded;
+
+    private Frames() {
+        // never instantiate
+    }
+
+    static synchronized void loadNatives() {
+        if (!sLoaded) {
+            nu.pattern.OpenCV.loadLocally();
+            sLoaded = true;
+        }
+    }
+
+    /**
+     * create RGBA frame
+     * @param resolution WIDTHxHEIGHT
+     * @param input synthetic-low, synthetic-high or recorded
+     * @return CV_8UC4 Mat
+     */
+    static Mat create(final String resolution, final String input) {
+        loadNatives();
+        final int sep = resolution.indexOf('x');
+        final int width = Integer.parseInt(resolution.substring(0, sep));
+        final int height = Integer.parseInt(resolution.substring(sep + 1));
+        if ("synthetic-low".equals(input)) {
+            return synthetic(width, height, LOW_LENSES, LOW_CLUTTER);
+        } else if ("synthetic-high".equals(input)) {
+            return synthetic(width, height, HIGH_LENSES, HIGH_CLUTTER);
+        } else if ("recorded".equals(input)) {
+            return recorded(width, height);
+        }
+        throw new IllegalArgumentException("unknown input:" + input);
+    }
+
+    private static Mat synthetic(final int width, final int height,
+        final int lenses, final int clutter) {
+
+        final Random random = new Random(SEED);
+        final double scale = (width * (double)height) / (640 * 480);
+        final Mat rgba = new Mat(height, width, CvType.CV_8UC4, new Scalar(90, 90, 90, 255));
+        final Mat noise = new Mat(height, width, CvType.CV_8UC4);
+        try {
+            Core.randu(noise, 0, 16);
+            Core.add(rgba, noise, rgba);
+        } finally {
+            noise.release();
+        }
+        final int numClutter = (int)(clutter * scale);
+        for (int i = 0; i < numClutter; i++) {
+            final int x = random.nextInt(width), y = random.nextInt(height);
+            final int w = 2 + random.nextInt(30), h = 2 + random.nextInt(30);
+            final double v = 120 + random.nextInt(120);
+            Imgproc.rectangle(rgba, new Point(x, y), new Point(x + w, y + h),
+                new Scalar(v, v, v, 255), random.nextBoolean() ? -1 : 1);
+        }
+        final int numLenses = (int)(lenses * scale);
+        for (int i = 0; i < numLenses; i++) {
+            final int x = 8 + random.nextInt(width - 16), y = 8 + random.nextInt(height - 16);
+            Imgproc.circle(rgba, new Point(x, y), 4 + random.nextInt(2),
+                new Scalar(160, 160, 160, 255), -1);
+        }
+        return rgba;
+    }
+
+    private static Mat recorded(final int width, final int height) {
+        final String dir = System.getProperty(PROPERTY_FRAMES);
+        if (dir == null) {
+            throw new IllegalStateException("set -D" + PROPERTY_FRAMES + " to use recorded frames");
+        }
+        final File[] files = new File(dir).listFiles();
+        if ((files == null) || (files.length == 0)) {
+            throw new IllegalStateException("no recorded frames in " + dir);
+        }
+        Arrays.sort(files);
+        File file = files[0];
+        for (final File f: files) {
+            if (f.getName().startsWith(width + "x" + height + ".")) {
+                file = f;
+                break;
+            }
+        }
+        final Mat bgr = Imgcodecs.imread(file.getAbsolutePath());
+        if (bgr.empty()) {
+            throw new IllegalStateException("failed to load " + file);
+        }
+        final Mat rgba = new Mat();
+        try {
+            if ((bgr.cols() != width) || (bgr.rows() != height)) {
+                Imgproc.resize(bgr, bgr, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+            }
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+        } finally {
+            bgr.release();
+        }
+        return rgba;
+    }
+}
@@ -0,0 +1,292 @@
+package com.serenegiant.opencvwithuvc.benchmark;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * benchmarks of each stage of the lens detection pipeline of former MainActivity#onFrame
+ * input of each stage is made once by running former stages on the frame,
+ * so each benchmark measures only its own stage. output Mats are reused between invocations.
+ */
+@State(Scope.Thread)
+public class StageBenchmark {
+    @Param({"640x480", "1280x720"})
+    public String resolution;
+
+    @Param({"synthetic-low", "synthetic-high"})
+    public String input;
+
+    private byte[] mPixels;
+    private Mat mRgba, mImage, mGray, mBlurred, mThreshold, mOpened;
+    private Mat mKernel;
+    private Size mBlurSize;
+    private final List<MatOfPoint> mContours = new ArrayList<MatOfPoint>();
+    private int[] mHierarchy;
+    /**
+     * bounding rects of contours that passed aspect ratio/area filters,
+     * and whether each of them is top level
+     */
+    private final List<Rect> mCandidates = new ArrayList<Rect>();
+    private final List<Boolean> mTopLevel = new ArrayList<Boolean>();
+
+    private final Mat mOut = new Mat();
+    private final Mat mWorkHierarchy = new Mat();
+    private final List<MatOfPoint> mWorkContours = new ArrayList<MatOfPoint>();
+    private final MatOfPoint2f mCurve = new MatOfPoint2f();
+    private final MatOfPoint2f mApproxCurve = new MatOfPoint2f();
+    private final MatOfPoint mApprox = new MatOfPoint();
+    private final Mat mChannel = new Mat();
+    private final Mat mSum = new Mat();
+    private final int[] mTl = new int[3], mTr = new int[3], mBl = new int[3], mBr = new int[3];
+    private final Mat mLabels = new Mat();
+    private final Mat mStats = new Mat();
+    private final Mat mCentroids = new Mat();
+    private int[] mStatsBuf = new int[0];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mRgba = Frames.create(resolution, input);
+        mPixels = new byte[(int)(mRgba.total() * mRgba.channels())];
+        mRgba.get(0, 0, mPixels);
+        mImage = new Mat();
+        Imgproc.cvtColor(mRgba, mImage, Imgproc.COLOR_BGR2RGB);
+        mGray = new Mat();
+        Imgproc.cvtColor(mRgba, mGray, Imgproc.COLOR_BGR2GRAY);
+        mKernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
+        mBlurSize = new Size(5, 5);
+        mBlurred = new Mat();
+        Imgproc.GaussianBlur(mGray, mBlurred, mBlurSize, 2);
+        mThreshold = new Mat();
+        Imgproc.adaptiveThreshold(mBlurred, mThreshold, 255,
+            Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, 27, -15);
+        mOpened = new Mat();
+        Imgproc.morphologyEx(mThreshold, mOpened, Imgproc.MORPH_OPEN, mKernel);
+        final Mat hierarchy = new Mat();
+        Imgproc.findContours(mOpened, mContours, hierarchy,
+            Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        mHierarchy = new int[mContours.size() * 4];
+        if (!mContours.isEmpty()) {
+            hierarchy.get(0, 0, mHierarchy);
+        }
+        hierarchy.release();
+        for (int i = 0; i < mContours.size(); i++) {
+            mContours.get(i).convertTo(mCurve, CvType.CV_32FC2);
+            Imgproc.approxPolyDP(mCurve, mApproxCurve, 3, true);
+            mApproxCurve.convertTo(mApprox, CvType.CV_32S);
+            final Rect rect = Imgproc.boundingRect(mApprox);
+            final double area = Imgproc.contourArea(mApprox);
+            if ((Math.max(rect.height, rect.width) / Math.min(rect.height, rect.width) <= 2)
+                && (area >= 50) && (area <= 80)) {
+
+                mCandidates.add(rect);
+                mTopLevel.add(mHierarchy[i * 4 + 3] == -1);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final MatOfPoint contour: mContours) {
+            contour.release();
+        }
+        mContours.clear();
+        mCandidates.clear();
+        mTopLevel.clear();
+        mRgba.release();
+        mImage.release();
+        mGray.release();
+        mBlurred.release();
+        mThreshold.release();
+        mOpened.release();
+        mKernel.release();
+        mOut.release();
+        mWorkHierarchy.release();
+        mCurve.release();
+        mApproxCurve.release();
+        mApprox.release();
+        mChannel.release();
+        mSum.release();
+        mLabels.release();
+        mStats.release();
+        mCentroids.release();
+    }
+
+    /**
+     * copy of frame pixels into Mat, same as Utils#bitmapToMat of ARGB_8888 bitmap
+     */
+    @Benchmark
+    public Mat bitmapToMat() {
+        mOut.create(mRgba.rows(), mRgba.cols(), CvType.CV_8UC4);
+        mOut.put(0, 0, mPixels);
+        return mOut;
+    }
+
+    @Benchmark
+    public Mat grayscale() {
+        Imgproc.cvtColor(mRgba, mOut, Imgproc.COLOR_BGR2GRAY);
+        return mOut;
+    }
+
+    @Benchmark
+    public Mat gaussianBlur() {
+        Imgproc.GaussianBlur(mGray, mOut, mBlurSize, 2);
+        return mOut;
+    }
+
+    @Benchmark
+    public Mat adaptiveThreshold() {
+        Imgproc.adaptiveThreshold(mBlurred, mOut, 255,
+            Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, 27, -15);
+        return mOut;
+    }
+
+    @Benchmark
+    public Mat morphologyOpen() {
+        Imgproc.morphologyEx(mThreshold, mOut, Imgproc.MORPH_OPEN, mKernel);
+        return mOut;
+    }
+
+    @Benchmark
+    public int findContours() {
+        Imgproc.findContours(mOpened, mWorkContours, mWorkHierarchy,
+            Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+        return releaseWorkContours();
+    }
+
+    /**
+     * labelling with stats and reading them into primitive array,
+     * compare with findContours + approxAndMeasure
+     */
+    @Benchmark
+    public int connectedComponents() {
+        final int n = Imgproc.connectedComponentsWithStats(mOpened, mLabels, mStats, mCentroids,
+            8, CvType.CV_32S);
+        if (mStatsBuf.length < n * 5) {
+            mStatsBuf = new int[n * 5];
+        }
+        mStats.get(0, 0, mStatsBuf);
+        int result = 0;
+        for (int i = 1; i < n; i++) {
+            final int w = mStatsBuf[i * 5 + Imgproc.CC_STAT_WIDTH];
+            final int h = mStatsBuf[i * 5 + Imgproc.CC_STAT_HEIGHT];
+            if (Math.max(w, h) / Math.min(w, h) <= 2) {
+                result += mStatsBuf[i * 5 + Imgproc.CC_STAT_AREA];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * approxPolyDP/boundingRect/contourArea of all contours of the frame
+     */
+    @Benchmark
+    public double approxAndMeasure() {
+        double result = 0;
+        final int n = mContours.size();
+        for (int i = 0; i < n; i++) {
+            mContours.get(i).convertTo(mCurve, CvType.CV_32FC2);
+            Imgproc.approxPolyDP(mCurve, mApproxCurve, 3, true);
+            mApproxCurve.convertTo(mApprox, CvType.CV_32S);
+            final Rect rect = Imgproc.boundingRect(mApprox);
+            result += rect.width + Imgproc.contourArea(mApprox);
+        }
+        return result;
+    }
+
+    /**
+     * dilate bounding rect of each candidate and find contours in it again
+     */
+    @Benchmark
+    public int roiDilateAndRecontour() {
+        int result = 0;
+        final int n = mCandidates.size();
+        for (int i = 0; i < n; i++) {
+            final Mat roi = mOpened.submat(mCandidates.get(i));
+            try {
+                Imgproc.dilate(roi, mOut, mKernel);
+            } finally {
+                roi.release();
+            }
+            Imgproc.findContours(mOut, mWorkContours, mWorkHierarchy,
+                Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+            result += releaseWorkContours();
+        }
+        return result;
+    }
+
+    /**
+     * brightness check of top level candidates by extracting each channel and taking its mean,
+     * same as former MainActivity#onFrame
+     */
+    @Benchmark
+    public int channelMeanCheck() {
+        int result = 0;
+        final int n = mCandidates.size();
+        for (int i = 0; i < n; i++) {
+            if (!mTopLevel.get(i)) continue;
+            final Mat crop = mImage.submat(mCandidates.get(i));
+            try {
+                double sum_pix = 0;
+                for (int c = 0; c < 3; c++) {
+                    Core.extractChannel(crop, mChannel, c);
+                    sum_pix += Core.mean(mChannel).val[0];
+                }
+                result += (int)sum_pix / 3;
+            } finally {
+                crop.release();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * brightness check of top level candidates by integral image as LensDetector does,
+     * this includes building the integral image of the frame
+     */
+    @Benchmark
+    public int integralBrightnessCheck() {
+        Imgproc.integral(mImage, mSum, CvType.CV_32S);
+        int result = 0;
+        final int n = mCandidates.size();
+        for (int i = 0; i < n; i++) {
+            if (!mTopLevel.get(i)) continue;
+            final Rect rect = mCandidates.get(i);
+            mSum.get(rect.y, rect.x, mTl);
+            mSum.get(rect.y, rect.x + rect.width, mTr);
+            mSum.get(rect.y + rect.height, rect.x, mBl);
+            mSum.get(rect.y + rect.height, rect.x + rect.width, mBr);
+            final double area = rect.width * rect.height;
+            double sum_pix = 0;
+            for (int c = 0; c < 3; c++) {
+                sum_pix += (mBr[c] - mBl[c] - mTr[c] + mTl[c]) / area;
+            }
+            result += (int)sum_pix / 3;
+        }
+        return result;
+    }
+
+    private int releaseWorkContours() {
+        final int n = mWorkContours.size();
+        for (int i = 0; i < n; i++) {
+            mWorkContours.get(i).release();
+        }
+        mWorkContours.clear();
+        return n;
+    }
+}
@@ -0,0 +1,72 @@
+package com.serenegiant.opencvwithuvc.replay;
+
+import com.serenegiant.opencvwithuvc.DetectionPipeline;
+import com.serenegiant.opencvwithuvc.DetectionResult;
+import com.serenegiant.opencvwithuvc.DetectionThread;
+import com.serenegiant.opencvwithuvc.Frame;
+import com.serenegiant.opencvwithuvc.ReplayFrameSource;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * measure throughput of the detection pipeline with recorded frames on a desktop JVM
+ * usage:
+ *   ReplayThroughput DIR [realtime]                           image sequence
+ *   ReplayThroughput FILE WIDTH HEIGHT nv21|rgba [realtime]   raw frame dump
+ */
+public class ReplayThroughput {
+    private static final int LOOP_COUNT = 10;
+
+    public static void main(final String[] args) throws Exception {
+        nu.pattern.OpenCV.loadLocally();
+        final File file = args.length > 0 ? new File(args[0]) : null;
+        if ((file == null) || (!file.isDirectory() && (args.length < 4))) {
+            System.err.println("usage: DIR [realtime] | FILE WIDTH HEIGHT nv21|rgba [realtime]");
+            System.exit(1);
+        }
+        final ReplayFrameSource source;
+        final boolean realtime;
+        if (file.isDirectory()) {
+            source = ReplayFrameSource.fromImages(file);
+            realtime = (args.length > 1) && "realtime".equals(args[1]);
+        } else {
+            final int format = "nv21".equals(args[3]) ? Frame.FORMAT_NV21 : Frame.FORMAT_RGBA;
+            source = ReplayFrameSource.fromRawFile(file,
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]), format);
+            realtime = (args.length > 4) && "realtime".equals(args[4]);
+        }
+        source.setRealtime(realtime);
+        source.setLoopCount(LOOP_COUNT);
+
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong detections = new AtomicLong();
+        final DetectionPipeline pipeline = new DetectionPipeline(new DetectionThread.Callback() {
+            @Override
+            public void onDetected(final Frame frame, final Mat image, final DetectionResult result) {
+                processed.incrementAndGet();
+                detections.addAndGet(result.size());
+            }
+
+            @Override
+            public void onError(final Exception e) {
+                e.printStackTrace();
+            }
+        });
+        pipeline.getDetectionThread().setTrackingEnabled(false);
+        final long start = System.nanoTime();
+        pipeline.start(source);
+        while (!pipeline.isEndOfStream()) {
+            Thread.sleep(10);
+        }
+        pipeline.stop();
+        pipeline.join();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("frames=%d, offered=%d, dropped=%d, processed=%d, detections=%d%n",
+            source.getFrameCount() * LOOP_COUNT, pipeline.getOfferedCount(),
+            pipeline.getDropCount(), processed.get(), detections.get());
+        System.out.printf("%.2f s, %.1f processed frames/s%n", seconds, processed.get() / seconds);
+    }
+}
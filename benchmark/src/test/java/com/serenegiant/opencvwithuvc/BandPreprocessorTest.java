@@ -0,0 +1,81 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * output of BandPreprocessor that processes horizontal bands in parallel
+ * should be same as the serial pipeline except a few scattered pixels,
+ * GaussianBlur/adaptiveThreshold of a band are not bit exact with the call on whole frame
+ */
+public class BandPreprocessorTest {
+    /**
+     * max ratio of pixels that may differ from the serial pipeline,
+     * about 0.01% differ with OpenCV 4.9
+     */
+    private static final double MAX_DIFF_RATIO = 0.0005;
+
+    @Test
+    public void vga() {
+        assertSameAsSerial(640, 480);
+    }
+
+    @Test
+    public void hd() {
+        assertSameAsSerial(1280, 720);
+    }
+
+    @Test
+    public void oddHeight() {
+        assertSameAsSerial(640, 479);
+    }
+
+    private static void assertSameAsSerial(final int width, final int height) {
+        final Mat gray = TestImages.gray(width, height, 40, 200);
+        final DetectorConfig.Resolved config = DetectorConfig.DEFAULT.resolve(width, height);
+        final int kernelSize = config.getMorphKernelSize();
+        final Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE,
+            new Size(kernelSize, kernelSize));
+        final BandPreprocessor serial = create(config, kernel);
+        final BandPreprocessor bands = create(config, kernel);
+        final Mat expected = new Mat();
+        final Mat actual = new Mat();
+        final Mat diff = new Mat();
+        try {
+            serial.setParallel(false);
+            serial.process(gray, expected);
+            final int maxDiff = (int)(width * height * MAX_DIFF_RATIO);
+            // 7 bands of 479 rows have different heights
+            for (final int n: new int[] {2, 3, 7}) {
+                bands.setBands(n);
+                // second frame runs reinitialized tasks of the same layout
+                for (int i = 0; i < 2; i++) {
+                    bands.process(gray, actual);
+                    Core.absdiff(expected, actual, diff);
+                    final int count = Core.countNonZero(diff);
+                    assertTrue(width + "x" + height + ",bands=" + n + ",frame=" + i
+                        + ":" + count + " pixels differ", count <= maxDiff);
+                }
+            }
+        } finally {
+            serial.release();
+            bands.release();
+            kernel.release();
+            expected.release();
+            actual.release();
+            diff.release();
+            gray.release();
+        }
+    }
+
+    private static BandPreprocessor create(final DetectorConfig.Resolved config, final Mat kernel) {
+        final int blurSize = config.getBlurKernelSize();
+        return new BandPreprocessor(new Size(blurSize, blurSize), config.getBlurSigma(),
+            config.getThresholdBlockSize(), config.getThresholdC(), kernel);
+    }
+}
@@ -0,0 +1,132 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.lang.management.ManagementFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LensDetector should not allocate new buffers(Mats of working images and of MatPool)
+ * per frame after warm-up, Mats that are created per frame are counted from the heap
+ * and should be only the ones that the detector counts by #getCreatedMats
+ * (MatOfPoints of contours and submat headers, see class comment of LensDetector)
+ */
+public class LensDetectorSteadyStateTest {
+    private static final int WIDTH = 640, HEIGHT = 480;
+    private static final int WARM_UP_FRAMES = 5;
+    private static final int FRAMES = 50;
+    /**
+     * line of class histogram: "num: #instances #bytes class name"
+     */
+    private static final Pattern HISTOGRAM_LINE
+        = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+\\d+\\s+(org\\.opencv\\.core\\.Mat\\S*)");
+
+    private LensDetector mDetector;
+    private final DetectionResult mResult = new DetectionResult();
+
+    @Before
+    public void setUp() {
+        TestImages.loadNatives();
+        mDetector = new LensDetector();
+    }
+
+    @After
+    public void tearDown() {
+        mDetector.release();
+    }
+
+    @Test
+    public void serialContours() {
+        mDetector.setParallel(false);
+        assertSteadyState(false);
+    }
+
+    @Test
+    public void parallelContours() {
+        mDetector.setParallel(true);
+        assertSteadyState(false);
+    }
+
+    @Test
+    public void connectedComponents() {
+        mDetector.setConnectedComponents(true);
+        assertSteadyState(false);
+    }
+
+    @Test
+    public void nv21() {
+        assertSteadyState(true);
+    }
+
+    private void assertSteadyState(final boolean nv21) {
+        // many contours so that parallel verification is used
+        final Mat image = nv21 ? TestImages.nv21(WIDTH, HEIGHT, 40, 200)
+            : TestImages.rgb(WIDTH, HEIGHT, 40, 200);
+        try {
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                detect(image, nv21);
+            }
+            assertTrue("no lens was detected", mResult.size() > 0);
+            final long misses = mDetector.getPoolMisses();
+            final long bufferAddr = mDetector.getBinaryAddr();
+            final long counted = mDetector.getCreatedMats();
+            final long instances = countMatInstances();
+            for (int i = 0; i < FRAMES; i++) {
+                detect(image, nv21);
+            }
+            // GC while detecting only decreases the number of instances
+            final long created = countMatInstances() - instances;
+            final long expected = mDetector.getCreatedMats() - counted;
+            assertTrue("per frame Mats were not created", expected > 0);
+            assertTrue(created + " Mats were created but " + expected + " were expected",
+                created <= expected);
+            assertEquals("pooled Mats were allocated after warm-up",
+                misses, mDetector.getPoolMisses());
+            assertEquals("working buffer was reallocated after warm-up",
+                bufferAddr, mDetector.getBinaryAddr());
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * number of Mat(and its subclasses) instances in the heap including unreachable ones,
+     * "-all" option does not run full GC before counting
+     * @return
+     */
+    private static long countMatInstances() {
+        final String histogram;
+        try {
+            histogram = (String)ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                new Object[] {new String[] {"-all"}}, new String[] {String[].class.getName()});
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+        long result = 0;
+        for (final String line: histogram.split("\\n")) {
+            final Matcher matcher = HISTOGRAM_LINE.matcher(line);
+            if (matcher.find()) {
+                result += Long.parseLong(matcher.group(1));
+            }
+        }
+        return result;
+    }
+
+    private void detect(final Mat image, final boolean nv21) {
+        if (nv21) {
+            mDetector.detectNV21(image, mResult);
+        } else {
+            mDetector.detect(image, mResult);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LensTracker does not depend on OpenCV, these tests run without native libraries
+ */
+public class LensTrackerTest {
+    private static final int CONFIRM_HITS = 3;
+    private static final int MAX_MISSES = 5;
+    private static final int REVERIFY_INTERVAL = 10;
+    private static final int SCAN_INTERVAL = 4;
+
+    private LensTracker mTracker;
+    private final DetectionResult mDetections = new DetectionResult();
+    private final DetectionResult mConfirmed = new DetectionResult();
+
+    @Before
+    public void setUp() {
+        mTracker = new LensTracker(0.3f, 8, CONFIRM_HITS, MAX_MISSES, REVERIFY_INTERVAL, 64,
+            SCAN_INTERVAL);
+    }
+
+    @Test
+    public void associateByIoU() {
+        update(100, 100);
+        final int id = mDetections.getTrackId(0);
+        // overlaps by IoU 0.56
+        update(102, 101);
+        assertEquals(id, mDetections.getTrackId(0));
+        assertEquals(1, mTracker.getTrackCount());
+    }
+
+    @Test
+    public void associateByCenterDistance() {
+        update(100, 100);
+        final int id = mDetections.getTrackId(0);
+        // no overlap but centers are within 8 pixels
+        update(107, 100, 6, 6);
+        assertEquals(id, mDetections.getTrackId(0));
+        // too far, new track
+        update(200, 200);
+        assertTrue(mDetections.getTrackId(0) != id);
+        assertEquals(2, mTracker.getTrackCount());
+    }
+
+    @Test
+    public void confirmAfterHits() {
+        for (int i = 1; i < CONFIRM_HITS; i++) {
+            update(100, 100);
+            assertEquals("confirmed after " + i + " hits", 0, mConfirmed.size());
+        }
+        update(100, 100);
+        assertEquals(1, mConfirmed.size());
+        assertEquals(mDetections.getTrackId(0), mConfirmed.getTrackId(0));
+    }
+
+    @Test
+    public void dropAfterMisses() {
+        confirm(100, 100);
+        for (int i = 0; i < MAX_MISSES; i++) {
+            mDetections.clear();
+            mTracker.update(mDetections, mConfirmed);
+            // confirmed track is kept while it is missed in recent frames
+            assertEquals(1, mConfirmed.size());
+        }
+        mDetections.clear();
+        mTracker.update(mDetections, mConfirmed);
+        assertEquals(0, mTracker.getTrackCount());
+        assertEquals(0, mConfirmed.size());
+    }
+
+    @Test
+    public void reverifyExpiry() {
+        confirm(100, 100);
+        // verification is skipped until reverify interval passes since last verified frame
+        for (int i = 1; i < REVERIFY_INTERVAL; i++) {
+            final int track = mTracker.findVerifiedTrack(100, 100, 10, 10, DetectionResult.KIND_LENS);
+            assertTrue("re-verification was requested after " + i + " frames", track >= 0);
+            inherit(track, 100, 100);
+        }
+        assertEquals(-1, mTracker.findVerifiedTrack(100, 100, 10, 10, DetectionResult.KIND_LENS));
+        // verified again, skipped from next frame
+        update(100, 100);
+        assertTrue(mTracker.findVerifiedTrack(100, 100, 10, 10, DetectionResult.KIND_LENS) >= 0);
+    }
+
+    @Test
+    public void unverifiedDetectionDoesNotExtendVerification() {
+        confirm(100, 100);
+        // detections that were reused without verification(e.g. incremental mode)
+        // keep their track id and do not reset verified frame
+        for (int i = 1; i < REVERIFY_INTERVAL; i++) {
+            mDetections.clear();
+            mDetections.add(100, 100, 10, 10, 60, 120, DetectionResult.KIND_LENS);
+            mDetections.setTrackId(0, mConfirmed.getTrackId(0));
+            mTracker.update(mDetections, mConfirmed);
+        }
+        assertEquals(-1, mTracker.findVerifiedTrack(100, 100, 10, 10, DetectionResult.KIND_LENS));
+    }
+
+
+    @Test
+    public void needsReverification() {
+        confirm(100, 100);
+        final int track = mTracker.findTrack(101, 100, 10, 10, DetectionResult.KIND_LENS);
+        assertTrue(track >= 0);
+        assertFalse(mTracker.needsReverification(track));
+        assertEquals(-1, mTracker.findTrack(300, 300, 10, 10, DetectionResult.KIND_LENS));
+        for (int i = 1; i < REVERIFY_INTERVAL; i++) {
+            inherit(track, 100, 100);
+        }
+        assertTrue(mTracker.needsReverification(track));
+    }
+
+    @Test
+    public void searchWindows() {
+        final RegionList windows = new RegionList();
+        // no track
+        assertFalse(mTracker.getSearchWindows(windows, 4, 640, 480));
+        update(100, 100);
+        // tentative track may be a new lens
+        assertFalse(mTracker.getSearchWindows(windows, 4, 640, 480));
+        confirm(100, 100);
+        int scans = 0;
+        for (int i = 0; i < SCAN_INTERVAL * 3; i++) {
+            if (mTracker.getSearchWindows(windows, 4, 640, 480)) {
+                assertEquals(1, windows.size());
+                // expanded by max center distance(8) and margin
+                assertEquals(100 - 12, windows.getX(0));
+                assertEquals(10 + 24, windows.getWidth(0));
+            } else {
+                scans++;
+            }
+            update(100, 100);
+        }
+        assertEquals(3, scans);
+    }
+
+    private void confirm(final int x, final int y) {
+        for (int i = 0; i < CONFIRM_HITS; i++) {
+            update(x, y);
+        }
+        assertEquals(1, mConfirmed.size());
+    }
+
+    private void update(final int x, final int y) {
+        update(x, y, 10, 10);
+    }
+
+    private void update(final int x, final int y, final int width, final int height) {
+        mDetections.clear();
+        mDetections.add(x, y, width, height, 60, 120, DetectionResult.KIND_LENS);
+        mTracker.update(mDetections, mConfirmed);
+    }
+
+    /**
+     * detection that inherited verification result of the track
+     */
+    private void inherit(final int track, final int x, final int y) {
+        mDetections.clear();
+        mDetections.add(x, y, 10, 10, 60, mTracker.getTrackBrightness(track),
+            DetectionResult.KIND_LENS);
+        mDetections.setTrackId(0, mTracker.getTrackId(track));
+        mTracker.update(mDetections, mConfirmed);
+    }
+}
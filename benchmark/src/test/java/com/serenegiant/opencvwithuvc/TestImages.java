@@ -0,0 +1,95 @@
+package com.serenegiant.opencvwithuvc;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+/**
+ * synthetic input images of unit tests
+ * lens like blobs(area 50-80 and brightness 100-150 as DetectorConfig#DEFAULT expects)
+ * and clutter blobs on noisy background, same as synthetic frames of benchmarks
+ */
+final class TestImages {
+    private static final long SEED = 0x5eed;
+    private static boolean sLoaded;
+
+    private TestImages() {
+        // never instantiate
+    }
+
+    static synchronized void loadNatives() {
+        if (!sLoaded) {
+            nu.pattern.OpenCV.loadLocally();
+            sLoaded = true;
+        }
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param lenses number of lens like blobs
+     * @param clutter number of clutter blobs
+     * @return CV_8UC3 image
+     */
+    static Mat rgb(final int width, final int height, final int lenses, final int clutter) {
+        loadNatives();
+        final Random random = new Random(SEED);
+        final Mat rgb = new Mat(height, width, CvType.CV_8UC3, new Scalar(90, 90, 90));
+        final Mat noise = new Mat(height, width, CvType.CV_8UC3);
+        try {
+            Core.randu(noise, 0, 16);
+            Core.add(rgb, noise, rgb);
+        } finally {
+            noise.release();
+        }
+        for (int i = 0; i < clutter; i++) {
+            final int x = random.nextInt(width), y = random.nextInt(height);
+            final int w = 2 + random.nextInt(30), h = 2 + random.nextInt(30);
+            final double v = 120 + random.nextInt(120);
+            Imgproc.rectangle(rgb, new Point(x, y), new Point(x + w, y + h),
+                new Scalar(v, v, v), random.nextBoolean() ? -1 : 1);
+        }
+        for (int i = 0; i < lenses; i++) {
+            final int x = 8 + random.nextInt(width - 16), y = 8 + random.nextInt(height - 16);
+            Imgproc.circle(rgb, new Point(x, y), 4 + random.nextInt(2),
+                new Scalar(160, 160, 160), -1);
+        }
+        return rgb;
+    }
+
+    /**
+     * @return CV_8UC1 image
+     */
+    static Mat gray(final int width, final int height, final int lenses, final int clutter) {
+        final Mat rgb = rgb(width, height, lenses, clutter);
+        final Mat gray = new Mat();
+        try {
+            Imgproc.cvtColor(rgb, gray, Imgproc.COLOR_RGB2GRAY);
+        } finally {
+            rgb.release();
+        }
+        return gray;
+    }
+
+    /**
+     * NV21 frame whose Y plane is gray image and chroma is neutral
+     * @return single channel Mat that has height * 3 / 2 rows
+     */
+    static Mat nv21(final int width, final int height, final int lenses, final int clutter) {
+        final Mat gray = gray(width, height, lenses, clutter);
+        final Mat yuv = new Mat(height * 3 / 2, width, CvType.CV_8UC1, new Scalar(128));
+        final Mat luma = yuv.submat(0, height, 0, width);
+        try {
+            gray.copyTo(luma);
+        } finally {
+            luma.release();
+            gray.release();
+        }
+        return yuv;
+    }
+}